@@ -0,0 +1,93 @@
+package cvhub;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Checks the menus make on every entry: repository name lookups and the account validators
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CvHubBenchmark {
+  // Discards what the validators print
+  private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+  @State(Scope.Benchmark)
+  public static class Repositories {
+    // Repositories in the registry
+    @Param({ "1000", "100000" })
+    public int repositories;
+
+    String[] existing; // Names that are taken, in a different case than they were created with
+    String[] missing; // Names that are free
+    int next; // Index of the next name to look up
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      CvHub.repositories = new RepositoryRegistry();
+      BlobStore store = new BlobStore(); // Shared, the repositories stay empty
+      existing = new String[1024];
+      missing = new String[existing.length];
+      for (int i = 0; i < repositories; i++) {
+        CvHub.repositories.add(new Repository("Repo-" + i, store, null));
+      }
+      for (int i = 0; i < existing.length; i++) {
+        existing[i] = ("Repo-" + (int) ((long) i * repositories / existing.length)).toUpperCase(Locale.ROOT);
+        missing[i] = "Repo-" + (repositories + i);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Accounts {
+    // Whether the entered values pass every rule or break some of them
+    @Param({ "valid", "invalid" })
+    public String input;
+
+    String username;
+    String password;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      boolean valid = input.equals("valid");
+      username = valid ? "naveenkumar" : "nav!";
+      password = valid ? "Secure#Password2024" : "password";
+    }
+  }
+
+  @Benchmark
+  public boolean repoExistsInMemory(Repositories state) {
+    return CvHub.repoExistsInMemory(state.existing[state.next++ & state.existing.length - 1]);
+  }
+
+  @Benchmark
+  public boolean repoMissingInMemory(Repositories state) {
+    return CvHub.repoExistsInMemory(state.missing[state.next++ & state.missing.length - 1]);
+  }
+
+  @Benchmark
+  public boolean validUsername(Accounts state) {
+    return CvHub.validUsername(state.username, DISCARD);
+  }
+
+  @Benchmark
+  public boolean validPassword(Accounts state) {
+    return CvHub.validPassword(state.password, DISCARD);
+  }
+}
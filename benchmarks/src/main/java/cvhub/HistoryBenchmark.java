@@ -0,0 +1,62 @@
+package cvhub;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Walking the whole commit history of an in-memory repository, across history lengths
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+  // Commits in the history
+  @Param({ "100", "10000" })
+  public int commits;
+
+  private Path file; // The file every commit changes
+  private Repository repo; // Kept in memory, nothing is saved
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("cvhub-jmh", ".txt");
+    repo = new Repository("bench", new BlobStore(), null);
+    for (int i = 0; i < commits; i++) {
+      Files.writeString(file, "version " + i + "\n");
+      repo.addFile(file.toString(), "Version " + i, "bench");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public int getCommitHistory(Blackhole blackhole) {
+    int count = 0;
+    for (Commit commit : repo.getCommitHistory()) {
+      blackhole.consume(commit.getMessage()); // Touch each commit, as the log listing does
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,135 @@
+package cvhub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Adding, opening and removing one file of a repository, across file sizes, repository sizes and storage
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Tree {
+    // Bytes in the file the benchmarks work on; the largest is over the 1 MiB chunking threshold
+    @Param({ "1024", "65536", "4194304" })
+    public int fileSize;
+
+    // Files the repository already tracks besides it
+    @Param({ "100", "10000" })
+    public int repositoryFiles;
+
+    // Where the repository keeps its commits and blobs: in memory, or an on-disk journal and object packs
+    @Param({ "memory", "disk" })
+    public String storage;
+
+    Path directory; // Scratch directory holding the imported tree, the work file and the saved repository
+    Benchmarks.Scratch scratch; // Storage of the repository, closed after the trial
+    Repository repo; // The repository the benchmarks work on
+    Path file; // The file that is added, opened and removed
+    byte[] content; // Current content of the work file
+    int edits; // Number of edits made to the work file
+    boolean tracked; // Whether the work file is in the repository
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("cvhub-jmh");
+      Path tree = Files.createDirectory(directory.resolve("tree"));
+      for (int i = 0; i < repositoryFiles; i++) {
+        Files.writeString(tree.resolve("file" + i + ".txt"), ("line " + i + "\n").repeat(20));
+      }
+      scratch = Benchmarks.Scratch.open(storage, directory.resolve("data"));
+      repo = scratch.repo;
+      repo.importDirectory(tree.toString(), List.of(), List.of(), "Initial import", "bench");
+      content = text(fileSize);
+      file = directory.resolve("work.txt");
+      Files.write(file, content);
+      repo.addFile(file.toString(), "Add the work file", "bench");
+      tracked = true;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      scratch.close();
+      Benchmarks.deleteTree(directory);
+    }
+
+    // Text of the given size, in numbered lines, so it is stored the way a source file would be
+    private static byte[] text(int size) {
+      StringBuilder text = new StringBuilder(size + 32);
+      for (int line = 0; text.length() < size; line++) {
+        text.append("line ").append(line).append(" of the benchmark file\n");
+      }
+      text.setLength(size);
+      return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Edit {
+    // Change one character of the work file, as an editor would, so every add records a new version
+    @Setup(Level.Invocation)
+    public void edit(Tree tree) throws IOException {
+      tree.edits++;
+      tree.content[tree.content.length / 2] = (byte) ('a' + tree.edits % 26);
+      Files.write(tree.file, tree.content);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Track {
+    // Put the work file back after the previous removal
+    @Setup(Level.Invocation)
+    public void track(Tree tree) throws IOException {
+      if (!tree.tracked) {
+        tree.repo.addFile(tree.file.toString(), "Add the work file again", "bench");
+        tree.tracked = true;
+      }
+    }
+  }
+
+  @Benchmark
+  public IngestResult addFile(Tree tree, Edit edit) throws IOException {
+    return tree.repo.addFile(tree.file.toString(), "Edit the work file", "bench");
+  }
+
+  @Benchmark
+  public String openFile(Tree tree) {
+    return tree.repo.openFile("work.txt"); // Found by file name, as the menu does
+  }
+
+  @Benchmark
+  public long openStream(Tree tree) throws IOException {
+    try (InputStream in = tree.repo.openStream("work.txt")) {
+      return in.transferTo(OutputStream.nullOutputStream()); // Reads the stored blob, bypassing the content cache
+    }
+  }
+
+  @Benchmark
+  public String removeFile(Tree tree, Track track) throws IOException {
+    tree.tracked = false;
+    return tree.repo.removeFile("work.txt", "Remove the work file", "bench");
+  }
+}
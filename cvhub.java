@@ -1,18 +1,94 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 class User {
   // Private fields to store the user's information
+  private final int id; // Number of the account in the registry, or -1 before it is registered
   private String username; // Stores the user's username
   private String email; // Stores the user's email address
-  private String password; // Stores the user's password
+  private String passwordHash; // Stores the salted hash of the user's password, as made by PasswordHasher
 
   // Constructor to initialize the User object with given values
-  User(String username, String email, String password) {
+  User(String username, String email, String passwordHash) {
+    this(-1, username, email, passwordHash); // Not registered yet
+  }
+
+  // Constructor to initialize a registered account
+  User(int id, String username, String email, String passwordHash) {
+    this.id = id;
     this.username = username; // Assign the provided username to the username field
     this.email = email; // Assign the provided email to the email field
-    this.password = password; // Assign the provided password to the password field
+    this.passwordHash = passwordHash; // Assign the provided hash to the password hash field
+  }
+
+  // Getter method for the account number
+  public int getId() {
+    return id;
   }
 
   // Getter method for the username
@@ -25,9 +101,9 @@ class User {
     return email; // Returns the email value
   }
 
-  // Getter method for the password
-  public String getPassword() {
-    return password; // Returns the password value
+  // Getter method for the password hash
+  public String getPasswordHash() {
+    return passwordHash; // Returns the password hash value
   }
 
   // Setter method to change the username
@@ -40,123 +116,7509 @@ class User {
     this.email = email; // Sets the email field to the new value
   }
 
-  // Setter method to change the password
-  public void setPassword(String password) {
-    this.password = password; // Sets the password field to the new value
+  // Setter method to change the password hash
+  public void setPasswordHash(String passwordHash) {
+    this.passwordHash = passwordHash; // Sets the password hash field to the new value
   }
 
 }
 
-class Repository {
-  private String name; // Name of the repository
-  private Map<String, String> filePaths; // A map to store file paths and their content
-  private List<String> commitHistory; // A list to track commit history
+class AccountValidator {
+  // Classes a character can belong to, as bits in the lookup table
+  private static final int SPECIAL = 1;
+  private static final int DIGIT = 2;
+  private static final int UPPER = 4;
+  private static final int SPACE = 8;
+  // Characters that count as special symbols
+  static final String SPECIAL_CHARACTERS = "!@#$%^&*()_+{}[]|\\:;\"'<>,.?/~`-=";
+  // Classes of every ASCII character; other characters can only be uppercase
+  private static final byte[] CLASSES = new byte[128];
+
+  // Rules an account can break, as bits of the value returned by the checks
+  static final int USERNAME_TOO_SHORT = 1;
+  static final int USERNAME_SPECIAL = 1 << 1;
+  static final int EMAIL_EMPTY = 1 << 2;
+  static final int EMAIL_NOT_GMAIL = 1 << 3;
+  static final int EMAIL_AT_START = 1 << 4;
+  static final int EMAIL_SPACE = 1 << 5;
+  static final int PASSWORD_TOO_SHORT = 1 << 6;
+  static final int PASSWORD_NO_SPECIAL = 1 << 7;
+  static final int PASSWORD_NO_DIGIT = 1 << 8;
+  static final int PASSWORD_NO_UPPER = 1 << 9;
+  // Message of each rule, in the order of its bit
+  private static final String[] MESSAGES = {
+      "Username should be at least 5 characters long.",
+      "Username cannot contain special characters.",
+      "Email cannot be empty!",
+      "Email should end with @gmail.com",
+      "'@' should not be at the start",
+      "No spaces allowed in email",
+      "Password should be at least 8 characters long.",
+      "Password should contain at least one special character.",
+      "Password should contain at least one number.",
+      "Password should contain at least one uppercase letter." };
+
+  static {
+    for (int i = 0; i < SPECIAL_CHARACTERS.length(); i++) {
+      CLASSES[SPECIAL_CHARACTERS.charAt(i)] |= SPECIAL;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      CLASSES[c] |= DIGIT;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      CLASSES[c] |= UPPER;
+    }
+    CLASSES[' '] |= SPACE;
+  }
 
-  // Constructor to initialize repository name, file map, and commit history
-  public Repository(String name) {
-    this.name = name; // Initialize repository name
-    this.filePaths = new HashMap<>(); // Initialize the map for storing file paths and content
-    this.commitHistory = new ArrayList<>(); // Initialize the commit history list
+  // Classes of every character in the text, in one pass
+  private static int classify(String text) {
+    int classes = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      classes |= c < 128 ? CLASSES[c] : Character.isUpperCase(c) ? UPPER : 0;
+    }
+    return classes;
   }
 
-  // Getter for the repository name
-  public String getName() {
-    return name; // Return the repository name
+  // Check whether the text holds a special symbol
+  static boolean hasSpecial(String text) {
+    return (classify(text) & SPECIAL) != 0;
   }
 
-  // Get the set of filenames stored in the repository
-  public Set<String> getFileNames() {
-    return filePaths.keySet(); // Return the keys of the map, which represent the filenames
+  // Check whether the text holds a digit
+  static boolean hasDigit(String text) {
+    return (classify(text) & DIGIT) != 0;
   }
 
-  // Add a file to the repository
-  public void addFile(String filePath, String commitMessage) {
-    try {
-      // Create a File object from the provided file path
-      File file = new File(filePath);
-      if (file.exists() && file.isFile()) { // Check if the file exists and is a valid file
-        // Read the content of the file
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-          String line;
-          while ((line = reader.readLine()) != null) {
-            content.append(line).append("\n"); // Append each line of the file
+  // Check whether the text holds an uppercase letter
+  static boolean hasUpper(String text) {
+    return (classify(text) & UPPER) != 0;
+  }
+
+  // Rules a username breaks, 0 if it is valid
+  static int checkUsername(String username) {
+    if (username == null) {
+      return USERNAME_TOO_SHORT;
+    }
+    int classes = classify(username);
+    return (username.length() < 5 ? USERNAME_TOO_SHORT : 0) | ((classes & SPECIAL) != 0 ? USERNAME_SPECIAL : 0);
+  }
+
+  // Rules an email breaks, 0 if it is valid
+  static int checkEmail(String email) {
+    if (email == null || email.isEmpty()) {
+      return EMAIL_EMPTY; // Nothing else to check
+    }
+    int classes = classify(email);
+    return (email.endsWith("@gmail.com") ? 0 : EMAIL_NOT_GMAIL) | (email.charAt(0) == '@' ? EMAIL_AT_START : 0)
+        | ((classes & SPACE) != 0 ? EMAIL_SPACE : 0);
+  }
+
+  // Rules a password breaks, 0 if it is valid
+  static int checkPassword(String password) {
+    if (password == null) {
+      return PASSWORD_TOO_SHORT | PASSWORD_NO_SPECIAL | PASSWORD_NO_DIGIT | PASSWORD_NO_UPPER;
+    }
+    int classes = classify(password);
+    return (password.length() < 8 ? PASSWORD_TOO_SHORT : 0) | ((classes & SPECIAL) == 0 ? PASSWORD_NO_SPECIAL : 0)
+        | ((classes & DIGIT) == 0 ? PASSWORD_NO_DIGIT : 0) | ((classes & UPPER) == 0 ? PASSWORD_NO_UPPER : 0);
+  }
+
+  // Messages of the broken rules, in rule order
+  static List<String> messages(int failures) {
+    List<String> messages = new ArrayList<>(Integer.bitCount(failures));
+    for (int rule = 0; rule < MESSAGES.length; rule++) {
+      if ((failures & 1 << rule) != 0) {
+        messages.add(MESSAGES[rule]);
+      }
+    }
+    return messages;
+  }
+}
+
+class AccountImport {
+  // Lines validated together while the next ones are read, and registered with one sync
+  static final int BATCH_SIZE = 10_000;
+  // Batches read ahead of the one being registered
+  private static final int MAX_IN_FLIGHT = 4;
+  // Optional first line naming the columns
+  private static final String HEADER = "username,email,password";
+
+  private final UserRegistry registry; // Registry the accounts are added to
+  private final PasswordHasher hasher; // Hashes passwords given in plain text
+
+  // One line of the file after validation: an account to register, or the reasons it was turned away
+  private static class Row {
+    final long line; // Line number in the file
+    final List<String> fields; // Username, email and password, or whatever the line held
+    final String passwordHash; // Hash to store, or null if the line was rejected
+    List<String> reasons; // Why the line was rejected, or null
+
+    Row(long line, List<String> fields, String passwordHash, List<String> reasons) {
+      this.line = line;
+      this.fields = fields;
+      this.passwordHash = passwordHash;
+      this.reasons = reasons;
+    }
+  }
+
+  // Constructor to initialize an import into a registry
+  AccountImport(UserRegistry registry, PasswordHasher hasher) {
+    this.registry = registry;
+    this.hasher = hasher;
+  }
+
+  // Register every valid account of a CSV file of username,email,password lines and write the rejected lines with
+  // their reasons to a report. Passwords may be plain text or hashes made by PasswordHasher. Reading, validating and
+  // registering overlap: batches are validated in parallel while later ones are read, and registered in file order
+  public AccountImportResult run(Path csv, Path report) throws IOException {
+    long start = System.nanoTime();
+    int[] counts = new int[2]; // Imported and rejected, only changed by the registering stage
+    long lines = 0;
+    try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+        BufferedWriter rejections = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+      rejections.write("line,username,email,reasons\n");
+      long first = 1;
+      Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+      CompletableFuture<Void> registered = CompletableFuture.completedFuture(null);
+      for (List<String> batch = readBatch(reader); !batch.isEmpty(); batch = readBatch(reader)) {
+        if (first == 1 && batch.get(0).trim().equalsIgnoreCase(HEADER)) {
+          batch.remove(0);
+          first++; // Line numbers in the report still match the file
+          lines++;
+        }
+        registered = registered.thenCombine(validate(batch, first), (previous, rows) -> {
+          try {
+            counts[0] += register(rows);
+            for (Row row : rows) {
+              if (row.reasons != null) {
+                rejections.write(csvLine(String.valueOf(row.line), field(row, 0), field(row, 1),
+                    String.join("; ", row.reasons)));
+                counts[1]++;
+              }
+            }
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
           }
+          return null;
+        });
+        first += batch.size();
+        lines += batch.size();
+        inFlight.add(registered);
+        if (inFlight.size() > MAX_IN_FLIGHT) {
+          join(inFlight.poll()); // Reading stays at most a few batches ahead
+        }
+      }
+      join(registered);
+    }
+    return new AccountImportResult(counts[0], counts[1], lines, Files.size(csv), System.nanoTime() - start);
+  }
+
+  // Read up to a batch of lines
+  private static List<String> readBatch(BufferedReader reader) throws IOException {
+    List<String> batch = new ArrayList<>(BATCH_SIZE);
+    String line;
+    while (batch.size() < BATCH_SIZE && (line = reader.readLine()) != null) {
+      batch.add(line);
+    }
+    return batch;
+  }
+
+  // Validate a batch of lines in parallel, off the reading thread
+  private CompletableFuture<List<Row>> validate(List<String> batch, long first) {
+    return CompletableFuture.supplyAsync(() -> IntStream.range(0, batch.size()).parallel()
+        .mapToObj(i -> parse(batch.get(i), first + i)).filter(Objects::nonNull).collect(Collectors.toList()));
+  }
+
+  // Wait for a batch to be registered
+  private static void join(CompletableFuture<Void> registering) throws IOException {
+    try {
+      registering.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause(); // A password could not be hashed or saved
+      }
+      throw e;
+    }
+  }
+
+  // Check one line and hash its password, or return null for a blank line
+  private Row parse(String line, long number) {
+    if (line.isBlank()) {
+      return null;
+    }
+    List<String> fields = csvFields(line);
+    if (fields == null || fields.size() != 3) {
+      return new Row(number, fields == null ? List.of(line) : fields, null,
+          List.of("Expected 3 fields: " + HEADER));
+    }
+    String password = fields.get(2);
+    boolean hashed = PasswordHasher.isHash(password);
+    boolean badHash = !hashed && password.startsWith(PasswordHasher.SCHEME + "$"); // Never taken as a plain password
+    int failures = AccountValidator.checkUsername(fields.get(0)) | AccountValidator.checkEmail(fields.get(1))
+        | (hashed || badHash ? 0 : AccountValidator.checkPassword(password));
+    List<String> reasons = AccountValidator.messages(failures);
+    if (badHash) {
+      reasons.add("Password hash is malformed or its cost is outside " + PasswordHasher.MIN_ITERATIONS + " to "
+          + PasswordHasher.MAX_ITERATIONS + " iterations");
+    }
+    if (registry.usernameTaken(fields.get(0))) {
+      reasons.add("Username is already taken"); // Checked again when the batch is registered
+    }
+    if (registry.emailTaken(fields.get(1))) {
+      reasons.add("An account with this email already exists");
+    }
+    if (!reasons.isEmpty()) {
+      return new Row(number, fields, null, reasons); // Not hashed, that is the expensive part
+    }
+    try {
+      return new Row(number, fields, hashed ? password : hasher.hash(password), null);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Register the valid rows of a batch in file order and return how many were added
+  private int register(List<Row> rows) throws IOException {
+    List<Row> valid = new ArrayList<>();
+    List<User> accounts = new ArrayList<>();
+    for (Row row : rows) {
+      if (row.reasons == null) {
+        valid.add(row);
+        accounts.add(new User(row.fields.get(0), row.fields.get(1), row.passwordHash));
+      }
+    }
+    List<User> created = registry.registerAll(accounts);
+    int added = 0;
+    for (int i = 0; i < created.size(); i++) {
+      if (created.get(i) != null) {
+        added++;
+      } else {
+        Row row = valid.get(i); // Taken by an earlier line or another session
+        row.reasons = new ArrayList<>();
+        if (registry.usernameTaken(row.fields.get(0))) {
+          row.reasons.add("Username is already taken");
+        }
+        if (registry.emailTaken(row.fields.get(1)) || row.reasons.isEmpty()) {
+          row.reasons.add("An account with this email already exists");
+        }
+      }
+    }
+    return added;
+  }
+
+  // Field of a row, or empty if the line had fewer
+  private static String field(Row row, int index) {
+    return index < row.fields.size() ? row.fields.get(index) : "";
+  }
+
+  // Split a CSV line into fields, honouring double quotes; null if a quote is not closed
+  static List<String> csvFields(String line) {
+    List<String> fields = new ArrayList<>(3);
+    if (line.indexOf('"') < 0) {
+      int start = 0;
+      for (int comma = line.indexOf(','); comma >= 0; comma = line.indexOf(',', start)) {
+        fields.add(line.substring(start, comma)); // Nothing quoted, so no copying char by char
+        start = comma + 1;
+      }
+      fields.add(line.substring(start));
+      return fields;
+    }
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c != '"') {
+          field.append(c);
+        } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"'); // Escaped quote
+          i++;
+        } else {
+          quoted = false;
         }
-        // Store the file content in the filePaths map
-        filePaths.put(filePath, content.toString());
-        // Log the commit history
-        commitHistory.add("Added file: " + filePath + " | Commit: " + commitMessage);
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (quoted) {
+      return null;
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  // Join fields into a CSV line, quoting those that need it
+  static String csvLine(String... fields) {
+    StringBuilder line = new StringBuilder();
+    for (String field : fields) {
+      if (line.length() > 0) {
+        line.append(',');
+      }
+      if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0) {
+        line.append('"').append(field.replace("\"", "\"\"")).append('"');
       } else {
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   File does not exist at the provided path."); // If file doesn't exist
+        line.append(field);
+      }
+    }
+    return line.append('\n').toString();
+  }
+}
+
+class AccountImportResult {
+  private final int imported; // Accounts added to the registry
+  private final int rejected; // Lines written to the rejection report
+  private final long lines; // Lines read, the header included
+  private final long bytes; // Size of the file
+  private final long nanos; // Time taken by the whole import
+
+  // Constructor to initialize the outcome of an account import
+  AccountImportResult(int imported, int rejected, long lines, long bytes, long nanos) {
+    this.imported = imported;
+    this.rejected = rejected;
+    this.lines = lines;
+    this.bytes = bytes;
+    this.nanos = nanos;
+  }
+
+  // Getter for the number of accounts added
+  public int getImported() {
+    return imported;
+  }
+
+  // Getter for the number of rejected lines
+  public int getRejected() {
+    return rejected;
+  }
+
+  // Getter for the elapsed time in nanoseconds
+  public long getNanos() {
+    return nanos;
+  }
+
+  // Summary such as "Imported 9800 accounts, rejected 200, from 10001 lines (0.6 MB) in 0.25 s: 40004 lines/s"
+  @Override
+  public String toString() {
+    return String.format("Imported %d accounts, rejected %d, from %d lines (%.1f MB) in %.2f s: %.0f lines/s, %.1f MB/s",
+        imported, rejected, lines, bytes / (1024.0 * 1024.0), nanos / 1_000_000_000.0,
+        nanos <= 0 ? 0 : lines / (nanos / 1_000_000_000.0),
+        nanos <= 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0));
+  }
+}
+
+class UserRegistry {
+  // Registry shared by every session, opened the first time an account is needed
+  private static UserRegistry shared;
+  // Why the account file could not be used, or null if accounts are saved
+  private static String openFailure;
+  // Kind of record holding the complete current details of one account
+  private static final byte ACCOUNT = 1;
+
+  private final CommitJournal journal; // Log of account records where the latest one per account wins, or null
+  private final List<byte[]> unsaved; // Latest record of each account when there is no journal
+  private final KeyIndex byUsername = new KeyIndex(); // Account of each case-folded username
+  private final KeyIndex byEmail = new KeyIndex(); // Account of each case-folded email
+  private long[] positions = new long[256]; // Journal position of the latest record of each account
+  private int count; // Number of accounts, which are numbered from 0
+
+  // Open-addressing table from keys to account numbers, holding no boxed values
+  private static class KeyIndex {
+    private static final int FREE = -1; // Slot never used
+    private static final int DELETED = -2; // Slot of a removed key; lookups probe past it
+
+    private int[] slots = new int[1024]; // Account numbers, placed by the hash of their key
+    private int[] hashes = new int[1024]; // Hash of the key in each slot, compared before the key itself
+    private String[] keys = new String[256]; // Key of each account, or null
+    private int used; // Slots that are not free
+    private int live; // Keys in the table
+
+    KeyIndex() {
+      Arrays.fill(slots, FREE);
+    }
+
+    // Account with a key, or -1
+    int get(String key) {
+      int mask = slots.length - 1;
+      int hash = key.hashCode();
+      for (int slot = (hash ^ hash >>> 16) & mask; slots[slot] != FREE; slot = (slot + 1) & mask) {
+        int id = slots[slot];
+        if (id >= 0 && hashes[slot] == hash && keys[id].equals(key)) {
+          return id;
+        }
+      }
+      return -1;
+    }
+
+    // Give an account a key that no account has
+    void put(String key, int id) {
+      if (id >= keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(id + 1, keys.length * 2));
+      }
+      keys[id] = key;
+      live++;
+      int mask = slots.length - 1;
+      int hash = key.hashCode();
+      int slot = (hash ^ hash >>> 16) & mask;
+      while (slots[slot] >= 0) {
+        slot = (slot + 1) & mask;
+      }
+      if (slots[slot] == FREE) {
+        used++;
+      }
+      slots[slot] = id;
+      hashes[slot] = hash;
+      if (used * 2 > slots.length) {
+        rehash(); // Keeps probe sequences short and drops deleted slots
+      }
+    }
+
+    // Drop the key of an account, if it has one
+    void remove(int id) {
+      if (id >= keys.length || keys[id] == null) {
+        return;
+      }
+      int mask = slots.length - 1;
+      int hash = keys[id].hashCode();
+      int slot = (hash ^ hash >>> 16) & mask;
+      while (slots[slot] != id) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = DELETED;
+      keys[id] = null;
+      live--;
+    }
+
+    private void rehash() {
+      int capacity = slots.length;
+      while (capacity < live * 4) {
+        capacity *= 2;
+      }
+      slots = new int[capacity];
+      hashes = new int[capacity];
+      Arrays.fill(slots, FREE);
+      int mask = capacity - 1;
+      for (int id = 0; id < keys.length; id++) {
+        if (keys[id] != null) {
+          int hash = keys[id].hashCode();
+          int slot = (hash ^ hash >>> 16) & mask;
+          while (slots[slot] != FREE) {
+            slot = (slot + 1) & mask;
+          }
+          slots[slot] = id;
+          hashes[slot] = hash;
+        }
+      }
+      used = live;
+    }
+  }
+
+  // Constructor to initialize a registry writing to a journal, or keeping accounts in memory when it is null
+  private UserRegistry(CommitJournal journal) {
+    this.journal = journal;
+    this.unsaved = journal == null ? new ArrayList<>() : null;
+  }
+
+  // Open a registry saved in a journal; only keys and record positions are loaded, details are read on demand
+  public static UserRegistry open(CommitJournal journal) throws IOException {
+    UserRegistry registry = new UserRegistry(journal);
+    try {
+      journal.replay(registry::load);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return registry;
+  }
+
+  // Create a registry that keeps its accounts in memory only
+  public static UserRegistry inMemory() {
+    return new UserRegistry(null);
+  }
+
+  // Get the registry shared by every session
+  public static synchronized UserRegistry shared() {
+    if (shared == null) {
+      try {
+        shared = open(new CommitJournal(DataDirectory.subdirectory("users").resolve("accounts.journal")));
+      } catch (IOException | RuntimeException e) {
+        openFailure = String.valueOf(e.getMessage()); // Reported by the caller
+        shared = inMemory();
       }
+    }
+    return shared;
+  }
+
+  // Open the shared registry if needed and return why its accounts are not saved, or null if they are
+  public static synchronized String openFailure() {
+    shared();
+    return openFailure;
+  }
+
+  // Fold a username or email so accounts differing only in case cannot coexist
+  static String key(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  // Index one replayed record; a later record of the same account replaces the earlier one
+  private void load(byte[] payload, long position) {
+    User account;
+    try {
+      account = decode(payload);
     } catch (IOException e) {
-      System.out.println("Error reading the file: " + e.getMessage()); // Handle potential I/O exceptions
+      throw new UncheckedIOException(e);
+    }
+    int id = account.getId();
+    byUsername.remove(id);
+    byEmail.remove(id);
+    count = Math.max(count, id + 1);
+    place(id, position);
+    byUsername.put(key(account.getUsername()), id);
+    byEmail.put(key(account.getEmail()), id);
+  }
+
+  // Number of accounts
+  public synchronized int size() {
+    return count;
+  }
+
+  // Check whether no account has been created
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  // Check whether any account uses a username
+  public boolean usernameTaken(String username) {
+    return usernameTaken(username, null);
+  }
+
+  // Check whether an account other than the given one uses a username
+  public synchronized boolean usernameTaken(String username, User except) {
+    int id = byUsername.get(key(username));
+    return id >= 0 && (except == null || id != except.getId());
+  }
+
+  // Check whether any account uses an email
+  public boolean emailTaken(String email) {
+    return emailTaken(email, null);
+  }
+
+  // Check whether an account other than the given one uses an email
+  public synchronized boolean emailTaken(String email, User except) {
+    int id = byEmail.get(key(email));
+    return id >= 0 && (except == null || id != except.getId());
+  }
+
+  // Find an account by email, or return null
+  public User findByEmail(String email) throws IOException {
+    long position;
+    synchronized (this) {
+      int id = byEmail.get(key(email));
+      if (id < 0) {
+        return null;
+      }
+      if (journal == null) {
+        return decode(unsaved.get(id));
+      }
+      position = positions[id];
+    }
+    return decode(journal.read(position)); // Read without holding up other sessions
+  }
+
+  // Create an account, or return null if its username or email is taken
+  public User register(String username, String email, String passwordHash) throws IOException {
+    return registerAll(List.of(new User(username, email, passwordHash))).get(0);
+  }
+
+  // Create accounts with a single sync to disk; an account whose username or email is taken, by an existing
+  // account or an earlier one in the list, is null in the result
+  public List<User> registerAll(List<User> accounts) throws IOException {
+    List<User> created = new ArrayList<>(accounts.size());
+    List<User> accepted = new ArrayList<>();
+    long end = -1;
+    synchronized (this) {
+      Set<String> usernames = new HashSet<>();
+      Set<String> emails = new HashSet<>();
+      for (User account : accounts) {
+        String username = key(account.getUsername());
+        String email = key(account.getEmail());
+        if (byUsername.get(username) >= 0 || byEmail.get(email) >= 0 || usernames.contains(username)
+            || emails.contains(email)) {
+          created.add(null); // Taken, or used by an earlier account of the same batch
+          continue;
+        }
+        usernames.add(username);
+        emails.add(email);
+        User registered = new User(count + accepted.size(), account.getUsername(), account.getEmail(),
+            account.getPasswordHash());
+        accepted.add(registered);
+        created.add(registered);
+      }
+      end = write(accepted); // One write for the whole batch; indexed only once it is in the journal
+      for (User registered : accepted) {
+        byUsername.put(key(registered.getUsername()), registered.getId());
+        byEmail.put(key(registered.getEmail()), registered.getId());
+      }
+      count += accepted.size();
+    }
+    if (end >= 0) {
+      journal.sync(end); // Shares its fsync with concurrent signups
+    }
+    return created;
+  }
+
+  // Change the username of an account; false if another account uses it
+  public boolean updateUsername(User user, String username) throws IOException {
+    return update(user, username, null, null);
+  }
+
+  // Change the email of an account; false if another account uses it
+  public boolean updateEmail(User user, String email) throws IOException {
+    return update(user, null, email, null);
+  }
+
+  // Change the password hash of an account
+  public boolean updatePassword(User user, String passwordHash) throws IOException {
+    return update(user, null, null, passwordHash);
+  }
+
+  // Write the account with the given details changed, leaving null ones as stored, and refresh the user object
+  private boolean update(User user, String username, String email, String passwordHash) throws IOException {
+    User updated;
+    long end;
+    synchronized (this) {
+      int id = user.getId();
+      if (username != null && usernameTaken(username, user) || email != null && emailTaken(email, user)) {
+        return false;
+      }
+      User stored = decode(journal == null ? unsaved.get(id) : journal.read(positions[id])); // May be newer
+      updated = new User(id, username != null ? username : stored.getUsername(),
+          email != null ? email : stored.getEmail(), passwordHash != null ? passwordHash : stored.getPasswordHash());
+      end = write(List.of(updated));
+      byUsername.remove(id);
+      byEmail.remove(id);
+      byUsername.put(key(updated.getUsername()), id);
+      byEmail.put(key(updated.getEmail()), id);
+    }
+    if (end >= 0) {
+      journal.sync(end);
+    }
+    user.setUsername(updated.getUsername());
+    user.setEmail(updated.getEmail());
+    user.setPasswordHash(updated.getPasswordHash());
+    return true;
+  }
+
+  // Number of accounts, for display
+  public synchronized String describe() {
+    return count + " account(s)" + (journal == null ? ", not saved" : "");
+  }
+
+  // Append the records of accounts and return the position the journal must be synced to, or -1 if there is none
+  private long write(List<User> accounts) throws IOException {
+    List<byte[]> payloads = new ArrayList<>(accounts.size());
+    for (User account : accounts) {
+      payloads.add(encode(account));
+    }
+    if (journal == null) {
+      for (int i = 0; i < accounts.size(); i++) {
+        int id = accounts.get(i).getId();
+        if (id == unsaved.size()) {
+          unsaved.add(payloads.get(i));
+        } else {
+          unsaved.set(id, payloads.get(i));
+        }
+      }
+      return -1;
+    }
+    if (payloads.isEmpty()) {
+      return -1;
+    }
+    long end = journal.write(payloads); // One write for all of them
+    long position = end;
+    for (int i = payloads.size() - 1; i >= 0; i--) {
+      position -= CommitJournal.HEADER_SIZE + payloads.get(i).length;
+      place(accounts.get(i).getId(), position);
+    }
+    return end;
+  }
+
+  // Remember where the latest record of an account starts
+  private void place(int id, long position) {
+    if (id >= positions.length) {
+      positions = Arrays.copyOf(positions, Math.max(id + 1, positions.length * 2));
+    }
+    positions[id] = position;
+  }
+
+  // Serialize an account record
+  private static byte[] encode(User account) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(ACCOUNT);
+    out.writeInt(account.getId());
+    out.writeUTF(account.getUsername());
+    out.writeUTF(account.getEmail());
+    out.writeUTF(account.getPasswordHash());
+    return bytes.toByteArray();
+  }
+
+  // Read an account record
+  private static User decode(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    if (in.readByte() != ACCOUNT) {
+      throw new IOException("Unknown account record");
+    }
+    return new User(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+  }
+}
+
+class PasswordHasher {
+  // Hasher shared by every session, created on first use
+  private static PasswordHasher shared;
+  // Prefix of stored hashes; anything else is a password saved before passwords were hashed
+  static final String SCHEME = "pbkdf2-sha256";
+  // Iterations for new hashes unless -Dcvhub.password.iterations says otherwise; stored hashes keep their own
+  static final int DEFAULT_ITERATIONS = 600_000;
+  // Lowest cost an imported hash may have, set by -Dcvhub.password.minIterations; never above the cost of new hashes
+  static final int MIN_ITERATIONS = Math.min(Integer.getInteger("cvhub.password.minIterations", 100_000),
+      configuredIterations());
+  // Highest cost a stored hash may have; a larger one would hold a pool thread for many seconds per sign-in
+  static final int MAX_ITERATIONS = 10_000_000;
+  private static final int SALT_BYTES = 16; // Random salt per password
+  private static final int HASH_BITS = 256; // Length of the derived key
+  private static final int QUEUE_PER_THREAD = 16; // Waiting hashes per pool thread before new ones are turned away
+
+  private final int iterations; // Cost of new hashes
+  private final ThreadPoolExecutor pool; // Bounded threads and queue, so a burst of sign-ins cannot take every core
+  private final SecureRandom random; // Source of salts
+
+  // Constructor to initialize a hasher with a cost and a pool of the given number of threads
+  PasswordHasher(int iterations, int threads) {
+    this.iterations = iterations;
+    AtomicInteger created = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), task -> {
+          Thread thread = new Thread(task, "cvhub-password-" + created.incrementAndGet());
+          thread.setDaemon(true); // Never keeps the hub running
+          return thread;
+        });
+    this.random = new SecureRandom();
+  }
+
+  // Get the hasher shared by every session
+  public static synchronized PasswordHasher shared() {
+    if (shared == null) {
+      shared = new PasswordHasher(configuredIterations(), configuredThreads());
+    }
+    return shared;
+  }
+
+  // Cost of new hashes, set by -Dcvhub.password.iterations
+  static int configuredIterations() {
+    return Integer.getInteger("cvhub.password.iterations", DEFAULT_ITERATIONS);
+  }
+
+  // Threads hashing at once, set by -Dcvhub.password.threads; half the cores by default, leaving the rest free
+  static int configuredThreads() {
+    return Integer.getInteger("cvhub.password.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  // Cost of new hashes
+  public int getIterations() {
+    return iterations;
+  }
+
+  // Hash a password with a new salt, returning the scheme, cost, salt and hash in one string
+  public String hash(String password) throws IOException {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    byte[] hash = run(() -> derive(password, salt, iterations));
+    Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+    return SCHEME + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+  }
+
+  // Check a password against a stored hash, comparing in constant time
+  public boolean verify(String password, String stored) throws IOException {
+    String[] parts = stored.split("\\$");
+    if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+      return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] salt;
+    byte[] expected;
+    int cost;
+    try {
+      cost = Integer.parseInt(parts[1]);
+      salt = Base64.getDecoder().decode(parts[2]);
+      expected = Base64.getDecoder().decode(parts[3]);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unreadable password hash");
+    }
+    if (cost <= 0 || cost > MAX_ITERATIONS) {
+      throw new IOException("Password hash cost is out of range: " + cost); // Refused before any work is queued
+    }
+    byte[] actual = run(() -> derive(password, salt, cost));
+    return MessageDigest.isEqual(actual, expected);
+  }
+
+  // Check whether a value is a hash in the stored format, with a cost between MIN_ITERATIONS and MAX_ITERATIONS
+  static boolean isHash(String value) {
+    if (!value.startsWith(SCHEME + "$")) {
+      return false; // Cheap rejection of plain passwords
+    }
+    String[] parts = value.split("\\$");
+    if (parts.length != 4) {
+      return false;
+    }
+    try {
+      int cost = Integer.parseInt(parts[1]);
+      return cost >= MIN_ITERATIONS && cost <= MAX_ITERATIONS && Base64.getDecoder().decode(parts[2]).length > 0
+          && Base64.getDecoder().decode(parts[3]).length == HASH_BITS / 8;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  // Check whether a stored hash should be replaced, because it is unhashed or made with a different cost
+  public boolean needsRehash(String stored) {
+    return !stored.startsWith(SCHEME + "$" + iterations + "$");
+  }
+
+  // Stop the pool once queued hashes are done
+  public void close() {
+    pool.shutdown();
+  }
+
+  // Run a hash on the pool and wait for it, failing fast when the queue is full
+  private byte[] run(Callable<byte[]> task) throws IOException {
+    Future<byte[]> future;
+    try {
+      future = pool.submit(task);
+    } catch (RejectedExecutionException e) {
+      throw new IOException("Too many sign-ins at once, please try again shortly");
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while checking a password");
+    } catch (ExecutionException e) {
+      throw new IOException("Password hashing failed", e.getCause());
+    }
+  }
+
+  // Derive the PBKDF2-HMAC-SHA256 key of a password
+  private static byte[] derive(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+      throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e); // Part of every JDK
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
+
+class BlobStore {
+  // Shared store used by every repository so identical content is kept only once
+  private static BlobStore shared;
+  // Why the shared store could not open its packs and keeps contents in memory only, or null
+  private static String openFailure;
+  // Size of the buffer used to stream files into the store
+  static final int INGEST_BUFFER_SIZE = 64 * 1024;
+  // Files at least this large are split into content-defined chunks
+  static final long CHUNK_THRESHOLD = Long.getLong("cvhub.chunk.thresholdBytes", 1024 * 1024);
+
+  // Readers go straight to the object store; the lock only guards the reference counts and the rewrite state,
+  // and no record is written while it is held
+  private final ObjectStore objects; // Stored form of every blob: full, delta or chunk list
+  private final Map<String, Integer> refCounts; // Number of live references to each blob, deltas included
+  private final LruCache<String, byte[]> reconstructed; // Recently rebuilt delta blobs
+  private final Object rewriteLock = new Object(); // One deltify or materialize at a time, so no delta cycle forms
+  private String rewriting; // Blob whose record is being rewritten, if any
+  private boolean rewritingDropped; // Whether its last reference went while it was rewritten
+
+  // A blob stored as the changes that turn its base into it
+  private static class DeltaBlob {
+    final String base; // Hash of the blob the delta applies to
+    final byte[] delta; // Encoded by BinaryDelta
+
+    DeltaBlob(String base, byte[] delta) {
+      this.base = base;
+      this.delta = delta;
+    }
+
+    // Encode as the raw base hash followed by the delta
+    byte[] encode() {
+      byte[] payload = new byte[32 + delta.length];
+      System.arraycopy(fromHex(base), 0, payload, 0, 32);
+      System.arraycopy(delta, 0, payload, 32, delta.length);
+      return payload;
+    }
+
+    // Decode a payload written by encode
+    static DeltaBlob decode(byte[] payload) {
+      return new DeltaBlob(toHex(Arrays.copyOf(payload, 32)), Arrays.copyOfRange(payload, 32, payload.length));
+    }
+  }
+
+  // A large blob stored as the concatenation of chunk blobs
+  private static class ChunkedBlob {
+    final String[] chunks; // Hashes of the chunks in order
+    final long[] offsets; // Offset of each chunk, followed by the total length
+
+    ChunkedBlob(String[] chunks, long[] offsets) {
+      this.chunks = chunks;
+      this.offsets = offsets;
+    }
+
+    // Encode as the chunk count, the raw chunk hashes and the offsets
+    byte[] encode() {
+      ByteBuffer payload = ByteBuffer.allocate(4 + chunks.length * 32 + offsets.length * 8);
+      payload.putInt(chunks.length);
+      for (String chunk : chunks) {
+        payload.put(fromHex(chunk));
+      }
+      for (long offset : offsets) {
+        payload.putLong(offset);
+      }
+      return payload.array();
+    }
+
+    // Decode a payload written by encode
+    static ChunkedBlob decode(byte[] bytes) {
+      ByteBuffer payload = ByteBuffer.wrap(bytes);
+      String[] chunks = new String[payload.getInt()];
+      byte[] hash = new byte[32];
+      for (int i = 0; i < chunks.length; i++) {
+        payload.get(hash);
+        chunks[i] = toHex(hash);
+      }
+      long[] offsets = new long[chunks.length + 1];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = payload.getLong();
+      }
+      return new ChunkedBlob(chunks, offsets);
+    }
+  }
+
+  // Constructor to initialize an empty store kept in memory
+  BlobStore() {
+    this(new HeapObjectStore());
+  }
+
+  // Constructor to initialize a store over the given object storage
+  BlobStore(ObjectStore objects) {
+    this.objects = objects;
+    this.refCounts = new HashMap<>(); // Initialize the reference counts
+    this.reconstructed = new LruCache<>(Long.getLong("cvhub.delta.cacheBytes", 32L * 1024 * 1024),
+        content -> 16L + content.length);
+  }
+
+  // Get the store shared by all repositories, kept in pack files in the data directory
+  public static synchronized BlobStore shared() {
+    if (shared == null) {
+      shared = new BlobStore(openObjects()); // Opened on first use so cvhub.home is already set
+    }
+    return shared;
+  }
+
+  // Open the shared store if needed and return why its packs are unavailable, or null if contents are saved
+  public static synchronized String openFailure() {
+    shared();
+    return openFailure;
+  }
+
+  // Open the packs of the data directory, falling back to memory only if it is unusable
+  private static ObjectStore openObjects() {
+    try {
+      PackObjectStore packs = PackObjectStore.open(DataDirectory.subdirectory("objects"));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          packs.close(); // Index what this process wrote
+        } catch (IOException e) {
+          // Left unindexed, the next start indexes it
+        }
+      }));
+      return packs;
+    } catch (IOException e) {
+      openFailure = e.getMessage(); // Reported by the caller
+      return new HeapObjectStore();
+    }
+  }
+
+  // Store content and return its hash, reusing an existing blob with the same content
+  public String put(byte[] content) throws IOException {
+    return put(hash(content), content);
+  }
+
+  // Store content whose hash is already known
+  String put(String hash, byte[] content) throws IOException {
+    store(hash, () -> content);
+    return hash;
+  }
+
+  // Take a reference to a blob and write it in full unless it is already stored; returns whether it was written
+  private boolean store(String hash, Supplier<byte[]> content) throws IOException {
+    synchronized (this) {
+      retain(hash); // Counted before the write so a concurrent release cannot free the blob meanwhile
+      if (objects.contains(hash)) {
+        return false; // Shared with another file, version or repository
+      }
+    }
+    try {
+      objects.write(hash, ObjectStore.FULL, content.get()); // Two writers of the same new content may both append it
+    } catch (IOException e) {
+      release(hash);
+      throw e;
+    }
+    return true;
+  }
+
+  // Stream a file into the store; memory use is bounded by the chunking threshold, not by the file size
+  public IngestResult putFile(Path path) throws IOException {
+    long start = System.nanoTime();
+    FileStat stat = FileStat.read(path); // Taken before reading so a concurrent write shows up as a change
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      InputStream in = Channels.newInputStream(channel);
+      if (channel.size() >= CHUNK_THRESHOLD) {
+        return putChunked(in, stat, start); // Only chunks not stored yet take memory
+      }
+      // Smaller files are kept whole so they can be stored as deltas; read in windows, up to the threshold at most
+      int limit = (int) Math.min(CHUNK_THRESHOLD, Integer.MAX_VALUE - 8);
+      byte[] content = in.readNBytes(limit);
+      if (content.length == limit) {
+        return putChunked(new SequenceInputStream(new ByteArrayInputStream(content), in), stat, start); // Grew
+      }
+      String hash = hash(content);
+      long stored = store(hash, () -> content) ? content.length : 0;
+      return new IngestResult(hash, content.length, System.nanoTime() - start, stat.withHash(hash), stored);
+    }
+  }
+
+  // Split a file into content-defined chunks, storing each chunk once across all files and versions
+  private IngestResult putChunked(InputStream in, FileStat stat, long start) throws IOException {
+    MessageDigest digest = newDigest(); // Hash of the whole file, which stays its identity
+    MessageDigest chunkDigest = newDigest();
+    byte[] buffer = new byte[ContentChunker.MAX_SIZE * 2]; // Always holds at least one maximal chunk
+    int filled = 0;
+    boolean end = false;
+    List<String> chunks = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    long length = 0;
+    long stored = 0;
+    try {
+      while (true) {
+        while (!end && filled < buffer.length) {
+          int read = in.read(buffer, filled, buffer.length - filled);
+          if (read < 0) {
+            end = true;
+          } else {
+            filled += read;
+          }
+        }
+        if (filled == 0) {
+          break;
+        }
+        int cut = ContentChunker.cut(buffer, 0, filled);
+        digest.update(buffer, 0, cut);
+        chunkDigest.update(buffer, 0, cut);
+        String chunk = toHex(chunkDigest.digest());
+        stored += putChunk(chunk, buffer, cut);
+        chunks.add(chunk);
+        offsets.add(length);
+        length += cut;
+        System.arraycopy(buffer, cut, buffer, 0, filled - cut); // Keep the rest for the next chunk
+        filled -= cut;
+      }
+    } catch (IOException e) {
+      for (String chunk : chunks) {
+        release(chunk); // Drop what this file stored so far
+      }
+      throw e;
+    }
+    offsets.add(length);
+    String hash = toHex(digest.digest());
+    boolean known;
+    synchronized (this) {
+      known = objects.contains(hash); // Same file stored before
+      if (known || refCounts.containsKey(hash)) {
+        retain(hash); // Its record, or the writer still storing it, already holds the chunks
+        for (String chunk : chunks) {
+          release(chunk);
+        }
+      } else {
+        refCounts.put(hash, 1); // The chunk references taken above belong to this blob
+      }
+    }
+    if (known) {
+      stored = 0;
+    } else {
+      long[] table = new long[offsets.size()];
+      for (int i = 0; i < table.length; i++) {
+        table[i] = offsets.get(i);
+      }
+      try {
+        objects.write(hash, ObjectStore.CHUNKED, new ChunkedBlob(chunks.toArray(new String[0]), table).encode());
+      } catch (IOException e) {
+        synchronized (this) {
+          boolean orphaned = refCounts.get(hash) == 1 && !objects.contains(hash);
+          release(hash);
+          if (orphaned) {
+            for (String chunk : chunks) {
+              release(chunk); // No record holds them, so they are dropped here
+            }
+          }
+        }
+        throw e;
+      }
+    }
+    return new IngestResult(hash, length, System.nanoTime() - start, stat.withHash(hash), stored);
+  }
+
+  // Store one chunk unless it is already stored, returning the number of new bytes
+  private long putChunk(String hash, byte[] buffer, int length) throws IOException {
+    return store(hash, () -> Arrays.copyOf(buffer, length)) ? length : 0; // Copied only when it is new
+  }
+
+  // Hash a file the same way putFile does without storing it
+  public static String hashFile(Path path) throws IOException {
+    MessageDigest digest = newDigest();
+    ByteBuffer buffer = ByteBuffer.allocate(INGEST_BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer); // Consumes the window
+        buffer.clear();
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  // Add a reference to a blob; the first one also holds the blobs it is built from
+  public synchronized void retain(String hash) {
+    if (refCounts.merge(hash, 1, Integer::sum) > 1) {
+      return; // Already held, and so are its base and chunks
+    }
+    if (hash.equals(rewriting) && rewritingDropped) {
+      rewritingDropped = false; // Taken back before the rewrite freed it, so it still holds its base
+      return;
+    }
+    byte type = objects.typeOf(hash);
+    if (type == ObjectStore.DELTA) {
+      retain(DeltaBlob.decode(objects.read(hash).getPayload()).base); // Stored by an earlier session
+    } else if (type == ObjectStore.CHUNKED) {
+      for (String chunk : ChunkedBlob.decode(objects.read(hash).getPayload()).chunks) {
+        retain(chunk);
+      }
+    }
+  }
+
+  // Get the content of a blob, or null if the hash is unknown; nothing here waits for the lock
+  public byte[] get(String hash) {
+    List<byte[]> chain = new ArrayList<>(); // Deltas to apply, nearest to the requested blob first
+    byte[] content = null;
+    ChunkedBlob chunked = null;
+    String at = hash;
+    for (int attempt = 0; content == null && chunked == null; ) {
+      StoredObject object = objects.read(at); // Look up the blob by its hash
+      if (object == null && (at.equals(hash) || ++attempt > 2)) {
+        return null; // Unknown blob
+      } else if (object == null) {
+        chain.clear(); // A base was freed after its delta was stored in full again, which the next walk finds
+        at = hash;
+      } else if (object.getType() == ObjectStore.FULL) {
+        content = object.getPayload();
+      } else if (object.getType() == ObjectStore.CHUNKED) {
+        chunked = ChunkedBlob.decode(object.getPayload());
+      } else {
+        content = reconstructed.get(at); // Rebuilt recently, start from there
+        if (content == null) {
+          DeltaBlob delta = DeltaBlob.decode(object.getPayload());
+          chain.add(delta.delta);
+          at = delta.base;
+        }
+      }
+    }
+    if (chunked != null) {
+      content = assemble(chunked); // Chunks are loaded one at a time
+    }
+    if (chain.isEmpty()) {
+      return content;
+    }
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      content = BinaryDelta.apply(content, chain.get(i));
+    }
+    reconstructed.put(hash, content);
+    return content;
+  }
+
+  // Check whether a blob with the given hash is stored
+  public boolean contains(String hash) {
+    return objects.contains(hash);
+  }
+
+  // Get the chunk list of a blob, or null if it is not chunked
+  private ChunkedBlob chunked(String hash) {
+    StoredObject object = objects.read(hash);
+    if (object == null || object.getType() != ObjectStore.CHUNKED) {
+      return null;
+    }
+    return ChunkedBlob.decode(object.getPayload());
+  }
+
+  // Concatenate the chunks of a chunked blob into one array
+  private byte[] assemble(ChunkedBlob chunked) {
+    long length = chunked.offsets[chunked.chunks.length];
+    if (length > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Blob is too large to load at once: " + length + " bytes");
+    }
+    byte[] content = new byte[(int) length];
+    for (int i = 0; i < chunked.chunks.length; i++) {
+      byte[] chunk = get(chunked.chunks[i]);
+      System.arraycopy(chunk, 0, content, (int) chunked.offsets[i], chunk.length);
+    }
+    return content;
+  }
+
+  // Open a blob for reading; chunked blobs are read one chunk at a time
+  public InputStream openStream(String hash) throws FileNotFoundException {
+    ChunkedBlob chunked = chunked(hash);
+    if (chunked == null) {
+      byte[] content = get(hash);
+      if (content == null) {
+        throw new FileNotFoundException("Content is not available.");
+      }
+      return new ByteArrayInputStream(content);
+    }
+    Iterator<String> chunks = Arrays.asList(chunked.chunks).iterator();
+    return new SequenceInputStream(new Enumeration<InputStream>() {
+      @Override
+      public boolean hasMoreElements() {
+        return chunks.hasNext();
+      }
+
+      @Override
+      public InputStream nextElement() {
+        return new ByteArrayInputStream(get(chunks.next())); // Loaded when the previous chunk is used up
+      }
+    });
+  }
+
+  // Open a chunked blob for paging without assembling it, or return null if the blob is not chunked
+  public PageSource openChunked(String hash) {
+    ChunkedBlob chunked = chunked(hash);
+    return chunked == null ? null : new ChunkedPageSource(this, chunked.chunks, chunked.offsets);
+  }
+
+  // Store a full blob as a delta against another blob, if that saves enough space; returns whether it did
+  public boolean deltify(String hash, String baseHash) {
+    synchronized (rewriteLock) {
+      byte[] content;
+      synchronized (this) {
+        if (objects.typeOf(hash) != ObjectStore.FULL || !refCounts.containsKey(hash) || !canDeltify(hash, baseHash)) {
+          return false; // Already a delta, unknown, unused, or would form a cycle
+        }
+        content = objects.read(hash).getPayload();
+        retain(baseHash); // Kept while the delta is made, and by the delta once it is written
+        rewriting = hash;
+      }
+      byte[] base = get(baseHash);
+      byte[] delta = base == null ? null : BinaryDelta.create(base, content); // Computed outside the lock
+      boolean written = false;
+      if (delta != null) {
+        try {
+          objects.write(hash, ObjectStore.DELTA, new DeltaBlob(baseHash, delta).encode());
+          written = true;
+        } catch (IOException e) {
+          // The full copy is still there
+        }
+      }
+      synchronized (this) {
+        if (!written) {
+          release(baseHash);
+        }
+        finishRewrite();
+      }
+      return written;
+    }
+  }
+
+  // Check that a base exists and does not itself depend on the blob
+  private boolean canDeltify(String hash, String baseHash) {
+    for (String at = baseHash; ; ) {
+      if (at.equals(hash)) {
+        return false;
+      }
+      byte type = objects.typeOf(at);
+      if (type != ObjectStore.DELTA) {
+        return type != 0; // Reached a full or chunked blob
+      }
+      at = DeltaBlob.decode(objects.read(at).getPayload()).base;
+    }
+  }
+
+  // Store a delta blob in full again, used when it becomes the current version of a file
+  public void materialize(String hash) {
+    synchronized (rewriteLock) {
+      DeltaBlob delta;
+      synchronized (this) {
+        if (objects.typeOf(hash) != ObjectStore.DELTA || !refCounts.containsKey(hash)) {
+          return; // Already full, unknown or unused
+        }
+        delta = DeltaBlob.decode(objects.read(hash).getPayload());
+        rewriting = hash;
+      }
+      byte[] content = get(hash);
+      boolean written = false;
+      if (content != null) {
+        try {
+          objects.write(hash, ObjectStore.FULL, content);
+          written = true;
+        } catch (IOException e) {
+          // Still readable as a delta
+        }
+      }
+      synchronized (this) {
+        if (written) {
+          release(delta.base); // The base is no longer needed for this blob
+        }
+        finishRewrite();
+      }
+    }
+  }
+
+  // End the rewrite of a blob, freeing it if its last reference went meanwhile
+  private void finishRewrite() {
+    String hash = rewriting;
+    rewriting = null;
+    if (rewritingDropped) {
+      rewritingDropped = false;
+      drop(hash);
+    }
+  }
+
+  // Drop one reference to a blob and free it when nothing refers to it anymore
+  public synchronized void release(String hash) {
+    Integer count = refCounts.get(hash);
+    if (count == null) {
+      return; // Unknown blob, nothing to release
+    }
+    if (count > 1) {
+      refCounts.put(hash, count - 1); // Other references remain
+      return;
+    }
+    refCounts.remove(hash); // Last reference is gone
+    reconstructed.invalidate(hash);
+    if (hash.equals(rewriting)) {
+      rewritingDropped = true; // Freed once the rewrite is done with its record
+      return;
+    }
+    drop(hash);
+  }
+
+  // Free a blob nothing refers to anymore, dropping the references its record holds
+  private void drop(String hash) {
+    StoredObject object = objects.typeOf(hash) == ObjectStore.FULL ? null : objects.read(hash);
+    objects.remove(hash); // Free the content
+    if (object != null && object.getType() == ObjectStore.DELTA) {
+      release(DeltaBlob.decode(object.getPayload()).base); // Drop the reference the delta held on its base
+    } else if (object != null && object.getType() == ObjectStore.CHUNKED) {
+      for (String chunk : ChunkedBlob.decode(object.getPayload()).chunks) {
+        release(chunk); // Chunks shared with other files stay stored
+      }
+    }
+  }
+
+  // Make every blob written so far durable, before a commit that refers to them is
+  public void sync() throws IOException {
+    objects.sync();
+  }
+
+  // Drop stored blobs that no live reference can reach; only safe once every repository is loaded.
+  // Holds the lock throughout so no blob is referenced after the live set is taken
+  public synchronized int prune() throws IOException {
+    Set<String> live = new HashSet<>();
+    Deque<String> pending = new ArrayDeque<>(refCounts.keySet());
+    while (!pending.isEmpty()) {
+      String hash = pending.pop();
+      if (!live.add(hash)) {
+        continue;
+      }
+      byte type = objects.typeOf(hash);
+      if (type == ObjectStore.DELTA) {
+        pending.push(DeltaBlob.decode(objects.read(hash).getPayload()).base); // Bases stay with their deltas
+      } else if (type == ObjectStore.CHUNKED) {
+        pending.addAll(Arrays.asList(ChunkedBlob.decode(objects.read(hash).getPayload()).chunks));
+      }
+    }
+    return objects.compact(live::contains);
+  }
+
+  // Summary of the stored blobs for display
+  public synchronized String describe() {
+    return objects.describe() + "; rebuilt deltas: " + reconstructed.describe();
+  }
+
+  // Compute the SHA-256 hash of the content as a lowercase hex string
+  public static String hash(byte[] content) {
+    return toHex(newDigest().digest(content));
+  }
+
+  // Create a new SHA-256 message digest
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e); // Every JDK ships SHA-256
+    }
+  }
+
+  // Convert digest bytes into a lowercase hex string
+  static String toHex(byte[] bytes) {
+    char[] digits = "0123456789abcdef".toCharArray();
+    char[] out = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      out[i * 2] = digits[(bytes[i] >> 4) & 0xf]; // High nibble
+      out[i * 2 + 1] = digits[bytes[i] & 0xf]; // Low nibble
+    }
+    return new String(out);
+  }
+
+  // Convert a hex string back into digest bytes
+  static byte[] fromHex(String hex) {
+    byte[] out = new byte[hex.length() / 2];
+    for (int i = 0; i < out.length; i++) {
+      out[i] = (byte) (Character.digit(hex.charAt(i * 2), 16) << 4 | Character.digit(hex.charAt(i * 2 + 1), 16));
+    }
+    return out;
+  }
+}
+
+class StoredObject {
+  private final byte type; // One of the ObjectStore record types
+  private final byte[] payload; // Content, delta or chunk list as encoded by BlobStore
+
+  // Constructor to initialize a stored record
+  StoredObject(byte type, byte[] payload) {
+    this.type = type;
+    this.payload = payload;
+  }
+
+  // Get the record type
+  public byte getType() {
+    return type;
+  }
+
+  // Get the encoded record
+  public byte[] getPayload() {
+    return payload;
+  }
+}
+
+abstract class ObjectStore {
+  static final byte FULL = 1; // Blob content as is
+  static final byte DELTA = 2; // Raw base hash followed by a BinaryDelta
+  static final byte CHUNKED = 3; // Chunk count, raw chunk hashes and offsets
+
+  // Read the newest record of a blob, or null if it is not stored
+  abstract StoredObject read(String hash);
+
+  // Type of the newest record of a blob, or 0 if it is not stored
+  abstract byte typeOf(String hash);
+
+  // Check whether a blob is stored in any form
+  boolean contains(String hash) {
+    return typeOf(hash) != 0;
+  }
+
+  // Store a record for a blob, replacing the form it was stored in before
+  abstract void write(String hash, byte type, byte[] payload) throws IOException;
+
+  // Drop a blob that is no longer referenced, if the store can free space right away
+  abstract void remove(String hash);
+
+  // Make every record written so far durable
+  abstract void sync() throws IOException;
+
+  // Drop every blob the predicate rejects and return how many were dropped
+  abstract int compact(Predicate<String> keep) throws IOException;
+
+  // Summary of the stored records for display
+  abstract String describe();
+}
+
+class HeapObjectStore extends ObjectStore {
+  private final Map<String, StoredObject> objects = new ConcurrentHashMap<>(); // Records keyed by blob hash
+
+  @Override
+  StoredObject read(String hash) {
+    return objects.get(hash);
+  }
+
+  @Override
+  byte typeOf(String hash) {
+    StoredObject object = objects.get(hash);
+    return object == null ? 0 : object.getType();
+  }
+
+  @Override
+  void write(String hash, byte type, byte[] payload) {
+    objects.put(hash, new StoredObject(type, payload));
+  }
+
+  @Override
+  void remove(String hash) {
+    objects.remove(hash);
+  }
+
+  @Override
+  void sync() {
+    // Nothing outlives the process
+  }
+
+  @Override
+  int compact(Predicate<String> keep) {
+    int before = objects.size();
+    objects.keySet().removeIf(keep.negate());
+    return before - objects.size();
+  }
+
+  @Override
+  String describe() {
+    int deltas = 0;
+    int chunked = 0;
+    long bytes = 0;
+    for (StoredObject object : objects.values()) {
+      deltas += object.getType() == DELTA ? 1 : 0;
+      chunked += object.getType() == CHUNKED ? 1 : 0;
+      bytes += object.getPayload().length; // Deltas count at their encoded size
+    }
+    return String.format("%d blobs (%d as deltas, %d chunked), %.1f MB in memory", objects.size(), deltas, chunked,
+        bytes / (1024.0 * 1024.0));
+  }
+}
+
+class PackFile {
+  static final int MAGIC = 0x4356504b; // "CVPK"
+  static final int INDEX_MAGIC = 0x43564958; // "CVIX"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16; // Magic, version and order
+  static final int RECORD_HEADER_SIZE = 32 + 1 + 4; // Raw hash, type and payload length
+  static final int CHECKSUM_SIZE = 4; // CRC32 over the record header and payload
+  private static final int FANOUT_AT = 12; // Index layout: magic, version, count, then 256 cumulative counts
+  private static final int HASHES_AT = FANOUT_AT + 256 * 4;
+  private static final int SEGMENT_SHIFT = 30; // Each mapping covers 1 GiB
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+  final Path path; // Pack file, next to its .idx
+  final int number; // Taken from the file name, unique in the directory
+  final long order; // Position in lookup order; a merged pack keeps the order of its newest input
+  private final ByteBuffer[] segments; // Mapped pack content
+  private final ByteBuffer index; // Mapped index
+  private final int count; // Number of records in the pack
+  private final int offsetsAt; // Start of the offset table in the index
+
+  // Constructor to initialize a pack from its mapped files
+  private PackFile(Path path, int number, long order, ByteBuffer[] segments, ByteBuffer index) {
+    this.path = path;
+    this.number = number;
+    this.order = order;
+    this.segments = segments;
+    this.index = index;
+    this.count = index.getInt(8);
+    this.offsetsAt = HASHES_AT + count * 32;
+  }
+
+  // Map a sealed pack and its index; nothing is read beyond the headers until a lookup needs it
+  static PackFile open(Path path, int number) throws IOException {
+    ByteBuffer[] segments;
+    ByteBuffer index;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+      segments = new ByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long start = (long) i << SEGMENT_SHIFT;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+      }
+    }
+    try (FileChannel channel = FileChannel.open(indexPath(path), StandardOpenOption.READ)) {
+      index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (segments.length == 0 || segments[0].getInt(0) != MAGIC || index.capacity() < HASHES_AT
+        || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION
+        || index.capacity() != HASHES_AT + (long) index.getInt(8) * 40) {
+      throw new IOException("Not a valid object pack: " + path.getFileName());
+    }
+    return new PackFile(path, number, segments[0].getLong(8), segments, index);
+  }
+
+  // Get the index file belonging to a pack
+  static Path indexPath(Path pack) {
+    String name = pack.getFileName().toString();
+    return pack.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".idx");
+  }
+
+  // Write the index of a pack: cumulative counts by first hash byte, sorted hashes, then record offsets
+  static void writeIndex(Path pack, SortedMap<String, Long> offsets) throws IOException {
+    ByteBuffer index = ByteBuffer.allocate(HASHES_AT + offsets.size() * 40);
+    index.putInt(INDEX_MAGIC).putInt(VERSION).putInt(offsets.size());
+    int[] fanout = new int[256];
+    for (String hash : offsets.keySet()) {
+      fanout[Character.digit(hash.charAt(0), 16) << 4 | Character.digit(hash.charAt(1), 16)]++;
+    }
+    for (int i = 0, total = 0; i < 256; i++) {
+      total += fanout[i];
+      index.putInt(total);
+    }
+    for (String hash : offsets.keySet()) {
+      index.put(BlobStore.fromHex(hash)); // Hex order is the same as unsigned byte order
+    }
+    for (long offset : offsets.values()) {
+      index.putLong(offset);
+    }
+    index.flip();
+    Path temp = pack.resolveSibling(indexPath(pack).getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (index.hasRemaining()) {
+        channel.write(index);
+      }
+      channel.force(true);
+    }
+    Files.move(temp, indexPath(pack), StandardCopyOption.ATOMIC_MOVE); // The index appears complete or not at all
+  }
+
+  // Split a hex hash into four big-endian words for comparing against the index
+  static long[] key(String hash) {
+    long[] key = new long[4];
+    for (int i = 0; i < 64; i++) {
+      key[i >> 4] = key[i >> 4] << 4 | Character.digit(hash.charAt(i), 16);
+    }
+    return key;
+  }
+
+  // Find the record offset of a hash, or -1 if this pack does not hold it
+  long find(long[] key) {
+    int first = (int) (key[0] >>> 56);
+    int low = first == 0 ? 0 : index.getInt(FANOUT_AT + (first - 1) * 4); // Only hashes with the same first byte
+    int high = index.getInt(FANOUT_AT + first * 4) - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int order = compare(middle, key);
+      if (order < 0) {
+        low = middle + 1;
+      } else if (order > 0) {
+        high = middle - 1;
+      } else {
+        return index.getLong(offsetsAt + middle * 8);
+      }
+    }
+    return -1;
+  }
+
+  // Compare the hash at an index position with a key
+  private int compare(int position, long[] key) {
+    int at = HASHES_AT + position * 32;
+    for (int i = 0; i < 4; i++) {
+      int order = Long.compareUnsigned(index.getLong(at + i * 8), key[i]);
+      if (order != 0) {
+        return order;
+      }
+    }
+    return 0;
+  }
+
+  // Number of records in the pack
+  int count() {
+    return count;
+  }
+
+  // Hash at a position in the sorted index
+  String hashAt(int position) {
+    byte[] hash = new byte[32];
+    index.get(HASHES_AT + position * 32, hash);
+    return BlobStore.toHex(hash);
+  }
+
+  // Record offset at a position in the sorted index
+  long offsetAt(int position) {
+    return index.getLong(offsetsAt + position * 8);
+  }
+
+  // Size of the pack file in bytes
+  long size() {
+    long size = 0;
+    for (ByteBuffer segment : segments) {
+      size += segment.capacity();
+    }
+    return size;
+  }
+
+  // Type of the record at an offset
+  byte typeAt(long offset) {
+    return byteAt(offset + 32);
+  }
+
+  // Read and check the record at an offset
+  StoredObject readAt(long offset) {
+    byte[] header = new byte[RECORD_HEADER_SIZE];
+    copy(offset, header);
+    int length = ByteBuffer.wrap(header).getInt(33);
+    byte[] payload = new byte[length];
+    copy(offset + RECORD_HEADER_SIZE, payload);
+    byte[] checksum = new byte[CHECKSUM_SIZE];
+    copy(offset + RECORD_HEADER_SIZE + length, checksum);
+    if (checksum(header, payload) != ByteBuffer.wrap(checksum).getInt()) {
+      throw new IllegalStateException("Object pack " + path.getFileName() + " is corrupt at offset " + offset);
+    }
+    return new StoredObject(header[32], payload);
+  }
+
+  // Checksum stored after each record
+  static int checksum(byte[] header, byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(header);
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  // Byte at a position of the pack
+  private byte byteAt(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & (SEGMENT_SIZE - 1)));
+  }
+
+  // Copy bytes starting at a position, which may cross a segment boundary
+  private void copy(long position, byte[] target) {
+    int done = 0;
+    while (done < target.length) {
+      ByteBuffer segment = segments[(int) ((position + done) >>> SEGMENT_SHIFT)];
+      int at = (int) ((position + done) & (SEGMENT_SIZE - 1));
+      int length = Math.min(target.length - done, segment.capacity() - at);
+      segment.get(at, target, done, length);
+      done += length;
+    }
+  }
+
+  // Delete the pack and its index; processes that still map them keep reading until they reopen
+  void delete() {
+    try {
+      Files.deleteIfExists(path); // Pack first, so a failure leaves both files for the next repack
+      Files.deleteIfExists(indexPath(path));
+    } catch (IOException e) {
+      // Still valid, its records are duplicates of the merged pack
+    }
+  }
+}
+
+class PackWriter {
+  final Path path; // Pack file being appended to
+  final int number; // Taken from the file name
+  final long order; // Lookup order recorded in the header
+  private final FileChannel channel; // Open for appending
+  private final FileLock lock; // Keeps other processes from taking the pack over while it is written
+  private final Map<String, Long> offsets = new ConcurrentHashMap<>(); // Newest record of each hash in this pack
+  private long size; // Bytes written so far
+
+  // Constructor to initialize a writer over a locked pack
+  private PackWriter(Path path, int number, long order, FileChannel channel, FileLock lock, long size) {
+    this.path = path;
+    this.number = number;
+    this.order = order;
+    this.channel = channel;
+    this.lock = lock;
+    this.size = size;
+  }
+
+  // Create a new pack with the given number, or return null if another process took the number first
+  static PackWriter create(Path directory, int number, long order) throws IOException {
+    Path path = directory.resolve(String.format("pack-%06d.pack", number));
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+    } catch (FileAlreadyExistsException e) {
+      return null;
+    }
+    PackWriter writer = new PackWriter(path, number, order, channel, channel.lock(), 0);
+    ByteBuffer header = ByteBuffer.allocate(PackFile.HEADER_SIZE);
+    header.putInt(PackFile.MAGIC).putInt(PackFile.VERSION).putLong(order).flip();
+    writer.writeFully(header);
+    return writer;
+  }
+
+  // Take over a pack left without an index, keeping every intact record and cutting off a torn tail;
+  // returns null if a running process still writes it
+  static PackWriter recover(Path path, int number) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    FileLock lock = null;
+    try {
+      lock = channel.tryLock();
+    } finally {
+      if (lock == null) {
+        channel.close();
+      }
+    }
+    if (lock == null) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(PackFile.HEADER_SIZE);
+    channel.read(header, 0);
+    if (header.position() < PackFile.HEADER_SIZE || header.getInt(0) != PackFile.MAGIC) {
+      channel.close(); // Crashed before the header was written
+      Files.deleteIfExists(path);
+      return null;
+    }
+    PackWriter writer = new PackWriter(path, number, header.getLong(8), channel, lock, PackFile.HEADER_SIZE);
+    long end = channel.size();
+    while (writer.size + PackFile.RECORD_HEADER_SIZE + PackFile.CHECKSUM_SIZE <= end) {
+      String hash = writer.checkedHashAt(writer.size, end);
+      if (hash == null) {
+        break; // Torn or corrupt record, nothing after it can be trusted
+      }
+      writer.offsets.put(hash, writer.size);
+      writer.size += writer.recordLength(writer.size);
+    }
+    if (writer.size < end) {
+      channel.truncate(writer.size);
+    }
+    channel.position(writer.size);
+    return writer;
+  }
+
+  // Append a record; it is durable once force returns
+  void append(String hash, byte type, byte[] payload) throws IOException {
+    byte[] header = ByteBuffer.allocate(PackFile.RECORD_HEADER_SIZE).put(BlobStore.fromHex(hash)).put(type)
+        .putInt(payload.length).array();
+    ByteBuffer record = ByteBuffer.allocate(header.length + payload.length + PackFile.CHECKSUM_SIZE);
+    record.put(header).put(payload).putInt(PackFile.checksum(header, payload)).flip();
+    long offset = size;
+    writeFully(record);
+    offsets.put(hash, offset);
+  }
+
+  // Offset of the newest record of a hash in this pack, or null
+  Long offsetOf(String hash) {
+    return offsets.get(hash);
+  }
+
+  // Type of the record at an offset
+  byte typeAt(long offset) throws IOException {
+    ByteBuffer type = ByteBuffer.allocate(1);
+    readFully(type, offset + 32);
+    return type.get(0);
+  }
+
+  // Read the record at an offset
+  StoredObject readAt(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(PackFile.RECORD_HEADER_SIZE);
+    readFully(header, offset);
+    ByteBuffer payload = ByteBuffer.allocate(header.getInt(33));
+    readFully(payload, offset + PackFile.RECORD_HEADER_SIZE);
+    return new StoredObject(header.get(32), payload.array());
+  }
+
+  // Number of records written
+  int count() {
+    return offsets.size();
+  }
+
+  // Bytes written so far
+  long size() {
+    return size;
+  }
+
+  // Force the records written so far to disk
+  void force() throws IOException {
+    channel.force(false);
+  }
+
+  // Make the pack durable, write its index and open it mapped; the writer stays readable until closed
+  PackFile seal() throws IOException {
+    channel.force(true);
+    PackFile.writeIndex(path, new TreeMap<>(offsets));
+    return PackFile.open(path, number);
+  }
+
+  // Release the pack once it is sealed
+  void close() throws IOException {
+    lock.release();
+    channel.close();
+  }
+
+  // Close and delete a pack that holds nothing worth keeping
+  void discard() throws IOException {
+    lock.release();
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+
+  // Hash of an intact record at an offset, or null if the record is torn or corrupt
+  private String checkedHashAt(long offset, long end) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(PackFile.RECORD_HEADER_SIZE);
+    readFully(header, offset);
+    int length = header.getInt(33);
+    if (length < 0 || offset + PackFile.RECORD_HEADER_SIZE + length + PackFile.CHECKSUM_SIZE > end) {
+      return null;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    readFully(payload, offset + PackFile.RECORD_HEADER_SIZE);
+    ByteBuffer checksum = ByteBuffer.allocate(PackFile.CHECKSUM_SIZE);
+    readFully(checksum, offset + PackFile.RECORD_HEADER_SIZE + length);
+    if (PackFile.checksum(header.array(), payload.array()) != checksum.getInt(0)) {
+      return null;
+    }
+    return BlobStore.toHex(Arrays.copyOf(header.array(), 32));
+  }
+
+  // Length of the record at an offset, including its header and checksum
+  private long recordLength(long offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset + 33);
+    return PackFile.RECORD_HEADER_SIZE + length.getInt(0) + PackFile.CHECKSUM_SIZE;
+  }
+
+  // Write the whole buffer at the end of the pack
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      size += channel.write(buffer, size);
+    }
+  }
+
+  // Read until the buffer is full or the file ends
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      position += read;
+    }
+  }
+}
+
+class PackObjectStore extends ObjectStore {
+  // The active pack is sealed and indexed once it grows past this size
+  private static final long SEAL_BYTES = Long.getLong("cvhub.pack.sealBytes", 64L * 1024 * 1024);
+  // More trailing packs smaller than SEAL_BYTES than this are merged into one
+  private static final int MAX_SMALL_PACKS = Integer.getInteger("cvhub.pack.maxSmallPacks", 8);
+
+  // Lookups read the view without the lock; writers take the lock and publish a new view when the packs change
+  private final Path directory; // Directory holding the packs
+  private final List<PackFile> packs; // Sealed packs in lookup order, oldest first
+  private PackWriter active; // Pack this process appends to, created on the first write
+  private int lastNumber; // Highest pack number seen in the directory
+  private volatile View view; // Packs as of the last change, replaced as a whole
+
+  // The packs a lookup searches, never changed once published
+  private static class View {
+    final List<PackFile> packs; // Sealed packs in lookup order, oldest first
+    final PackWriter active; // Pack being appended to, or null
+
+    View(List<PackFile> packs, PackWriter active) {
+      this.packs = packs;
+      this.active = active;
+    }
+  }
+
+  // Constructor to initialize a store over already opened packs
+  private PackObjectStore(Path directory, List<PackFile> packs, int lastNumber) {
+    this.directory = directory;
+    this.packs = packs;
+    this.lastNumber = lastNumber;
+    publish();
+  }
+
+  // Open every sealed pack in a directory, indexing packs left behind by processes that did not exit cleanly
+  static PackObjectStore open(Path directory) throws IOException {
+    List<PackFile> packs = new ArrayList<>();
+    int lastNumber = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "pack-*.pack")) {
+      for (Path path : files) {
+        int number;
+        try {
+          String name = path.getFileName().toString();
+          number = Integer.parseInt(name.substring("pack-".length(), name.length() - ".pack".length()));
+        } catch (NumberFormatException e) {
+          continue; // Not written by the hub
+        }
+        lastNumber = Math.max(lastNumber, number);
+        try {
+          if (Files.exists(PackFile.indexPath(path))) {
+            packs.add(PackFile.open(path, number));
+            continue;
+          }
+          PackWriter leftover = PackWriter.recover(path, number);
+          if (leftover != null && leftover.count() > 0) {
+            packs.add(leftover.seal());
+            leftover.close();
+          } else if (leftover != null) {
+            leftover.discard();
+          }
+        } catch (NoSuchFileException e) {
+          // Merged away by another process while listing
+        }
+      }
+    }
+    packs.sort(Comparator.comparingLong((PackFile pack) -> pack.order).thenComparingInt(pack -> pack.number));
+    return new PackObjectStore(directory, packs, lastNumber);
+  }
+
+  @Override
+  StoredObject read(String hash) {
+    View current = view;
+    try {
+      Long offset = current.active == null ? null : current.active.offsetOf(hash);
+      if (offset != null) {
+        return current.active.readAt(offset);
+      }
+    } catch (ClosedChannelException e) {
+      if (current != view) {
+        return read(hash); // Sealed meanwhile, the new view finds it in the sealed pack
+      }
+      throw new UncheckedIOException("Error reading the active object pack", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error reading the active object pack", e);
+    }
+    long[] key = PackFile.key(hash);
+    for (int i = current.packs.size() - 1; i >= 0; i--) {
+      long offset = current.packs.get(i).find(key); // Newest pack first, so the latest form of a blob wins
+      if (offset >= 0) {
+        return current.packs.get(i).readAt(offset);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  byte typeOf(String hash) {
+    View current = view;
+    try {
+      Long offset = current.active == null ? null : current.active.offsetOf(hash);
+      if (offset != null) {
+        return current.active.typeAt(offset);
+      }
+    } catch (ClosedChannelException e) {
+      if (current != view) {
+        return typeOf(hash);
+      }
+      throw new UncheckedIOException("Error reading the active object pack", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error reading the active object pack", e);
+    }
+    long[] key = PackFile.key(hash);
+    for (int i = current.packs.size() - 1; i >= 0; i--) {
+      long offset = current.packs.get(i).find(key);
+      if (offset >= 0) {
+        return current.packs.get(i).typeAt(offset);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  synchronized void write(String hash, byte type, byte[] payload) throws IOException {
+    if (active == null) {
+      active = createPack(); // Each process appends to a pack of its own
+      publish();
+    }
+    active.append(hash, type, payload); // Readable as soon as its offset is recorded
+    if (active.size() >= SEAL_BYTES) {
+      sealActive();
+    }
+  }
+
+  @Override
+  void remove(String hash) {
+    // Packs are append-only; unreferenced records are dropped by compact
+  }
+
+  @Override
+  void sync() throws IOException {
+    PackWriter writer = view.active;
+    if (writer == null) {
+      return; // Everything written is in sealed packs, which are forced when sealed
+    }
+    try {
+      writer.force(); // Outside the lock so readers and writers are not held up by the disk
+    } catch (ClosedChannelException e) {
+      // Sealed meanwhile, which forced it
+    }
+  }
+
+  @Override
+  synchronized int compact(Predicate<String> keep) throws IOException {
+    sealActive();
+    if (packs.isEmpty()) {
+      return 0;
+    }
+    int[] dropped = new int[1];
+    PackFile merged = merge(new ArrayList<>(packs), hash -> {
+      boolean kept = keep.test(hash);
+      dropped[0] += kept ? 0 : 1;
+      return kept;
+    });
+    packs.clear();
+    if (merged != null) {
+      packs.add(merged);
+    }
+    publish();
+    return dropped[0];
+  }
+
+  @Override
+  synchronized String describe() {
+    long records = active == null ? 0 : active.count();
+    long bytes = active == null ? 0 : active.size();
+    for (PackFile pack : packs) {
+      records += pack.count();
+      bytes += pack.size();
+    }
+    return String.format("%d objects in %d packs, %.1f MB on disk", records, packs.size() + (active == null ? 0 : 1),
+        bytes / (1024.0 * 1024.0));
+  }
+
+  // Seal the active pack so everything this process wrote is indexed; called at exit
+  public synchronized void close() throws IOException {
+    sealActive();
+  }
+
+  // Seal and index the active pack, if this process wrote anything
+  private void sealActive() throws IOException {
+    if (active != null) {
+      PackWriter sealed = active;
+      packs.add(sealed.seal());
+      active = null;
+      publish(); // Lookups move to the sealed pack before the writer is closed
+      sealed.close();
+      mergeSmallPacks();
+    }
+  }
+
+  // Make the current packs visible to lookups
+  private void publish() {
+    view = new View(List.copyOf(packs), active);
+  }
+
+  // Merge the newest packs once too many small ones have piled up, so a lookup checks only a few indexes
+  private void mergeSmallPacks() throws IOException {
+    int first = packs.size();
+    while (first > 0 && packs.get(first - 1).size() < SEAL_BYTES) {
+      first--;
+    }
+    if (packs.size() - first <= MAX_SMALL_PACKS) {
+      return;
+    }
+    List<PackFile> run = new ArrayList<>(packs.subList(first, packs.size()));
+    PackFile merged = merge(run, hash -> true);
+    packs.subList(first, packs.size()).clear();
+    packs.add(merged);
+    publish();
+  }
+
+  // Copy the newest record of every kept hash in the given packs into a new pack and delete the old ones
+  private PackFile merge(List<PackFile> run, Predicate<String> keep) throws IOException {
+    PackWriter writer = createPack(run.get(run.size() - 1).order); // Takes the place of the packs it replaces
+    Set<String> seen = new HashSet<>();
+    for (int i = run.size() - 1; i >= 0; i--) {
+      PackFile pack = run.get(i);
+      for (int position = 0; position < pack.count(); position++) {
+        String hash = pack.hashAt(position);
+        if (seen.add(hash) && keep.test(hash)) {
+          StoredObject object = pack.readAt(pack.offsetAt(position));
+          writer.append(hash, object.getType(), object.getPayload());
+        }
+      }
+    }
+    PackFile merged = null;
+    if (writer.count() > 0) {
+      merged = writer.seal();
+      writer.close();
+    } else {
+      writer.discard();
+    }
+    for (PackFile pack : run) {
+      pack.delete();
+    }
+    return merged;
+  }
+
+  // Create a pack that sorts after every pack seen so far
+  private PackWriter createPack() throws IOException {
+    return createPack(-1);
+  }
+
+  // Create a pack with the next free number and the given order, or its own number as order if negative
+  private PackWriter createPack(long order) throws IOException {
+    while (true) {
+      int number = ++lastNumber;
+      PackWriter writer = PackWriter.create(directory, number, order < 0 ? number : order);
+      if (writer != null) {
+        return writer;
+      }
+    }
+  }
+}
+
+class ContentChunker {
+  // Chunk size bounds; cut points are normalized towards the average size
+  static final int MIN_SIZE = 16 * 1024;
+  static final int AVERAGE_SIZE = 64 * 1024;
+  static final int MAX_SIZE = 256 * 1024;
+  // Gear hash values for each byte value, fixed so the same content always cuts at the same places
+  private static final long[] GEAR = new long[256];
+  // Harder condition before the average size, easier one after it (FastCDC normalized chunking)
+  private static final long MASK_SMALL = -1L << (64 - 18);
+  private static final long MASK_LARGE = -1L << (64 - 14);
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x6364632dL);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  // Length of the chunk starting at from, given the bytes available; cuts depend only on nearby content
+  static int cut(byte[] data, int from, int available) {
+    if (available <= MIN_SIZE) {
+      return available;
+    }
+    int limit = Math.min(available, MAX_SIZE);
+    int normal = Math.min(AVERAGE_SIZE, limit);
+    long fingerprint = 0;
+    int i = MIN_SIZE; // No cut can fall before the minimum size, so those bytes are skipped
+    for (; i < normal; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[from + i] & 0xff];
+      if ((fingerprint & MASK_SMALL) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < limit; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[from + i] & 0xff];
+      if ((fingerprint & MASK_LARGE) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+}
+
+class BinaryDelta {
+  // Length of the blocks of the base that are indexed for matching
+  private static final int WINDOW = 16;
+  // Multiplier of the rolling hash
+  private static final int PRIME = 0x01000193;
+  // Operation tags
+  private static final int COPY = 0;
+  private static final int INSERT = 1;
+
+  // Encode target as copies from base and inserted bytes, or return null if that would not save a quarter
+  public static byte[] create(byte[] base, byte[] target) {
+    int blocks = base.length / WINDOW;
+    int[] positions = new int[Integer.highestOneBit(Math.max(blocks, 1)) * 4]; // Base offset + 1 per slot
+    int[] hashes = new int[positions.length];
+    int mask = positions.length - 1;
+    for (int p = 0; p + WINDOW <= base.length; p += WINDOW) {
+      int hash = hash(base, p);
+      int slot = mix(hash) & mask;
+      while (positions[slot] != 0 && hashes[slot] != hash) {
+        slot = (slot + 1) & mask;
+      }
+      if (positions[slot] == 0) {
+        positions[slot] = p + 1; // Repeated blocks keep their first offset so probe chains stay short
+        hashes[slot] = hash;
+      }
+    }
+    int power = 1; // PRIME ^ (WINDOW - 1), to remove the byte leaving the window
+    for (int i = 1; i < WINDOW; i++) {
+      power *= PRIME;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarint(out, target.length);
+    int literal = 0; // Start of the bytes not covered by a copy yet
+    int expected = 0; // Base offset right after the last copy, where unchanged content usually continues
+    int i = 0;
+    int hash = target.length >= WINDOW ? hash(target, 0) : 0;
+    while (i + WINDOW <= target.length) {
+      int match = -1;
+      if (matches(base, expected + (i - literal), target, i)) {
+        match = expected + (i - literal); // Bytes were replaced in place
+      } else if (matches(base, expected, target, i)) {
+        match = expected; // Bytes were inserted
+      } else {
+        match = find(base, positions, hashes, mask, hash, target, i);
+      }
+      if (match < 0) {
+        if (i + WINDOW < target.length) {
+          hash = (hash - target[i] * power) * PRIME + target[i + WINDOW]; // Slide the window by one byte
+        }
+        i++;
+        continue;
+      }
+      int back = 0;
+      while (i - back > literal && match - back > 0 && target[i - back - 1] == base[match - back - 1]) {
+        back++; // Grow the copy backwards over bytes that were about to be inserted
+      }
+      int from = i - back;
+      int baseFrom = match - back;
+      int equal = Arrays.mismatch(target, from, target.length, base, baseFrom, base.length);
+      int length = equal < 0 ? Math.min(target.length - from, base.length - baseFrom) : equal;
+      writeInsert(out, target, literal, from);
+      out.write(COPY);
+      writeVarint(out, baseFrom);
+      writeVarint(out, length);
+      i = from + length;
+      literal = i;
+      expected = baseFrom + length;
+      if (i + WINDOW <= target.length) {
+        hash = hash(target, i);
+      }
+      if (out.size() >= target.length - target.length / 4) {
+        return null; // Not worth storing as a delta
+      }
+    }
+    writeInsert(out, target, literal, target.length);
+    return out.size() < target.length - target.length / 4 ? out.toByteArray() : null;
+  }
+
+  // Rebuild the target from its base and delta
+  public static byte[] apply(byte[] base, byte[] delta) {
+    int[] at = {0};
+    byte[] target = new byte[readVarint(delta, at)];
+    int written = 0;
+    while (at[0] < delta.length) {
+      int op = delta[at[0]++];
+      if (op == COPY) {
+        int from = readVarint(delta, at);
+        int length = readVarint(delta, at);
+        System.arraycopy(base, from, target, written, length);
+        written += length;
+      } else {
+        int length = readVarint(delta, at);
+        System.arraycopy(delta, at[0], target, written, length);
+        at[0] += length;
+        written += length;
+      }
+    }
+    return target;
+  }
+
+  // Find a base offset whose block equals the target window at i, or -1
+  private static int find(byte[] base, int[] positions, int[] hashes, int mask, int hash, byte[] target, int i) {
+    for (int slot = mix(hash) & mask; positions[slot] != 0; slot = (slot + 1) & mask) {
+      int p = positions[slot] - 1;
+      if (hashes[slot] == hash && Arrays.equals(base, p, p + WINDOW, target, i, i + WINDOW)) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  // Check whether the base holds the target window at i at the given offset
+  private static boolean matches(byte[] base, int p, byte[] target, int i) {
+    return p + WINDOW <= base.length && Arrays.equals(base, p, p + WINDOW, target, i, i + WINDOW);
+  }
+
+  // Polynomial hash of one window
+  private static int hash(byte[] content, int from) {
+    int hash = 0;
+    for (int i = from; i < from + WINDOW; i++) {
+      hash = hash * PRIME + content[i];
+    }
+    return hash;
+  }
+
+  // Spread hash bits before masking
+  private static int mix(int hash) {
+    return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+  }
+
+  // Write the bytes in [from, to) as an insert operation, if there are any
+  private static void writeInsert(ByteArrayOutputStream out, byte[] content, int from, int to) {
+    if (to > from) {
+      out.write(INSERT);
+      writeVarint(out, to - from);
+      out.write(content, from, to - from);
+    }
+  }
+
+  // Write a non-negative int in 7-bit groups
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  // Read an int written by writeVarint, advancing the position
+  private static int readVarint(byte[] content, int[] at) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = content[at[0]++];
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+}
+
+class IngestResult {
+  private final String hash; // Hash of the stored content
+  private final long bytes; // Number of bytes read from the file
+  private final long nanos; // Time spent reading and hashing the file
+  private final FileStat stat; // Metadata of the file as it was before it was read
+  private final long storedBytes; // Bytes that were not in the store before
+
+  // Constructor to initialize the outcome of one file ingestion
+  IngestResult(String hash, long bytes, long nanos, FileStat stat, long storedBytes) {
+    this.hash = hash;
+    this.bytes = bytes;
+    this.nanos = nanos;
+    this.stat = stat;
+    this.storedBytes = storedBytes;
+  }
+
+  // Getter for the content hash
+  public String getHash() {
+    return hash;
+  }
+
+  // Getter for the number of bytes read
+  public long getBytes() {
+    return bytes;
+  }
+
+  // Getter for the elapsed time in nanoseconds
+  public long getNanos() {
+    return nanos;
+  }
+
+  // Getter for the number of bytes added to the store
+  public long getStoredBytes() {
+    return storedBytes;
+  }
+
+  // Getter for the file metadata captured at ingestion
+  public FileStat getStat() {
+    return stat;
+  }
+
+  // Ingestion throughput in megabytes per second
+  public double getMegabytesPerSecond() {
+    if (nanos <= 0) {
+      return 0; // Too fast to measure
+    }
+    return (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0);
+  }
+}
+
+class FileStat {
+  // Files modified this close to when their metadata was captured are hashed again, since a second
+  // write within the file system's timestamp granularity would leave the metadata unchanged
+  private static final long RACY_WINDOW_MILLIS = 2000;
+
+  private final long size; // File size in bytes
+  private final long modifiedMillis; // Last modification time
+  private final Object fileKey; // Device and inode where the platform provides them; a string once saved
+  private final long capturedMillis; // When the metadata was read
+  private final String hash; // Hash of the content the metadata belongs to, or null if not known yet
+
+  // Constructor to initialize a metadata snapshot
+  private FileStat(long size, long modifiedMillis, Object fileKey, long capturedMillis, String hash) {
+    this.size = size;
+    this.modifiedMillis = modifiedMillis;
+    this.fileKey = fileKey;
+    this.capturedMillis = capturedMillis;
+    this.hash = hash;
+  }
+
+  // Read the metadata of a file
+  public static FileStat read(Path path) throws IOException {
+    long now = System.currentTimeMillis();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    if (!attributes.isRegularFile()) {
+      throw new NoSuchFileException(path.toString(), null, "not a regular file");
+    }
+    return new FileStat(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey(), now, null);
+  }
+
+  // Compare file keys; a key read back from disk is compared by its text
+  private boolean sameFile(Object currentKey) {
+    return Objects.equals(fileKey, currentKey)
+        || (fileKey instanceof String && fileKey.equals(String.valueOf(currentKey)));
+  }
+
+  // Write the metadata and its hash to a stream
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeLong(size);
+    out.writeLong(modifiedMillis);
+    out.writeUTF(String.valueOf(fileKey));
+    out.writeLong(capturedMillis);
+    out.writeUTF(hash);
+  }
+
+  // Read metadata written by writeTo
+  public static FileStat readFrom(DataInputStream in) throws IOException {
+    return new FileStat(in.readLong(), in.readLong(), in.readUTF(), in.readLong(), in.readUTF());
+  }
+
+  // The same metadata tied to the hash of the content that was read
+  public FileStat withHash(String hash) {
+    return new FileStat(size, modifiedMillis, fileKey, capturedMillis, hash);
+  }
+
+  // Getter for the content hash
+  public String getHash() {
+    return hash;
+  }
+
+  // Check whether a file still has this metadata and can be trusted to hold the same content
+  public boolean matches(FileStat current) {
+    return size == current.size && modifiedMillis == current.modifiedMillis
+        && sameFile(current.fileKey) && modifiedMillis < capturedMillis - RACY_WINDOW_MILLIS;
+  }
+}
+
+class StatCache {
+  private final Map<String, FileStat> stats; // Last known metadata of tracked files keyed by path
+  private final Path file; // File the cache is saved to, or null when it is kept in memory only
+  private boolean loaded; // Whether the saved cache has been read
+  private volatile boolean dirty; // Whether entries changed since the cache was last saved
+
+  // Constructor to initialize a cache saved to the given file, or kept in memory if it is null
+  StatCache(Path file) {
+    this.stats = new ConcurrentHashMap<>();
+    this.file = file;
+    this.loaded = file == null;
+  }
+
+  // Get the cache file of a repository
+  public static Path forRepository(String repoName) throws IOException {
+    String fileName = URLEncoder.encode(repoName, StandardCharsets.UTF_8) + ".stats";
+    return DataDirectory.subdirectory("stats").resolve(fileName);
+  }
+
+  // Get the metadata recorded for a path, or null
+  public FileStat get(String path) {
+    return stats.get(path);
+  }
+
+  // Record the metadata of a path
+  public void put(String path, FileStat stat) {
+    stats.put(path, stat);
+    dirty = true;
+  }
+
+  // Forget a path that is no longer tracked
+  public void remove(String path) {
+    if (stats.remove(path) != null) {
+      dirty = true;
+    }
+  }
+
+  // Read the saved cache once; entries recorded since startup take precedence, a damaged file is ignored
+  public synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        stats.putIfAbsent(path, FileStat.readFrom(in));
+      }
+    } catch (IOException e) {
+      dirty = true; // Rewritten on the next save
+    }
+  }
+
+  // Save the cache if it changed; the old file is replaced in one step
+  public synchronized void save() throws IOException {
+    if (file == null || !dirty) {
+      return;
+    }
+    dirty = false;
+    Map<String, FileStat> snapshot = new HashMap<>(stats);
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, FileStat> entry : snapshot.entrySet()) {
+        out.writeUTF(entry.getKey());
+        entry.getValue().writeTo(out);
+      }
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Delete the saved cache
+  public void delete() throws IOException {
+    if (file != null) {
+      Files.deleteIfExists(file);
+    }
+  }
+}
+
+class StatusResult {
+  private final List<String> modified; // Tracked paths whose content differs from the repository
+  private final List<String> deleted; // Tracked paths that no longer exist as files
+  private final List<String> unchanged; // Tracked paths whose content is the same
+  private final int rehashed; // Number of files whose content had to be read
+  private final long nanos; // Time taken by the whole check
+
+  // Constructor to initialize the outcome of a status check
+  StatusResult(List<String> modified, List<String> deleted, List<String> unchanged, int rehashed, long nanos) {
+    this.modified = modified;
+    this.deleted = deleted;
+    this.unchanged = unchanged;
+    this.rehashed = rehashed;
+    this.nanos = nanos;
+  }
+
+  // Getter for the modified paths, sorted
+  public List<String> getModified() {
+    return modified;
+  }
+
+  // Getter for the deleted paths, sorted
+  public List<String> getDeleted() {
+    return deleted;
+  }
+
+  // Getter for the unchanged paths, sorted
+  public List<String> getUnchanged() {
+    return unchanged;
+  }
+
+  // Getter for the number of files that were read and hashed
+  public int getRehashed() {
+    return rehashed;
+  }
+
+  // Getter for the elapsed time in nanoseconds
+  public long getNanos() {
+    return nanos;
+  }
+
+  // Check whether the working tree matches the repository
+  public boolean isClean() {
+    return modified.isEmpty() && deleted.isEmpty();
+  }
+
+  // Summary such as "3 modified, 1 deleted, 997 unchanged (4 re-hashed) in 12 ms"
+  @Override
+  public String toString() {
+    return String.format("%d modified, %d deleted, %d unchanged (%d re-hashed) in %d ms", modified.size(),
+        deleted.size(), unchanged.size(), rehashed, TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+}
+
+abstract class PageSource {
+  // Total length of the content in bytes
+  abstract long length();
+
+  // Byte at the given offset, used to find line breaks
+  abstract int at(long position);
+
+  // UTF-8 text between two byte offsets
+  abstract String slice(long from, long to);
+}
+
+class BufferPageSource extends PageSource {
+  private final ByteBuffer content; // Stored bytes being viewed
+
+  // Constructor to initialize the source over a buffer
+  private BufferPageSource(ByteBuffer content) {
+    this.content = content;
+  }
+
+  // View stored bytes without decoding or copying them
+  public static BufferPageSource wrap(byte[] content) {
+    return new BufferPageSource(ByteBuffer.wrap(content).asReadOnlyBuffer());
+  }
+
+  @Override
+  long length() {
+    return content.capacity();
+  }
+
+  @Override
+  int at(long position) {
+    return content.get((int) position);
+  }
+
+  @Override
+  String slice(long from, long to) {
+    byte[] bytes = new byte[(int) (to - from)];
+    content.get((int) from, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
+
+class ChunkedPageSource extends PageSource {
+  private final BlobStore store; // Store the chunks are loaded from
+  private final String[] chunks; // Chunk hashes in order
+  private final long[] offsets; // Offset of each chunk, followed by the total length
+  private int current = -1; // Index of the loaded chunk
+  private byte[] bytes; // Content of the loaded chunk
+
+  // Constructor to initialize the source over the chunks of a blob
+  ChunkedPageSource(BlobStore store, String[] chunks, long[] offsets) {
+    this.store = store;
+    this.chunks = chunks;
+    this.offsets = offsets;
+  }
+
+  @Override
+  long length() {
+    return offsets[chunks.length];
+  }
+
+  @Override
+  int at(long position) {
+    if (current < 0 || position < offsets[current] || position >= offsets[current + 1]) {
+      int index = Arrays.binarySearch(offsets, 0, chunks.length, position);
+      current = index >= 0 ? index : -index - 2; // Chunk containing the position
+      bytes = store.get(chunks[current]);
+    }
+    return bytes[(int) (position - offsets[current])];
+  }
+
+  @Override
+  String slice(long from, long to) {
+    byte[] line = new byte[(int) (to - from)];
+    for (int i = 0; i < line.length; i++) {
+      line[i] = (byte) at(from + i); // Lines may cross a chunk boundary
+    }
+    return new String(line, StandardCharsets.UTF_8);
+  }
+}
+
+class LruCache<K, V> {
+  private final long capacityBytes; // Upper bound on the total weight of cached values
+  private final ToLongFunction<V> weigher; // Estimates the heap size of a value in bytes
+  private final LinkedHashMap<K, V> entries; // Entries in least recently used first order
+  private long usedBytes; // Current total weight of cached values
+  private long hits; // Lookups served from the cache
+  private long misses; // Lookups that found nothing
+  private long evictions; // Entries dropped to stay under capacity
+
+  // Constructor to initialize an empty cache bounded by a number of bytes
+  LruCache(long capacityBytes, ToLongFunction<V> weigher) {
+    this.capacityBytes = capacityBytes;
+    this.weigher = weigher;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true); // Access order makes the eldest entry the LRU one
+  }
+
+  // Get a cached value and mark it as recently used, or null on a miss
+  public synchronized V get(K key) {
+    V value = entries.get(key);
+    if (value != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return value;
+  }
+
+  // Add a value, evicting least recently used entries until the cache fits its capacity
+  public synchronized void put(K key, V value) {
+    long weight = weigher.applyAsLong(value);
+    if (weight > capacityBytes) {
+      return; // Would evict everything else and still not fit
+    }
+    V previous = entries.put(key, value);
+    if (previous != null) {
+      usedBytes -= weigher.applyAsLong(previous);
+    }
+    usedBytes += weight;
+    Iterator<V> eldest = entries.values().iterator();
+    while (usedBytes > capacityBytes && eldest.hasNext()) {
+      usedBytes -= weigher.applyAsLong(eldest.next());
+      eldest.remove(); // Drop the least recently used entry
+      evictions++;
+    }
+  }
+
+  // Remove an entry if present
+  public synchronized void invalidate(K key) {
+    V previous = entries.remove(key);
+    if (previous != null) {
+      usedBytes -= weigher.applyAsLong(previous);
+    }
+  }
+
+  // Getter for the number of cache hits
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  // Getter for the number of cache misses
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  // Getter for the number of evicted entries
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  // Getter for the bytes currently cached
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  // Getter for the configured capacity in bytes
+  public long getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  // Summary of the cache counters for display
+  public synchronized String describe() {
+    long lookups = hits + misses;
+    return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d bytes used", hits, misses,
+        lookups == 0 ? 0.0 : hits * 100.0 / lookups, evictions, usedBytes, capacityBytes);
+  }
+}
+
+class PagedViewer {
+  static final int PAGE_LINES = 40; // Rows shown per page
+  static final int MAX_LINE_WIDTH = 4096; // Longer lines are split across rows, so a page never reads past its rows
+  private static final int CHECKPOINT_INTERVAL = 1024; // Remember the offset of every 1024th line
+
+  private final PageSource source; // Content being viewed
+  private final TreeMap<Long, Long> checkpoints; // Line number to byte offset, filled in as lines are scanned
+  private long offset; // Offset of the first line on the current page
+  private long line; // Line number of the first row on the page, or -1 if unknown
+  private long nextLine; // Line number of the row after the page, or -1 if unknown
+
+  // Constructor to initialize the viewer at the start of the content
+  PagedViewer(PageSource source) {
+    this.source = source;
+    this.checkpoints = new TreeMap<>();
+    this.checkpoints.put(1L, 0L); // Line 1 starts at offset 0
+    this.offset = 0;
+    this.line = 1;
+  }
+
+  // Show pages and handle navigation commands until the user quits
+  public void run(Scanner in, PrintStream out) {
+    while (true) {
+      long next = printPage(out);
+      out.print("\n\t\t\t\t\t\t\t\t\t   [n]ext  [p]rev  [g <line>]  [o <byte offset>]  [q]uit: ");
+      if (!in.hasNextLine()) {
+        return; // Input closed
+      }
+      String[] command = in.nextLine().trim().split("\\s+");
+      try {
+        switch (command[0].toLowerCase()) {
+          case "":
+          case "n":
+            if (next < source.length()) {
+              line = nextLine;
+              offset = next; // Continue where the page ended
+            } else {
+              out.println("\n\t\t\t\t\t\t\t\t\t   End of file.");
+            }
+            break;
+          case "p":
+            previousPage();
+            break;
+          case "g":
+            goToLine(Long.parseLong(command[1]), out);
+            break;
+          case "o":
+            goToOffset(Long.parseLong(command[1]), out);
+            break;
+          case "q":
+            return;
+          default:
+            out.println("\n\t\t\t\t\t\t\t\t\t   Unknown command.");
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        out.println("\n\t\t\t\t\t\t\t\t\t   Please enter a number after the command.");
+      }
+    }
+  }
+
+  // Print the current page and return the offset just past it
+  long printPage(PrintStream out) {
+    long position = offset;
+    long number = line;
+    out.println("\n\t\t\t\t\t\t\t\t\t   -- byte " + offset + " of " + source.length() + ", line "
+        + (line < 0 ? "?" : String.valueOf(line)) + " --\n");
+    for (int i = 0; i < PAGE_LINES && position < source.length(); i++) {
+      long end = rowEnd(position);
+      out.println(source.slice(position, end));
+      if (end < source.length() && source.at(end) == '\n') {
+        position = end + 1; // Skip the line break
+        if (number > 0) {
+          number++;
+          remember(number, position);
+        }
+      } else {
+        position = end; // The rest of a long line goes on the next row
+      }
+    }
+    nextLine = number;
+    return position;
+  }
+
+  // Move back one page of rows from the current position
+  private void previousPage() {
+    long position = offset;
+    int moved = 0;
+    int lines = 0;
+    while (moved < PAGE_LINES && position > 0) {
+      lines += source.at(position - 1) == '\n' ? 1 : 0; // Crossing into the line before, not a row of the same one
+      position = lineStart(position - 1); // Start of the row before the current one
+      moved++;
+    }
+    offset = position;
+    line = line < 0 ? (position == 0 ? 1 : -1) : line - lines;
+  }
+
+  // Jump to a line number, scanning forward from the nearest known checkpoint
+  private void goToLine(long target, PrintStream out) {
+    if (target < 1) {
+      out.println("\n\t\t\t\t\t\t\t\t\t   Line numbers start at 1.");
+      return;
+    }
+    Map.Entry<Long, Long> start = checkpoints.floorEntry(target);
+    long number = start.getKey();
+    long position = start.getValue();
+    while (number < target) {
+      long end = lineEnd(position);
+      if (end + 1 >= source.length()) { // No line starts after this one
+        out.println("\n\t\t\t\t\t\t\t\t\t   The file has only " + number + " lines.");
+        return;
+      }
+      position = end + 1;
+      number++;
+      remember(number, position);
+    }
+    offset = position;
+    line = number;
+  }
+
+  // Jump to the line containing a byte offset
+  private void goToOffset(long target, PrintStream out) {
+    if (target < 0 || target >= Math.max(1, source.length())) {
+      out.println("\n\t\t\t\t\t\t\t\t\t   Byte offset must be between 0 and " + Math.max(0, source.length() - 1)
+          + ".");
+      return;
+    }
+    offset = lineStart(target);
+    line = offset == 0 ? 1 : -1; // The line number is not known without scanning from the start
+  }
+
+  // Find the end of the row starting at the given position: the line break, or at most one line width further,
+  // kept off the middle of a UTF-8 sequence
+  private long rowEnd(long position) {
+    long limit = Math.min(source.length(), position + MAX_LINE_WIDTH);
+    long end = position;
+    while (end < limit && source.at(end) != '\n') {
+      end++;
+    }
+    if (end == limit && end < source.length()) {
+      for (int i = 0; i < 3 && end > position + 1 && (source.at(end) & 0xc0) == 0x80; i++) {
+        end--; // A continuation byte would start the next row, split before its lead byte instead
+      }
+    }
+    return end;
+  }
+
+  // Find the end of the line starting at the given position
+  private long lineEnd(long position) {
+    long length = source.length();
+    while (position < length && source.at(position) != '\n') {
+      position++;
+    }
+    return position;
+  }
+
+  // Find the start of the line containing the given position, looking back at most one line width
+  private long lineStart(long position) {
+    long limit = Math.max(0, position - MAX_LINE_WIDTH);
+    while (position > limit && source.at(position - 1) != '\n') {
+      position--;
+    }
+    return position;
+  }
+
+  // Record the offset of a line so later jumps can start near it
+  private void remember(long number, long position) {
+    if (number % CHECKPOINT_INTERVAL == 1) {
+      checkpoints.put(number, position);
+    }
+  }
+}
+
+class DataDirectory {
+  // Get the directory holding everything the hub keeps on disk
+  public static Path root() {
+    return Paths.get(System.getProperty("cvhub.home", "cvhub-data")); // Relative to the working directory by default
+  }
+
+  // Get a subdirectory of the data directory, creating it if needed
+  public static Path subdirectory(String name) throws IOException {
+    return Files.createDirectories(root().resolve(name));
+  }
+}
+
+class CommitJournal {
+  private static final String SUFFIX = ".journal"; // File extension of journal files
+  static final int HEADER_SIZE = 8; // Length and checksum in front of every record
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024; // Larger lengths can only come from a torn header
+  private static final int READ_BUFFER_SIZE = 256 * 1024; // Replay reads many small records through one buffer
+
+  private final Path path; // File the records are appended to
+  private final long groupCommitNanos; // How long a sync leader waits for more records to join its fsync
+  private FileChannel channel; // Open channel positioned at the end of the journal
+  private long written; // Bytes appended so far
+  private long durable; // Bytes known to have reached the disk
+  private boolean syncing; // Whether a thread is currently running an fsync for a group
+
+  // Constructor to initialize a journal at the given path, using the configured group-commit window
+  CommitJournal(Path path) {
+    this(path, Long.getLong("cvhub.journal.groupCommitMs", 2));
+  }
+
+  // Constructor to initialize a journal with an explicit group-commit window in milliseconds
+  CommitJournal(Path path, long groupCommitMillis) {
+    this.path = path;
+    this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+  }
+
+  // Get the journal belonging to a repository
+  public static CommitJournal forRepository(String repoName) throws IOException {
+    return new CommitJournal(pathFor(repoName));
+  }
+
+  // Find the stored name of a repository whose journal is on disk, ignoring case, or null if there is none
+  public static String findRepositoryName(String repoName) throws IOException {
+    if (Files.isRegularFile(pathFor(repoName))) {
+      return repoName; // Exact name, no directory listing needed
+    }
+    for (String name : repositoryNames()) {
+      if (name.equalsIgnoreCase(repoName)) {
+        return name; // Names are unique regardless of case
+      }
+    }
+    return null;
+  }
+
+  // Get the journal file of a repository
+  private static Path pathFor(String repoName) throws IOException {
+    String fileName = URLEncoder.encode(repoName, StandardCharsets.UTF_8) + SUFFIX; // Keep any repository name file-safe
+    return DataDirectory.subdirectory("journals").resolve(fileName);
+  }
+
+  // List the names of all repositories that have a journal on disk
+  public static List<String> repositoryNames() throws IOException {
+    List<String> names = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(DataDirectory.subdirectory("journals"), "*" + SUFFIX)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        names.add(URLDecoder.decode(fileName.substring(0, fileName.length() - SUFFIX.length()), StandardCharsets.UTF_8));
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  // Create the journal file if it does not exist yet
+  public synchronized void create() throws IOException {
+    open();
+  }
+
+  // Read every intact record, stopping at the first torn or corrupt one and cutting it off
+  public synchronized List<byte[]> replay() throws IOException {
+    List<byte[]> records = new ArrayList<>();
+    replay((payload, position) -> records.add(payload));
+    return records;
+  }
+
+  // Pass every intact record and the position it starts at to a visitor, cutting off a torn tail; a damaged record
+  // with more data after it fails the replay and leaves the file as it is, since those records were acknowledged
+  public synchronized void replay(ObjLongConsumer<byte[]> visitor) throws IOException {
+    open();
+    long size = channel.size();
+    long position = 0;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel.position(0)), READ_BUFFER_SIZE)); // Not closed
+    while (position + HEADER_SIZE <= size) {
+      int length = in.readInt();
+      int checksum = in.readInt();
+      if (length >= 0 && length <= MAX_RECORD_SIZE && position + HEADER_SIZE + length > size) {
+        break; // Torn tail: the record was not completely written
+      }
+      if (length < 0 || length > MAX_RECORD_SIZE) {
+        throw corrupt(position, size);
+      }
+      byte[] payload = in.readNBytes(length);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (payload.length < length || (int) crc.getValue() != checksum) {
+        if (position + HEADER_SIZE + length == size) {
+          break; // Torn tail: the last record was written but not all of it reached the disk
+        }
+        throw corrupt(position, size);
+      }
+      visitor.accept(payload, position);
+      position += HEADER_SIZE + length;
+    }
+    if (position < size) {
+      channel.truncate(position); // Drop the torn tail so new records follow the last good one
+      channel.force(true);
+    }
+    channel.position(position);
+    written = position;
+    durable = position;
+  }
+
+  // Error for a damaged record that is not the last one in the journal
+  private IOException corrupt(long position, long size) {
+    return new IOException("Corrupt journal record at " + position + " in " + path + ", followed by "
+        + (size - position) + " more bytes; the journal was left unchanged");
+  }
+
+  // Read the record starting at a position reported by replay
+  public synchronized byte[] read(long position) throws IOException {
+    open();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(header, position);
+    header.flip();
+    int length = header.remaining() == HEADER_SIZE ? header.getInt() : -1;
+    if (length < 0 || length > MAX_RECORD_SIZE) {
+      throw new IOException("No journal record at " + position + " in " + path);
+    }
+    int checksum = header.getInt();
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    readFully(payload, position + HEADER_SIZE);
+    CRC32 crc = new CRC32();
+    crc.update(payload.array());
+    if (payload.hasRemaining() || (int) crc.getValue() != checksum) {
+      throw new IOException("Corrupt journal record at " + position + " in " + path);
+    }
+    return payload.array();
+  }
+
+  // Append one record and return once it is durable, sharing the fsync with concurrent appends
+  public void append(byte[] payload) throws IOException {
+    sync(write(payload));
+  }
+
+  // Append one record without waiting for it to reach the disk and return the position it ends at
+  public long write(byte[] payload) throws IOException {
+    return write(List.of(payload));
+  }
+
+  // Append records back to back with one write and return the position the last one ends at
+  public long write(List<byte[]> payloads) throws IOException {
+    synchronized (this) {
+      open();
+      int size = 0;
+      for (byte[] payload : payloads) {
+        size += HEADER_SIZE + payload.length;
+      }
+      ByteBuffer records = ByteBuffer.allocate(size);
+      CRC32 crc = new CRC32();
+      for (byte[] payload : payloads) {
+        crc.reset();
+        crc.update(payload);
+        records.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+      }
+      records.flip();
+      try {
+        while (records.hasRemaining()) {
+          channel.write(records);
+        }
+      } catch (IOException e) {
+        try {
+          channel.truncate(written); // Drop the torn bytes so the next record follows the last whole one
+          channel.position(written);
+        } catch (IOException undo) {
+          e.addSuppressed(undo);
+          channel.close(); // Reopened by the next write; a replay then reports the damage instead of hiding it
+          channel = null;
+        }
+        throw e;
+      }
+      written += size;
+      return written; // These records are durable once an fsync covers this position
+    }
+  }
+
+  // Wait until the journal is on disk up to the given position, running the fsync if no one else is
+  public void sync(long end) throws IOException {
+    while (true) {
+      synchronized (this) {
+        while (durable < end && syncing) {
+          try {
+            wait(); // Another thread's fsync may cover this record
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal to sync");
+          }
+        }
+        if (durable >= end) {
+          return; // Covered by an earlier group
+        }
+        syncing = true; // This thread leads the next group
+      }
+      long target = 0;
+      boolean synced = false;
+      try {
+        if (groupCommitNanos > 0) {
+          LockSupport.parkNanos(groupCommitNanos); // Let concurrent commits join this fsync
+        }
+        synchronized (this) {
+          target = written; // Everything appended so far is part of this group
+        }
+        channel.force(false);
+        synced = true;
+      } finally {
+        synchronized (this) {
+          if (synced) {
+            durable = Math.max(durable, target);
+          }
+          syncing = false;
+          notifyAll(); // Wake the followers of this group
+        }
+      }
+    }
+  }
+
+  // Close the journal file; it is opened again by the next append or replay
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  // Close the journal and delete its file
+  public synchronized void delete() throws IOException {
+    close();
+    Files.deleteIfExists(path);
+  }
+
+  // Open the journal for appending if it is not open yet
+  private void open() throws IOException {
+    if (channel == null) {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      written = channel.size();
+      durable = written;
+      channel.position(written);
+    }
+  }
+
+  // Read until the buffer is full or the file ends
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      position += read;
+    }
+  }
+}
+
+class FileChange {
+  // Kinds of change a commit can make to a path
+  public static final byte ADD = 1;
+  public static final byte REMOVE = 2;
+
+  private final byte type; // Whether the path was added or removed
+  private final String path; // Full path of the changed file
+  private final String hash; // Hash of the new content, empty for a removal
+
+  // Constructor to initialize a single change to a path
+  FileChange(byte type, String path, String hash) {
+    this.type = type;
+    this.path = path;
+    this.hash = hash;
+  }
+
+  // Getter for the change type
+  public byte getType() {
+    return type;
+  }
+
+  // Getter for the changed path
+  public String getPath() {
+    return path;
+  }
+
+  // Getter for the content hash
+  public String getHash() {
+    return hash;
+  }
+
+  // Short description such as "A /path/to/file"
+  @Override
+  public String toString() {
+    return (type == ADD ? "A " : "D ") + path;
+  }
+}
+
+class Commit {
+  // Formatter used when commits are shown on the console
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+      .withZone(ZoneId.systemDefault());
+
+  private final String id; // Hash of everything below, identifies the commit
+  private final String parentId; // Id of the previous commit, or null for the first one
+  private final long timestamp; // Commit time in milliseconds since the epoch
+  private final String author; // Username of the committer
+  private final String message; // Commit message
+  private final List<FileChange> changes; // Paths changed by this commit
+
+  // Constructor to initialize a commit whose id has already been computed
+  private Commit(String id, String parentId, long timestamp, String author, String message, List<FileChange> changes) {
+    this.id = id;
+    this.parentId = parentId;
+    this.timestamp = timestamp;
+    this.author = author;
+    this.message = message;
+    this.changes = Collections.unmodifiableList(new ArrayList<>(changes));
+  }
+
+  // Create a commit and derive its id from its content
+  public static Commit create(String parentId, long timestamp, String author, String message,
+      List<FileChange> changes) {
+    MessageDigest digest = BlobStore.newDigest();
+    StringBuilder content = new StringBuilder();
+    content.append("parent ").append(parentId == null ? "" : parentId).append('\n');
+    content.append("time ").append(timestamp).append('\n');
+    content.append("author ").append(author).append('\n');
+    for (FileChange change : changes) {
+      content.append(change.getType()).append(' ').append(change.getHash()).append(' ').append(change.getPath())
+          .append('\n');
+    }
+    content.append('\n').append(message);
+    String id = BlobStore.toHex(digest.digest(content.toString().getBytes(StandardCharsets.UTF_8)));
+    return new Commit(id, parentId, timestamp, author, message, changes);
+  }
+
+  // Write the commit in the journal record format
+  public void writeTo(DataOutputStream data) throws IOException {
+    data.writeUTF(id);
+    data.writeUTF(parentId == null ? "" : parentId);
+    data.writeLong(timestamp);
+    data.writeUTF(author);
+    data.writeUTF(message);
+    data.writeInt(changes.size());
+    for (FileChange change : changes) {
+      data.writeByte(change.getType());
+      data.writeUTF(change.getPath());
+      data.writeUTF(change.getHash());
+    }
+  }
+
+  // Read a commit written by writeTo
+  public static Commit readFrom(DataInputStream data) throws IOException {
+    String id = data.readUTF();
+    String parentId = data.readUTF();
+    long timestamp = data.readLong();
+    String author = data.readUTF();
+    String message = data.readUTF();
+    int count = data.readInt();
+    List<FileChange> changes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      changes.add(new FileChange(data.readByte(), data.readUTF(), data.readUTF()));
+    }
+    return new Commit(id, parentId.isEmpty() ? null : parentId, timestamp, author, message, changes);
+  }
+
+  // Getter for the commit id
+  public String getId() {
+    return id;
+  }
+
+  // First characters of the id, enough to tell commits apart on screen
+  public String getShortId() {
+    return id.substring(0, 10);
+  }
+
+  // Getter for the parent commit id
+  public String getParentId() {
+    return parentId;
+  }
+
+  // Getter for the commit time
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  // Getter for the author
+  public String getAuthor() {
+    return author;
+  }
+
+  // Getter for the commit message
+  public String getMessage() {
+    return message;
+  }
+
+  // Getter for the changes made by the commit
+  public List<FileChange> getChanges() {
+    return changes;
+  }
+
+  // Paths changed by the commit
+  public List<String> getChangedPaths() {
+    List<String> paths = new ArrayList<>(changes.size());
+    for (FileChange change : changes) {
+      paths.add(change.getPath());
+    }
+    return paths;
+  }
+
+  // One-line summary such as "3f2a9c01de | 2024-05-01 10:00:00 | alice | Fix typo"
+  @Override
+  public String toString() {
+    return getShortId() + " | " + TIME_FORMAT.format(Instant.ofEpochMilli(timestamp)) + " | " + author + " | "
+        + message;
+  }
+}
+
+class AmbiguousFileException extends FileNotFoundException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient List<String> matches; // Every tracked path the name could refer to; the message has them too
+
+  // Constructor to initialize the exception with the candidate paths
+  AmbiguousFileException(String fileName, List<String> matches) {
+    super("'" + fileName + "' matches " + matches.size() + " files: " + String.join(", ", matches)
+        + ". Use a longer part of the path.");
+    this.matches = matches;
+  }
+
+  // Getter for the candidate paths
+  public List<String> getMatches() {
+    return matches;
+  }
+}
+
+class UnsyncedCommitException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient Commit commit; // The commit, already visible and written to the journal
+
+  // Constructor to initialize the exception for a commit whose journal sync failed
+  UnsyncedCommitException(Commit commit, IOException cause) {
+    super("Committed as " + commit.getShortId() + ", but saving it to disk could not be confirmed: "
+        + cause.getMessage(), cause);
+    this.commit = commit;
+  }
+
+  // Getter for the commit that was made
+  public Commit getCommit() {
+    return commit;
+  }
+}
+
+class PathIndex {
+  private final Map<String, Set<String>> byBasename; // File name to every full path ending in it
+  private final Node root; // Trie over path segments, last segment first
+  private final Set<Object> owned; // Sets and nodes a copy may change, the rest is shared; null if all are owned
+
+  // Trie node for one path segment
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<>(); // Next segment towards the start of the path
+    private final Set<String> paths = new TreeSet<>(); // Full paths whose first segment ends here
+  }
+
+  // Constructor to initialize an empty index
+  PathIndex() {
+    this.byBasename = new HashMap<>();
+    this.root = new Node();
+    this.owned = null;
+  }
+
+  // Constructor for a copy sharing everything below the root with another index
+  private PathIndex(PathIndex from) {
+    this.byBasename = new HashMap<>(from.byBasename);
+    this.root = new Node();
+    this.root.children.putAll(from.root.children);
+    this.root.paths.addAll(from.root.paths);
+    this.owned = Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  // Index a tracked path
+  public void add(String path) {
+    List<String> segments = segments(path);
+    if (segments.isEmpty()) {
+      return;
+    }
+    paths(segments.get(segments.size() - 1), true).add(path);
+    Node node = root;
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      node = child(node, segments.get(i), true); // Walk from the file name upwards
+    }
+    node.paths.add(path);
+  }
+
+  // Paths with a file name, in a set this index may change; null if there are none and none should be created
+  private Set<String> paths(String basename, boolean create) {
+    Set<String> paths = byBasename.get(basename);
+    if (paths == null && !create) {
+      return null;
+    }
+    if (paths == null || owned != null && !owned.contains(paths)) {
+      paths = paths == null ? new TreeSet<>() : new TreeSet<>(paths); // Never change a set shared with the original
+      byBasename.put(basename, paths);
+      if (owned != null) {
+        owned.add(paths);
+      }
+    }
+    return paths;
+  }
+
+  // Child of a node this index may change, copying a shared one first; null if missing and not created
+  private Node child(Node node, String segment, boolean create) {
+    Node child = node.children.get(segment);
+    if (child == null && !create) {
+      return null;
+    }
+    if (child == null || owned != null && !owned.contains(child)) {
+      Node copy = new Node();
+      if (child != null) {
+        copy.children.putAll(child.children);
+        copy.paths.addAll(child.paths);
+      }
+      node.children.put(segment, copy);
+      if (owned != null) {
+        owned.add(copy);
+      }
+      child = copy;
+    }
+    return child;
+  }
+
+  // Remove a path from the index, pruning trie nodes that become empty
+  public void remove(String path) {
+    List<String> segments = segments(path);
+    if (segments.isEmpty()) {
+      return;
+    }
+    String basename = segments.get(segments.size() - 1);
+    Set<String> paths = paths(basename, false);
+    if (paths != null) {
+      paths.remove(path);
+      if (paths.isEmpty()) {
+        byBasename.remove(basename);
+      }
+    }
+    remove(root, segments, segments.size() - 1, path);
+  }
+
+  // Remove a path below a node and report whether the node is now empty
+  private boolean remove(Node node, List<String> segments, int index, String path) {
+    if (index < 0) {
+      node.paths.remove(path);
+    } else {
+      Node child = child(node, segments.get(index), false);
+      if (child != null && remove(child, segments, index - 1, path)) {
+        node.children.remove(segments.get(index));
+      }
+    }
+    return node.paths.isEmpty() && node.children.isEmpty();
+  }
+
+  // Find every tracked path that ends with the given file name or trailing path segments, sorted
+  public List<String> find(String suffix) {
+    List<String> segments = segments(suffix);
+    if (segments.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (segments.size() == 1) {
+      Set<String> paths = byBasename.get(segments.get(0)); // Plain file name: one hash lookup
+      return paths == null ? Collections.emptyList() : new ArrayList<>(paths);
+    }
+    Node node = root;
+    for (int i = segments.size() - 1; i >= 0 && node != null; i--) {
+      node = node.children.get(segments.get(i));
+    }
+    if (node == null) {
+      return Collections.emptyList();
+    }
+    List<String> matches = new ArrayList<>();
+    collect(node, matches);
+    Collections.sort(matches);
+    return matches;
+  }
+
+  // Gather every path stored at or below a node
+  private void collect(Node node, List<String> matches) {
+    matches.addAll(node.paths);
+    for (Node child : node.children.values()) {
+      collect(child, matches);
+    }
+  }
+
+  // Copy the index, so the copy can change while readers keep using the original. Sets and nodes are shared
+  // until the copy changes them, so the original must not change afterwards
+  public PathIndex copy() {
+    return new PathIndex(this);
+  }
+
+  // Remove every path from the index
+  public void clear() {
+    byBasename.clear();
+    root.children.clear();
+    root.paths.clear();
+  }
+
+  // Check whether a path ends with the given segments
+  static boolean endsWith(String path, List<String> suffix) {
+    if (suffix.isEmpty() || !path.endsWith(suffix.get(suffix.size() - 1))) {
+      return false; // Cheap check before splitting the path
+    }
+    List<String> segments = segments(path);
+    return segments.size() >= suffix.size()
+        && segments.subList(segments.size() - suffix.size(), segments.size()).equals(suffix);
+  }
+
+  // Split a path into its non-empty segments, accepting both separator styles
+  static List<String> segments(String path) {
+    List<String> segments = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i <= path.length(); i++) {
+      if (i == path.length() || path.charAt(i) == '/' || path.charAt(i) == '\\') {
+        if (i > start) {
+          segments.add(path.substring(start, i));
+        }
+        start = i + 1;
+      }
+    }
+    return segments;
+  }
+}
+
+class LineDiff {
+  // Unchanged lines shown around each change
+  static final int CONTEXT = 3;
+  // Bytes compared at a time when looking for the common suffix
+  private static final int BLOCK = 4096;
+
+  private final byte[] a; // Old content
+  private final byte[] b; // New content
+  private int skippedLines; // Identical lines before the compared region
+  private int[] aLines; // Line ids of the compared region of the old content
+  private int[] bLines; // Line ids of the compared region of the new content
+  private int[] slots; // Open-addressing table from line content to line id + 1
+  private int ids; // Number of distinct lines seen
+  private int[] idHash; // Hash of each distinct line
+  private boolean[] idInB; // Whether a distinct line was first seen in the new content
+  private int[] idStart; // Where each distinct line starts
+  private int[] idEnd; // Where each distinct line ends, before its line break
+  private boolean[] idTerminated; // Whether each distinct line ends with a line break
+  private boolean[] deleted; // Old lines missing from the new content
+  private boolean[] inserted; // New lines missing from the old content
+  private int deletions; // Number of deleted lines
+  private int insertions; // Number of inserted lines
+
+  // Constructor to compare two versions of a file line by line
+  LineDiff(byte[] a, byte[] b) {
+    this.a = a;
+    this.b = b;
+    compute();
+  }
+
+  // Getter for the number of deleted lines
+  public int getDeletions() {
+    return deletions;
+  }
+
+  // Getter for the number of inserted lines
+  public int getInsertions() {
+    return insertions;
+  }
+
+  // Check whether the two versions have the same lines
+  public boolean isIdentical() {
+    return deletions == 0 && insertions == 0;
+  }
+
+  // Find the differing lines; identical leading and trailing bytes are skipped without splitting them into lines
+  private void compute() {
+    int mismatch = Arrays.mismatch(a, b);
+    if (mismatch < 0) {
+      mismatch = a.length; // Same bytes
+    }
+    int start = lineStart(a, mismatch);
+    for (int i = 0; i < CONTEXT && start > 0; i++) {
+      start = lineStart(a, start - 1); // Keep context lines inside the compared region
+    }
+    skippedLines = countLines(a, 0, start);
+    int tail = commonSuffix(Math.min(a.length, b.length) - mismatch);
+    int aEnd = a.length - tail;
+    int end = nextLine(a, aEnd); // Past a line break inside the common suffix, so a line end in both versions
+    for (int i = 0; i < CONTEXT && end < a.length; i++) {
+      end = nextLine(a, end);
+    }
+    int bEnd = b.length - (a.length - end);
+    int capacity = countLines(a, start, end) + countLines(b, start, bEnd) + 2; // Upper bound on distinct lines
+    slots = new int[Integer.highestOneBit(capacity) * 4];
+    idHash = new int[capacity];
+    idInB = new boolean[capacity];
+    idStart = new int[capacity];
+    idEnd = new int[capacity];
+    idTerminated = new boolean[capacity];
+    aLines = split(a, false, start, end);
+    bLines = split(b, true, start, bEnd);
+    slots = null; // Only needed while splitting
+    deleted = new boolean[aLines.length];
+    inserted = new boolean[bLines.length];
+    compare(0, aLines.length, 0, bLines.length);
+    for (boolean line : deleted) {
+      deletions += line ? 1 : 0;
+    }
+    for (boolean line : inserted) {
+      insertions += line ? 1 : 0;
+    }
+  }
+
+  // Length of the common byte suffix, at most limit bytes
+  private int commonSuffix(int limit) {
+    int length = 0;
+    while (length < limit) {
+      int block = Math.min(BLOCK, limit - length);
+      if (Arrays.equals(a, a.length - length - block, a.length - length, b, b.length - length - block, b.length - length)) {
+        length += block; // Whole block equal, compared with vectorized code
+        continue;
+      }
+      while (a[a.length - length - 1] == b[b.length - length - 1]) {
+        length++; // Narrow down inside the differing block
+      }
+      break;
+    }
+    return length;
+  }
+
+  // Index of the first byte of the line containing position
+  private static int lineStart(byte[] content, int position) {
+    int i = Math.min(position, content.length);
+    while (i > 0 && content[i - 1] != '\n') {
+      i--;
+    }
+    return i;
+  }
+
+  // Index just past the line break following position, or the end of the content
+  private static int nextLine(byte[] content, int position) {
+    int i = position;
+    while (i < content.length && content[i] != '\n') {
+      i++;
+    }
+    return Math.min(i + 1, content.length);
+  }
+
+  // Number of line breaks in a range
+  private static int countLines(byte[] content, int from, int to) {
+    int lines = 0;
+    for (int i = from; i < to; i++) {
+      if (content[i] == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  // Split a range into lines and map each distinct line to a small integer id, without decoding it
+  private int[] split(byte[] content, boolean inB, int from, int to) {
+    int[] lines = new int[countLines(content, from, to) + 1];
+    int count = 0;
+    int lineStart = from;
+    while (lineStart < to) {
+      int lineEnd = lineStart;
+      int hash = 0;
+      while (lineEnd < to && content[lineEnd] != '\n') {
+        hash = 31 * hash + content[lineEnd];
+        lineEnd++;
+      }
+      boolean hasBreak = lineEnd < to; // A final line without a break differs from one with it
+      lines[count++] = intern(content, inB, lineStart, lineEnd, hasBreak, hasBreak ? 31 * hash + '\n' : hash);
+      lineStart = lineEnd + 1;
+    }
+    return Arrays.copyOf(lines, count);
+  }
+
+  // Get the id of a line, assigning a new one the first time its content is seen
+  private int intern(byte[] content, boolean inB, int start, int end, boolean hasBreak, int hash) {
+    int mask = slots.length - 1;
+    int slot = (hash ^ (hash >>> 16)) * 0x9E3779B9 & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (idHash[id] == hash && idTerminated[id] == hasBreak
+          && Arrays.equals(idInB[id] ? b : a, idStart[id], idEnd[id], content, start, end)) {
+        return id;
+      }
+      slot = (slot + 1) & mask; // Linear probing
+    }
+    int id = ids++;
+    idHash[id] = hash;
+    idInB[id] = inB;
+    idStart[id] = start;
+    idEnd[id] = end;
+    idTerminated[id] = hasBreak;
+    slots[slot] = id + 1;
+    return id;
+  }
+
+  // Decode the text of a line id, without its line break
+  private String text(int id) {
+    return new String(idInB[id] ? b : a, idStart[id], idEnd[id] - idStart[id], StandardCharsets.UTF_8);
+  }
+
+  // Mark the differences between two ranges, splitting them at the middle snake of Myers' algorithm so
+  // only linear space is needed
+  private void compare(int aLo, int aHi, int bLo, int bHi) {
+    while (aLo < aHi && bLo < bHi && aLines[aLo] == bLines[bLo]) {
+      aLo++; // Common prefix
+      bLo++;
+    }
+    while (aLo < aHi && bLo < bHi && aLines[aHi - 1] == bLines[bHi - 1]) {
+      aHi--; // Common suffix
+      bHi--;
+    }
+    if (aLo == aHi) {
+      Arrays.fill(inserted, bLo, bHi, true);
+      return;
+    }
+    if (bLo == bHi) {
+      Arrays.fill(deleted, aLo, aHi, true);
+      return;
+    }
+    int n = aHi - aLo;
+    int m = bHi - bLo;
+    int maxD = (n + m + 1) / 2;
+    int offset = maxD;
+    int length = 2 * maxD + 2;
+    int[] forward = new int[length]; // Furthest x reached on each diagonal going forward
+    int[] reverse = new int[length]; // Furthest x reached on each diagonal going backward
+    Arrays.fill(forward, -1);
+    Arrays.fill(reverse, -1);
+    forward[offset + 1] = 0;
+    reverse[offset + 1] = 0;
+    int delta = n - m;
+    boolean odd = (delta & 1) != 0; // Which direction detects the overlap
+    int fStart = 0, fEnd = 0, rStart = 0, rEnd = 0; // Diagonals that ran off the edit graph
+    for (int d = 0; d < maxD; d++) {
+      for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+        int index = offset + k;
+        int x = k == -d || (k != d && forward[index - 1] < forward[index + 1]) ? forward[index + 1] : forward[index - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && aLines[aLo + x] == bLines[bLo + y]) {
+          x++;
+          y++;
+        }
+        forward[index] = x;
+        if (x > n) {
+          fEnd += 2;
+        } else if (y > m) {
+          fStart += 2;
+        } else if (odd) {
+          int other = offset + delta - k;
+          if (other >= 0 && other < length && reverse[other] != -1 && x >= n - reverse[other]) {
+            compare(aLo, aLo + x, bLo, bLo + y); // Paths overlap, split here
+            compare(aLo + x, aHi, bLo + y, bHi);
+            return;
+          }
+        }
+      }
+      for (int k = -d + rStart; k <= d - rEnd; k += 2) {
+        int index = offset + k;
+        int x = k == -d || (k != d && reverse[index - 1] < reverse[index + 1]) ? reverse[index + 1] : reverse[index - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && aLines[aHi - x - 1] == bLines[bHi - y - 1]) {
+          x++;
+          y++;
+        }
+        reverse[index] = x;
+        if (x > n) {
+          rEnd += 2;
+        } else if (y > m) {
+          rStart += 2;
+        } else if (!odd) {
+          int other = offset + delta - k;
+          if (other >= 0 && other < length && forward[other] != -1) {
+            int fx = forward[other];
+            int fy = offset + fx - other;
+            if (fx >= n - x) {
+              compare(aLo, aLo + fx, bLo, bLo + fy);
+              compare(aLo + fx, aHi, bLo + fy, bHi);
+              return;
+            }
+          }
+        }
+      }
+    }
+    Arrays.fill(deleted, aLo, aHi, true); // Nothing in common
+    Arrays.fill(inserted, bLo, bHi, true);
+  }
+
+  // Format the differences as a unified diff with the given file labels
+  public List<String> unified(String fromLabel, String toLabel) {
+    List<String> lines = new ArrayList<>();
+    if (isIdentical()) {
+      return lines;
+    }
+    lines.add("--- " + fromLabel);
+    lines.add("+++ " + toLabel);
+    // Walk the edit script: deletions before insertions inside each change
+    int total = aLines.length + bLines.length - (aLines.length - deletions);
+    int[] ops = new int[total]; // 0 unchanged, 1 deleted, 2 inserted
+    int[] aAt = new int[total + 1];
+    int[] bAt = new int[total + 1];
+    int i = 0, j = 0;
+    for (int op = 0; op < total; op++) {
+      aAt[op] = i;
+      bAt[op] = j;
+      if (i < aLines.length && deleted[i]) {
+        ops[op] = 1;
+        i++;
+      } else if (j < bLines.length && inserted[j]) {
+        ops[op] = 2;
+        j++;
+      } else {
+        i++;
+        j++;
+      }
+    }
+    aAt[total] = i;
+    bAt[total] = j;
+    int op = 0;
+    while (op < total) {
+      if (ops[op] == 0) {
+        op++;
+        continue;
+      }
+      int first = Math.max(0, op - CONTEXT); // Hunk start including leading context
+      int last = op; // Last changed op in the hunk
+      int scan = op;
+      while (scan < total) {
+        if (ops[scan] != 0) {
+          last = scan;
+        } else if (scan - last > 2 * CONTEXT) {
+          break; // The next change is too far away to share this hunk
+        }
+        scan++;
+      }
+      int end = Math.min(total, last + 1 + CONTEXT);
+      lines.add(String.format("@@ -%s +%s @@", range(aAt[first], aAt[end] - aAt[first]),
+          range(bAt[first], bAt[end] - bAt[first])));
+      for (int k = first; k < end; k++) {
+        int id = ops[k] == 2 ? bLines[bAt[k]] : aLines[aAt[k]];
+        lines.add((ops[k] == 0 ? " " : ops[k] == 1 ? "-" : "+") + text(id));
+        if (!idTerminated[id]) {
+          lines.add("\\ No newline at end of file");
+        }
+      }
+      op = end;
+    }
+    return lines;
+  }
+
+  // Hunk range in unified diff notation, with 1-based line numbers
+  private String range(int index, int count) {
+    int line = skippedLines + index + (count == 0 ? 0 : 1);
+    return count == 1 ? String.valueOf(line) : line + "," + count;
+  }
+}
+
+class DirectoryImport {
+  private final Path root; // Directory being imported
+  private final List<PathMatcher> includes; // A file is imported if it matches one of these, or if there are none
+  private final List<PathMatcher> excludes; // A file or directory matching one of these is skipped
+  private final BlobStore blobStore; // Store the file contents are ingested into
+  private final AtomicLong bytes; // Bytes read so far across all workers
+  private final Map<String, FileStat> stats; // Metadata of every imported file keyed by path
+
+  // Constructor to initialize an import of a directory tree with include and exclude globs
+  DirectoryImport(Path root, List<String> includes, List<String> excludes, BlobStore blobStore) {
+    this.root = root.toAbsolutePath().normalize();
+    this.includes = matchers(includes);
+    this.excludes = matchers(excludes);
+    this.blobStore = blobStore;
+    this.bytes = new AtomicLong();
+    this.stats = new ConcurrentHashMap<>();
+  }
+
+  // Walk the tree on a fork/join pool, ingesting every selected file, and return one change per file
+  public List<FileChange> run(int parallelism) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<FileChange> changes = new ArrayList<>(pool.invoke(new Walk(root)));
+      changes.sort(Comparator.comparing(FileChange::getPath)); // Stable order in the commit
+      return changes;
+    } catch (UncheckedIOException e) {
+      throw e.getCause(); // Every task has already released what it ingested
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // Bytes read by the import
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  // Metadata of the imported files as they were read
+  public Map<String, FileStat> getStats() {
+    return stats;
+  }
+
+  // Task that imports one directory and forks a task per subdirectory
+  private class Walk extends RecursiveTask<List<FileChange>> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Path directory; // Directory handled by this task; tasks are never serialized
+
+    Walk(Path directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected List<FileChange> compute() {
+      List<Walk> subtasks = new ArrayList<>();
+      List<FileChange> changes = new ArrayList<>();
+      try {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+          for (Path entry : entries) {
+            Path relative = root.relativize(entry);
+            if (matches(excludes, relative)) {
+              continue; // Excluded file or whole excluded directory
+            }
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+              Walk subtask = new Walk(entry);
+              subtask.fork(); // Let idle workers pick up the subdirectory
+              subtasks.add(subtask);
+            } else if (Files.isRegularFile(entry) && (includes.isEmpty() || matches(includes, relative))) {
+              IngestResult result = blobStore.putFile(entry); // Hash and store on this worker
+              bytes.addAndGet(result.getBytes());
+              String filePath = Repository.trackedPath(entry);
+              stats.put(filePath, result.getStat());
+              changes.add(new FileChange(FileChange.ADD, filePath, result.getHash()));
+            }
+          }
+        }
+      } catch (IOException e) {
+        releaseAll(changes);
+        for (Walk subtask : subtasks) {
+          releaseAll(joinQuietly(subtask)); // Subdirectories already ingested are dropped too
+        }
+        throw new UncheckedIOException(new IOException("Cannot import " + directory + ": " + e.getMessage(), e));
+      }
+      UncheckedIOException failure = null;
+      for (Walk subtask : subtasks) {
+        try {
+          changes.addAll(subtask.join());
+        } catch (UncheckedIOException e) {
+          failure = failure == null ? e : failure; // Keep joining so every subtask finishes
+        }
+      }
+      if (failure != null) {
+        releaseAll(changes);
+        throw failure;
+      }
+      return changes;
+    }
+
+    // Join a subtask, returning nothing if it failed
+    private List<FileChange> joinQuietly(Walk subtask) {
+      try {
+        return subtask.join();
+      } catch (UncheckedIOException e) {
+        return Collections.emptyList();
+      }
+    }
+  }
+
+  // Drop the blob references taken for changes that will not be committed
+  private void releaseAll(List<FileChange> changes) {
+    for (FileChange change : changes) {
+      blobStore.release(change.getHash());
+    }
+  }
+
+  // Check a path relative to the root against globs; globs without a '/' are matched against the name alone
+  private static boolean matches(List<PathMatcher> matchers, Path relative) {
+    Path name = relative.getFileName();
+    for (PathMatcher matcher : matchers) {
+      if (matcher.matches(relative) || (name != null && matcher.matches(name))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Compile glob patterns
+  private static List<PathMatcher> matchers(List<String> globs) {
+    List<PathMatcher> matchers = new ArrayList<>();
+    for (String glob : globs) {
+      matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+    return matchers;
+  }
+}
+
+class ImportResult {
+  private final int files; // Number of files imported
+  private final long bytes; // Number of bytes read
+  private final long nanos; // Time taken by the whole import
+
+  // Constructor to initialize the outcome of a directory import
+  ImportResult(int files, long bytes, long nanos) {
+    this.files = files;
+    this.bytes = bytes;
+    this.nanos = nanos;
+  }
+
+  // Getter for the number of files imported
+  public int getFiles() {
+    return files;
+  }
+
+  // Getter for the number of bytes read
+  public long getBytes() {
+    return bytes;
+  }
+
+  // Getter for the elapsed time in nanoseconds
+  public long getNanos() {
+    return nanos;
+  }
+
+  // Files imported per second
+  public double getFilesPerSecond() {
+    return nanos <= 0 ? 0 : files / (nanos / 1_000_000_000.0);
+  }
+
+  // Megabytes read per second
+  public double getMegabytesPerSecond() {
+    return nanos <= 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0);
+  }
+
+  // Summary such as "Imported 120 files (3.2 MB) in 0.41 s: 292 files/s, 7.8 MB/s"
+  @Override
+  public String toString() {
+    return String.format("Imported %d files (%.1f MB) in %.2f s: %.0f files/s, %.1f MB/s", files,
+        bytes / (1024.0 * 1024.0), nanos / 1_000_000_000.0, getFilesPerSecond(), getMegabytesPerSecond());
+  }
+}
+
+class SearchIndex {
+  static final int TERMS = 0; // Every word must appear on the line
+  static final int PHRASE = 1; // The words must appear in sequence
+  static final int REGEX = 2; // The line must match a regular expression
+  static final int DEFAULT_LIMIT = 100; // Matching lines returned unless asked for more
+  private static final int BLOCK_SIZE = 8 * 1024; // Documents are indexed in blocks of whole lines about this long
+  private static final int MAX_TERM_LENGTH = 64; // Longer words are not indexed, queries for them scan the candidates
+  private static final String LONG_WORD = ""; // Term of the blocks holding a longer word, which any literal may be in
+  private static final int MIN_FRAGMENT_LENGTH = 3; // Shorter regex literals would match too much of the dictionary
+  private static final int BATCH_SIZE = 64; // Documents tokenized together in parallel
+  private static final int BINARY_PROBE = 8000; // A zero byte this early marks binary content, as in git
+  private static final String WORD = "[A-Za-z0-9_\\x{80}-\\x{10FFFF}]"; // Characters the tokenizer keeps in words
+  private static final OperationStats SEARCH = Metrics.operation("search.query"); // Shown by stats
+  private static SearchIndex shared;
+
+  private final BlobStore blobStore; // Where the indexed contents are read from
+  private final Map<String, Integer> documents = new HashMap<>(); // Document number of each blob hash
+  private final List<String> hashes = new ArrayList<>(); // Blob hash of each document
+  private final List<List<Location>> locations = new ArrayList<>(); // Committed files holding each document
+  private final List<Integer> blockCounts = new ArrayList<>(); // Number of blocks of each document
+  private final Map<String, Postings> postings = new HashMap<>(); // Blocks containing each term
+  private final BitSet indexed = new BitSet(); // Documents whose blocks are in the postings
+  private final BitSet queued = new BitSet(); // Documents waiting for or being tokenized
+  private final ArrayDeque<Integer> pending = new ArrayDeque<>(); // Documents to tokenize before the next query
+  private final Object indexing = new Object(); // Held while pending documents are tokenized
+  private int[] blockDocuments = new int[16]; // Document of each block; starts small, an index per in-memory store
+  private long[] blockBounds = new long[16 * 3]; // Start offset, end offset and first line of each block
+  private int blockCount; // Number of blocks indexed
+  private int deadDocuments; // Documents no committed file holds anymore, dropped by the next compaction
+  private int deadBlocks; // Blocks of those documents
+
+  // A committed file holding a document
+  private static class Location {
+    final String repository;
+    final String path;
+
+    Location(String repository, String path) {
+      this.repository = repository;
+      this.path = path;
+    }
+  }
+
+  // Ascending block numbers of a term, stored as variable-length gaps
+  private static class Postings {
+    private byte[] gaps = new byte[4];
+    private int size; // Bytes used
+    private int count; // Number of blocks
+    private int last = -1; // Last block added
+
+    void add(int block) {
+      if (size + 5 > gaps.length) {
+        gaps = Arrays.copyOf(gaps, gaps.length * 2);
+      }
+      int gap = block - last;
+      while ((gap & ~0x7f) != 0) {
+        gaps[size++] = (byte) (gap & 0x7f | 0x80);
+        gap >>>= 7;
+      }
+      gaps[size++] = (byte) gap;
+      last = block;
+      count++;
+    }
+
+    void addTo(BitSet set) {
+      forEach(set::set);
+    }
+
+    void forEach(IntConsumer action) {
+      int block = -1;
+      for (int i = 0; i < size; ) {
+        int gap = 0;
+        for (int shift = 0; ; shift += 7) {
+          byte b = gaps[i++];
+          gap |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        block += gap;
+        action.accept(block);
+      }
+    }
+  }
+
+  // Distinct words of one document and the blocks each appears in, built without locking the index
+  private static class Tokens {
+    final List<String> terms = new ArrayList<>(); // Distinct words in order of first appearance
+    final List<int[]> blocks = new ArrayList<>(); // Numbers of the words of each block
+    final List<long[]> bounds = new ArrayList<>(); // Start offset, end offset and first line of each block
+    private final List<byte[]> keys = new ArrayList<>(); // Bytes of each word, for comparing
+    private int[] table = new int[1024]; // Open-addressing table of word numbers, -1 when empty
+    private int[] keyHashes = new int[512]; // Hash of each word, for growing the table
+    private int[] lastBlock = new int[512]; // Block a word was last counted in
+    private int[] current = new int[256]; // Words of the block being read
+    private int currentSize;
+
+    Tokens() {
+      Arrays.fill(table, -1);
+    }
+
+    // Count a word in the current block
+    void add(byte[] word, int length) {
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        hash = hash * 31 + word[i];
+      }
+      int mask = table.length - 1;
+      int slot = (hash ^ hash >>> 16) & mask;
+      while (table[slot] >= 0) {
+        int term = table[slot];
+        byte[] key = keys.get(term);
+        if (keyHashes[term] == hash && Arrays.equals(key, 0, key.length, word, 0, length)) {
+          mark(term);
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      int term = terms.size();
+      if (term == lastBlock.length) {
+        lastBlock = Arrays.copyOf(lastBlock, term * 2);
+        keyHashes = Arrays.copyOf(keyHashes, term * 2);
+      }
+      keys.add(Arrays.copyOf(word, length));
+      terms.add(new String(word, 0, length, StandardCharsets.UTF_8)); // One string per distinct word
+      keyHashes[term] = hash;
+      lastBlock[term] = -1;
+      table[slot] = term;
+      mark(term);
+      if (terms.size() * 2 > table.length) {
+        grow();
+      }
+    }
+
+    // Close the current block
+    void endBlock(long start, long end, int line) {
+      blocks.add(Arrays.copyOf(current, currentSize));
+      bounds.add(new long[] { start, end, line });
+      currentSize = 0;
+    }
+
+    private void mark(int term) {
+      if (lastBlock[term] != blocks.size()) {
+        lastBlock[term] = blocks.size(); // First time in this block
+        if (currentSize == current.length) {
+          current = Arrays.copyOf(current, currentSize * 2);
+        }
+        current[currentSize++] = term;
+      }
+    }
+
+    private void grow() {
+      table = new int[table.length * 2];
+      Arrays.fill(table, -1);
+      int mask = table.length - 1;
+      for (int term = 0; term < terms.size(); term++) {
+        int slot = (keyHashes[term] ^ keyHashes[term] >>> 16) & mask;
+        while (table[slot] >= 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = term;
+      }
+    }
+  }
+
+  // Blocks of one document that may hold matching lines
+  private static class Candidate {
+    final String hash;
+    final List<Location> files;
+    final List<long[]> bounds = new ArrayList<>();
+
+    Candidate(String hash, List<Location> files) {
+      this.hash = hash;
+      this.files = files;
+    }
+  }
+
+  // Constructor to initialize an empty index over a blob store
+  SearchIndex(BlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
+  // Get the index over the shared blob store, covering every repository
+  public static synchronized SearchIndex shared() {
+    if (shared == null) {
+      shared = new SearchIndex(BlobStore.shared());
+    }
+    return shared;
+  }
+
+  // Record that a committed file holds a blob; new content is tokenized before the next query
+  public synchronized void add(String repository, String path, String hash) {
+    Integer known = documents.get(hash);
+    int document;
+    if (known == null) {
+      document = hashes.size();
+      documents.put(hash, document);
+      hashes.add(hash);
+      locations.add(new ArrayList<>());
+      blockCounts.add(0);
+    } else {
+      document = known;
+      if (locations.get(document).isEmpty()) {
+        deadDocuments--; // Committed again before it was compacted away, e.g. by a revert
+        deadBlocks -= blockCounts.get(document);
+      }
+    }
+    locations.get(document).add(new Location(repository, path));
+    if (!indexed.get(document) && !queued.get(document)) {
+      queued.set(document);
+      pending.add(document); // Identical content anywhere else is indexed once
+    }
+  }
+
+  // Record that a committed file no longer holds a blob
+  public synchronized void remove(String repository, String path, String hash) {
+    Integer document = documents.get(hash);
+    if (document != null
+        && locations.get(document).removeIf(at -> at.repository.equals(repository) && at.path.equals(path))) {
+      died(document);
+    }
+  }
+
+  // Forget every file of a deleted repository
+  public synchronized void removeRepository(String repository) {
+    for (int document = 0; document < locations.size(); document++) {
+      if (locations.get(document).removeIf(at -> at.repository.equals(repository))) {
+        died(document);
+      }
+    }
+  }
+
+  // Count a document as dead if its last location just went
+  private void died(int document) {
+    if (locations.get(document).isEmpty()) {
+      deadDocuments++;
+      deadBlocks += blockCounts.get(document);
+    }
+  }
+
+  // Find matching lines in the committed files of every repository; the query is plain words, a "quoted phrase"
+  // or a /regular expression/
+  public List<SearchHit> search(String query, int limit) {
+    String text = query.trim();
+    int mode = TERMS;
+    if (text.length() >= 2 && text.startsWith("/") && text.endsWith("/")) {
+      mode = REGEX;
+      text = text.substring(1, text.length() - 1);
+    } else if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+      mode = PHRASE;
+      text = text.substring(1, text.length() - 1);
+    }
+    return search(text, mode, limit);
+  }
+
+  // Find matching lines for a query of the given kind, stopping after the limit
+  public List<SearchHit> search(String text, int mode, int limit) {
+    long started = System.nanoTime();
+    try {
+      List<String> terms = new ArrayList<>(); // Words a matching block must contain
+      List<String> fragments = new ArrayList<>(); // Literals some word of a matching block must contain
+      List<Pattern> patterns = new ArrayList<>(); // Each must be found in a matching line
+      if (mode == REGEX) {
+        patterns.add(Pattern.compile(text));
+        fragments.addAll(literals(text));
+      } else {
+        List<String> words = words(text);
+        if (words.isEmpty()) {
+          throw new IllegalArgumentException("nothing to search for");
+        }
+        StringBuilder phrase = new StringBuilder();
+        for (String word : words) {
+          if (word.getBytes(StandardCharsets.UTF_8).length <= MAX_TERM_LENGTH) {
+            terms.add(word);
+          }
+          if (mode == PHRASE) {
+            phrase.append(phrase.length() == 0 ? "" : "[^A-Za-z0-9_\\x{80}-\\x{10FFFF}]+").append(Pattern.quote(word));
+          } else {
+            patterns.add(wholeWord(Pattern.quote(word)));
+          }
+        }
+        if (mode == PHRASE) {
+          patterns.add(wholeWord(phrase.toString()));
+        }
+      }
+
+      catchUp(); // Tokenize whatever was committed since the last query
+      List<Candidate> candidates = new ArrayList<>();
+      String needle = null; // Lowercase text every matching line contains, used to skip to candidate lines
+      synchronized (this) {
+        String literal = null;
+        for (String fragment : fragments) {
+          literal = literal == null || fragment.length() > literal.length() ? fragment : literal; // Longest is rarest
+        }
+        int rarest = Integer.MAX_VALUE;
+        for (String term : terms) {
+          Postings list = postings.get(term);
+          if (list == null || list.count < rarest) {
+            rarest = list == null ? 0 : list.count;
+            literal = term;
+          }
+        }
+        if (literal != null) {
+          needle = new String(literal.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1); // Byte-wise
+        }
+        BitSet matching = matchingBlocks(terms, fragments);
+        Candidate candidate = null;
+        for (int block = matching.nextSetBit(0); block >= 0; block = matching.nextSetBit(block + 1)) {
+          int document = blockDocuments[block];
+          if (locations.get(document).isEmpty()) {
+            continue; // No longer committed anywhere
+          }
+          if (candidate == null || !candidate.hash.equals(hashes.get(document))) {
+            candidate = new Candidate(hashes.get(document), new ArrayList<>(locations.get(document)));
+            candidates.add(candidate); // Blocks of a document are numbered consecutively
+          }
+          candidate.bounds.add(Arrays.copyOfRange(blockBounds, block * 3, block * 3 + 3));
+        }
+      }
+
+      List<SearchHit> hits = new ArrayList<>();
+      for (int i = 0; i < candidates.size() && hits.size() < limit; i++) {
+        scan(candidates.get(i), needle, patterns, hits, limit); // Only candidate blocks are read
+      }
+      return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    } finally {
+      SEARCH.record(started);
+    }
+  }
+
+  // Number of distinct contents, blocks and terms indexed, for display
+  public synchronized String describe() {
+    return String.format("%d contents in %d blocks, %d terms, %d waiting to be indexed", indexed.cardinality(),
+        blockCount, postings.size(), pending.size());
+  }
+
+  // Blocks holding every term and, for each fragment, some term containing it
+  private BitSet matchingBlocks(List<String> terms, List<String> fragments) {
+    BitSet matching = new BitSet();
+    matching.set(0, blockCount);
+    List<Postings> lists = new ArrayList<>();
+    for (String term : terms) {
+      Postings list = postings.get(term);
+      if (list == null) {
+        return new BitSet(); // No stored file has this word
+      }
+      lists.add(list);
+    }
+    lists.sort(Comparator.comparingInt(list -> list.count)); // Rarest first keeps the intersection small
+    for (Postings list : lists) {
+      BitSet set = new BitSet();
+      list.addTo(set);
+      matching.and(set);
+    }
+    if (!fragments.isEmpty()) {
+      BitSet[] sets = new BitSet[fragments.size()];
+      for (int i = 0; i < sets.length; i++) {
+        sets[i] = new BitSet();
+      }
+      for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+        for (int i = 0; i < sets.length; i++) {
+          if (entry.getKey().contains(fragments.get(i)) || entry.getKey().equals(LONG_WORD)) {
+            entry.getValue().addTo(sets[i]); // A word containing the literal, or one too long to be indexed
+          }
+        }
+      }
+      for (BitSet set : sets) {
+        matching.and(set);
+      }
+    }
+    return matching;
+  }
+
+  // Check the candidate blocks of a document and report matches for each file holding it
+  private void scan(Candidate candidate, String needle, List<Pattern> patterns, List<SearchHit> hits, int limit) {
+    try (InputStream in = blobStore.openStream(candidate.hash)) {
+      long position = 0;
+      for (long[] bounds : candidate.bounds) {
+        if (hits.size() >= limit) {
+          return;
+        }
+        in.skipNBytes(bounds[0] - position);
+        byte[] block = in.readNBytes((int) (bounds[1] - bounds[0]));
+        position = bounds[0] + block.length;
+        scanBlock(block, (int) bounds[2], needle, patterns, candidate.files, hits, limit);
+      }
+    } catch (IOException e) {
+      // Content is no longer stored, nothing to report
+    }
+  }
+
+  // Check the lines of one block, going straight to the lines holding the needle when there is one
+  private static void scanBlock(byte[] block, int line, String needle, List<Pattern> patterns, List<Location> files,
+      List<SearchHit> hits, int limit) {
+    String lowered = null; // One char per byte, so positions match the block
+    if (needle != null) {
+      byte[] bytes = block.clone();
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = lower(bytes[i]);
+      }
+      lowered = new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    int start = 0; // Start of the line numbered line
+    while (start < block.length && hits.size() < limit) {
+      if (lowered != null) {
+        int at = lowered.indexOf(needle, start);
+        if (at < 0) {
+          return; // No further line can match
+        }
+        for (int i = start; i < at; i++) {
+          if (block[i] == '\n') {
+            start = i + 1;
+            line++;
+          }
+        }
+      }
+      int end = start;
+      while (end < block.length && block[end] != '\n') {
+        end++;
+      }
+      int textEnd = end > start && block[end - 1] == '\r' ? end - 1 : end;
+      String text = new String(block, start, textEnd - start, StandardCharsets.UTF_8);
+      boolean matches = true;
+      for (int p = 0; p < patterns.size() && matches; p++) {
+        matches = patterns.get(p).matcher(text).find();
+      }
+      if (matches) {
+        for (Location file : files) {
+          hits.add(new SearchHit(file.repository, file.path, line, text));
+        }
+      }
+      start = end + 1;
+      line++;
+    }
+  }
+
+  // Tokenize pending documents in parallel batches and add their blocks to the postings
+  private void catchUp() {
+    synchronized (indexing) {
+      synchronized (this) {
+        if (deadBlocks * 4L > blockCount || deadDocuments * 4L > hashes.size()) {
+          compact(); // Old versions would otherwise make memory and queries grow with history
+        }
+      }
+      while (true) {
+        List<Integer> batch = new ArrayList<>();
+        List<String> batchHashes = new ArrayList<>();
+        synchronized (this) {
+          while (batch.size() < BATCH_SIZE && !pending.isEmpty()) {
+            int document = pending.poll();
+            if (locations.get(document).isEmpty()) {
+              queued.clear(document); // Removed before it was indexed; queued again if committed again
+            } else {
+              batch.add(document);
+              batchHashes.add(hashes.get(document));
+            }
+          }
+        }
+        if (batch.isEmpty()) {
+          return;
+        }
+        List<Tokens> batchTokens = batchHashes.parallelStream().map(this::tokenize).collect(Collectors.toList());
+        synchronized (this) {
+          for (int i = 0; i < batch.size(); i++) {
+            int document = batch.get(i);
+            Tokens tokens = batchTokens.get(i);
+            if (tokens != null) {
+              addBlocks(document, tokens);
+              if (locations.get(document).isEmpty()) {
+                deadBlocks += tokens.blocks.size(); // Removed while it was tokenized
+              }
+            }
+            indexed.set(document); // Binary content is indexed without blocks and never matches
+            queued.clear(document);
+          }
+        }
+      }
+    }
+  }
+
+  // Drop the documents no committed file holds and their blocks, renumbering the rest in the same order so every
+  // postings list stays sorted; called while no batch is being tokenized
+  private void compact() {
+    int[] documentMap = new int[hashes.size()];
+    List<String> keptHashes = new ArrayList<>();
+    List<List<Location>> keptLocations = new ArrayList<>();
+    List<Integer> keptCounts = new ArrayList<>();
+    BitSet keptIndexed = new BitSet();
+    BitSet keptQueued = new BitSet();
+    documents.clear();
+    for (int document = 0; document < hashes.size(); document++) {
+      if (locations.get(document).isEmpty()) {
+        documentMap[document] = -1;
+        continue;
+      }
+      int kept = keptHashes.size();
+      documentMap[document] = kept;
+      documents.put(hashes.get(document), kept);
+      keptHashes.add(hashes.get(document));
+      keptLocations.add(locations.get(document));
+      keptCounts.add(blockCounts.get(document));
+      keptIndexed.set(kept, indexed.get(document));
+      keptQueued.set(kept, queued.get(document));
+    }
+    int[] blockMap = new int[blockCount];
+    int keptBlocks = 0;
+    for (int block = 0; block < blockCount; block++) {
+      int document = documentMap[blockDocuments[block]];
+      blockMap[block] = document < 0 ? -1 : keptBlocks;
+      if (document >= 0) {
+        blockDocuments[keptBlocks] = document; // Never ahead of the block being read
+        System.arraycopy(blockBounds, block * 3, blockBounds, keptBlocks * 3, 3);
+        keptBlocks++;
+      }
+    }
+    for (Iterator<Map.Entry<String, Postings>> entries = postings.entrySet().iterator(); entries.hasNext(); ) {
+      Map.Entry<String, Postings> entry = entries.next();
+      Postings kept = new Postings();
+      entry.getValue().forEach(block -> {
+        if (blockMap[block] >= 0) {
+          kept.add(blockMap[block]);
+        }
+      });
+      if (kept.count == 0) {
+        entries.remove(); // The word is in no committed file anymore
+      } else {
+        entry.setValue(kept);
+      }
+    }
+    List<Integer> waiting = new ArrayList<>(pending);
+    pending.clear();
+    for (int document : waiting) {
+      if (documentMap[document] >= 0) {
+        pending.add(documentMap[document]);
+      }
+    }
+    hashes.clear();
+    hashes.addAll(keptHashes);
+    locations.clear();
+    locations.addAll(keptLocations);
+    blockCounts.clear();
+    blockCounts.addAll(keptCounts);
+    indexed.clear();
+    indexed.or(keptIndexed);
+    queued.clear();
+    queued.or(keptQueued);
+    blockCount = keptBlocks;
+    deadDocuments = 0;
+    deadBlocks = 0;
+  }
+
+  // Number the blocks of a document and add them to the postings of their words
+  private void addBlocks(int document, Tokens tokens) {
+    blockCounts.set(document, tokens.blocks.size());
+    Postings[] lists = new Postings[tokens.terms.size()];
+    for (int term = 0; term < lists.length; term++) {
+      lists[term] = postings.computeIfAbsent(tokens.terms.get(term), key -> new Postings());
+    }
+    for (int i = 0; i < tokens.blocks.size(); i++) {
+      if (blockCount == blockDocuments.length) {
+        blockDocuments = Arrays.copyOf(blockDocuments, blockCount * 2);
+        blockBounds = Arrays.copyOf(blockBounds, blockCount * 6);
+      }
+      int block = blockCount++;
+      blockDocuments[block] = document;
+      System.arraycopy(tokens.bounds.get(i), 0, blockBounds, block * 3, 3);
+      for (int term : tokens.blocks.get(i)) {
+        lists[term].add(block); // Block numbers only grow, so every list stays sorted
+      }
+    }
+  }
+
+  // Split a stored blob into blocks of whole lines and collect the lowercase words of each, or return null if the
+  // blob is binary or no longer stored
+  private Tokens tokenize(String hash) {
+    Tokens tokens = new Tokens();
+    byte[] buffer = new byte[BlobStore.INGEST_BUFFER_SIZE];
+    byte[] word = new byte[MAX_TERM_LENGTH];
+    int length = 0;
+    boolean tooLong = false;
+    boolean first = true;
+    long position = 0;
+    long blockStart = 0;
+    int line = 1;
+    int blockLine = 1;
+    try (InputStream in = blobStore.openStream(hash)) {
+      int read;
+      while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+        if (first && isBinary(buffer, Math.min(read, BINARY_PROBE))) {
+          return null;
+        }
+        first = false;
+        for (int i = 0; i < read; i++) {
+          byte b = buffer[i];
+          if (isWordByte(b)) {
+            if (length < MAX_TERM_LENGTH) {
+              word[length++] = lower(b);
+            } else {
+              tooLong = true;
+            }
+            continue;
+          }
+          if (length > 0) {
+            tokens.add(word, tooLong ? 0 : length); // An empty word stands for every long one
+            length = 0;
+            tooLong = false;
+          }
+          if (b == '\n') {
+            line++;
+            long end = position + i + 1;
+            if (end - blockStart >= BLOCK_SIZE) {
+              tokens.endBlock(blockStart, end, blockLine); // Blocks end after a line break
+              blockStart = end;
+              blockLine = line;
+            }
+          }
+        }
+        position += read;
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    if (length > 0) {
+      tokens.add(word, tooLong ? 0 : length);
+    }
+    if (position > blockStart) {
+      tokens.endBlock(blockStart, position, blockLine);
+    }
+    return tokens;
+  }
+
+  // Lowercase words of a query, split the same way stored content is
+  static List<String> words(String text) {
+    List<String> words = new ArrayList<>();
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    int start = -1;
+    for (int i = 0; i <= bytes.length; i++) {
+      boolean inWord = i < bytes.length && isWordByte(bytes[i]);
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        byte[] word = Arrays.copyOfRange(bytes, start, i);
+        for (int j = 0; j < word.length; j++) {
+          word[j] = lower(word[j]);
+        }
+        words.add(new String(word, StandardCharsets.UTF_8));
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  // Literal word fragments every match of a regular expression must contain, lowercased; empty if none are certain
+  static List<String> literals(String regex) {
+    List<String> fragments = new ArrayList<>();
+    StringBuilder run = new StringBuilder();
+    int depth = 0; // Inside a group the literals may be optional or alternatives
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '|') {
+        return new ArrayList<>(); // Alternatives: no single literal is required
+      }
+      if (c == '\\') {
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+          return fragments; // Quoted sections are rare enough to skip prefiltering after them
+        }
+        endRun(run, fragments, depth);
+        i = escapeEnd(regex, i); // Whatever it stands for, the literal is not checked across it
+      } else if (c == '[') {
+        endRun(run, fragments, depth);
+        for (int nested = 0; ++i < regex.length() && (regex.charAt(i) != ']' || nested-- > 0); ) {
+          if (regex.charAt(i) == '\\') {
+            i = escapeEnd(regex, i);
+          } else if (regex.charAt(i) == '[') {
+            nested++; // Union or intersection with another class
+          }
+        }
+      } else if (c == '(') {
+        if (regex.startsWith("(?", i) && commentsFlag(regex, i + 2)) {
+          return new ArrayList<>(); // Whitespace and # comments are ignored, so runs are not literals
+        }
+        endRun(run, fragments, depth);
+        depth++;
+      } else if (c == ')') {
+        endRun(run, fragments, depth);
+        depth--;
+      } else if (c == '?' || c == '*' || c == '{') {
+        if (run.length() > 0) {
+          run.setLength(run.length() - 1); // The last character may be absent
+        }
+        endRun(run, fragments, depth);
+        while (c == '{' && i < regex.length() && regex.charAt(i) != '}') {
+          i++;
+        }
+      } else if (c < 0x80 && (Character.isLetterOrDigit(c) || c == '_')) {
+        run.append(Character.toLowerCase(c));
+      } else {
+        endRun(run, fragments, depth); // Other characters, including '.', '^', '$' and '+', end the literal
+      }
+    }
+    endRun(run, fragments, depth);
+    return fragments;
+  }
+
+  // Index of the last character of the escape whose backslash is at the given index
+  private static int escapeEnd(String regex, int at) {
+    int end = at + 1; // The escaped character
+    if (end >= regex.length()) {
+      return end;
+    }
+    char c = regex.charAt(end);
+    char open = c == 'k' ? '<' : '{';
+    char close = c == 'k' ? '>' : '}';
+    if ("xpPNk".indexOf(c) >= 0 && end + 1 < regex.length() && regex.charAt(end + 1) == open) {
+      int closing = regex.indexOf(close, end);
+      return closing < 0 ? regex.length() - 1 : closing; // \x{hex}, \p{class}, \N{name} or \k<name>
+    }
+    int digits = c == 'x' ? 2 : c == 'u' ? 4 : c == 'c' || c == 'p' || c == 'P' ? 1 : 0; // \xhh, \cX, \pL, and u with four hex digits
+    if (c == '0') {
+      while (digits < 3 && end + digits + 1 < regex.length() && regex.charAt(end + digits + 1) >= '0'
+          && regex.charAt(end + digits + 1) <= '7') {
+        digits++; // Octal \0n, \0nn or \0mnn
+      }
+    } else if (c >= '1' && c <= '9') {
+      while (end + digits + 1 < regex.length() && Character.isDigit(regex.charAt(end + digits + 1))) {
+        digits++; // Back reference to a numbered group
+      }
+    }
+    return Math.min(end + digits, regex.length() - 1);
+  }
+
+  // Check whether the flags of an inline group starting at the given index turn on comments mode
+  private static boolean commentsFlag(String regex, int at) {
+    for (int i = at; i < regex.length() && Character.isLetter(regex.charAt(i)); i++) {
+      if (regex.charAt(i) == 'x') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Keep a finished literal if it is long enough and not inside a group
+  private static void endRun(StringBuilder run, List<String> fragments, int depth) {
+    if (depth == 0 && run.length() >= MIN_FRAGMENT_LENGTH) {
+      fragments.add(run.toString());
+    }
+    run.setLength(0);
+  }
+
+  // Match a pattern only where it is not part of a longer word
+  private static Pattern wholeWord(String pattern) {
+    return Pattern.compile("(?<!" + WORD + ")" + pattern + "(?!" + WORD + ")", Pattern.CASE_INSENSITIVE);
+  }
+
+  // Check whether a byte belongs to a word: ASCII letters, digits, underscore or any part of a non-ASCII character
+  private static boolean isWordByte(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b < 0;
+  }
+
+  // Lowercase an ASCII letter, leaving every other byte as is
+  private static byte lower(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  // Check the start of a blob for a zero byte
+  private static boolean isBinary(byte[] bytes, int length) {
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
+
+class SearchHit {
+  private static final int MAX_TEXT = 200; // Longer lines are cut when shown
+
+  private final String repository; // Repository holding the file
+  private final String path; // Tracked path of the file
+  private final int line; // Line number, starting at 1
+  private final String text; // The matching line
+
+  // Constructor to initialize a matching line
+  SearchHit(String repository, String path, int line, String text) {
+    this.repository = repository;
+    this.path = path;
+    this.line = line;
+    this.text = text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) + "..." : text;
+  }
+
+  // Getter for the repository name
+  public String getRepository() {
+    return repository;
+  }
+
+  // Getter for the file path
+  public String getPath() {
+    return path;
+  }
+
+  // Getter for the line number
+  public int getLine() {
+    return line;
+  }
+
+  // Getter for the line text
+  public String getText() {
+    return text;
+  }
+
+  // Line in grep style, such as "docs:notes/todo.txt:12: fix the parser"
+  @Override
+  public String toString() {
+    return repository + ":" + path + ":" + line + ": " + text;
+  }
+}
+
+class Repository {
+  // Decoded file contents keyed by blob hash, shared by all repositories and bounded in bytes
+  private static final LruCache<String, String> CONTENT_CACHE = new LruCache<>(
+      Long.getLong("cvhub.cache.bytes", 64L * 1024 * 1024), content -> 40L + 2L * content.length());
+  // Calls, bytes read and latency of each operation, shown by stats; an operation's time includes those it calls
+  private static final OperationStats LOAD = Metrics.operation("repository.load");
+  private static final OperationStats COMMIT = Metrics.operation("repository.commit");
+  private static final OperationStats ADD_FILE = Metrics.operation("repository.addFile");
+  private static final OperationStats IMPORT_DIRECTORY = Metrics.operation("repository.importDirectory");
+  private static final OperationStats REMOVE_FILE = Metrics.operation("repository.removeFile");
+  private static final OperationStats STATUS = Metrics.operation("repository.status");
+  private static final OperationStats COMMIT_PATHS = Metrics.operation("repository.commitPaths");
+  private static final OperationStats STAGE_FILE = Metrics.operation("repository.stageFile");
+  private static final OperationStats STAGE_REMOVAL = Metrics.operation("repository.stageRemoval");
+  private static final OperationStats COMMIT_STAGED = Metrics.operation("repository.commitStaged");
+  private static final OperationStats FIND_FILES = Metrics.operation("repository.findFiles");
+  private static final OperationStats GET_FILE_NAMES = Metrics.operation("repository.getFileNames");
+  // One call per commit stepped through, as callers such as log stop walking the history early
+  private static final OperationStats GET_COMMIT_HISTORY = Metrics.operation("repository.getCommitHistory");
+  private static final OperationStats VERSIONS_OF = Metrics.operation("repository.versionsOf");
+  private static final OperationStats DIFF = Metrics.operation("repository.diff");
+  private static final OperationStats OPEN_SNAPSHOT = Metrics.operation("repository.openSnapshot");
+  private static final OperationStats OPEN_PAGED = Metrics.operation("repository.openPaged");
+  private static final OperationStats OPEN_STREAM = Metrics.operation("repository.openStream");
+
+  private String name; // Name of the repository
+  private Map<String, Commit> commits; // Every commit of the repository indexed by its id
+  private volatile Snapshot snapshot; // Tracked files as of the latest commit, replaced as a whole by each commit
+  private Map<String, FileChange> staged; // Changes waiting for the next commit, one per path; shared by all sessions
+  private final Object stageLock = new Object(); // Guards staged, held through a commit of the staged changes
+  private StatCache stats; // Last known metadata of tracked files, used by status
+  private final Map<String, Integer> versionCounts = new HashMap<>(); // Number of versions added per path
+  private BlobStore blobStore; // Content-addressed store holding the file contents
+  private CommitJournal journal; // Append-only log of commits, or null when commits are kept in memory only
+  private SearchIndex searchIndex; // Full-text index the current files are registered with
+  private boolean deleted; // Set once the repository is deleted, so a session still holding it cannot commit
+
+  // Record type written to the commit journal
+  private static final byte LEGACY_ADD_RECORD = 1; // One added file, written before whole commits were recorded
+  private static final byte LEGACY_REMOVE_RECORD = 2; // One removed file, in the same older format
+  private static final byte COMMIT_RECORD = 3;
+  // States of a tracked file reported by status
+  private static final int UNCHANGED = 0;
+  private static final int MODIFIED = 1;
+  private static final int DELETED = 2;
+  // Every this many versions of a path one is kept in full, bounding the delta chains of the others
+  private static final int KEYFRAME_INTERVAL = Integer.getInteger("cvhub.delta.keyframeInterval", 16);
+
+  // Immutable state read by lookups without locking; writers publish a new one instead of changing it. Recent
+  // changes sit in a small overlay on top of a base shared by many snapshots, so a commit copies only the overlay
+  private static class Snapshot {
+    static final String REMOVED = ""; // Overlay value of a path removed since the base was built
+    static final int MAX_CHANGES = 1024; // Larger overlays are folded into a new base
+
+    final Map<String, String> base; // A map from file paths to the hash of their content, as of the base
+    final PathIndex pathIndex; // File name and suffix lookups over the paths of the base
+    final Map<String, String> changes; // Paths added, changed or removed since the base
+    final String head; // Id of the latest commit, or null before the first one
+
+    Snapshot(Map<String, String> base, PathIndex pathIndex, Map<String, String> changes, String head) {
+      this.base = Collections.unmodifiableMap(base);
+      this.pathIndex = pathIndex;
+      this.changes = Collections.unmodifiableMap(changes);
+      this.head = head;
+    }
+
+    // Create a snapshot from the base of another and new changes, folding them in once the overlay is large
+    static Snapshot of(Snapshot previous, Map<String, String> changes, String head) {
+      if (changes.size() <= MAX_CHANGES && changes.size() <= previous.base.size() / 8) {
+        return new Snapshot(previous.base, previous.pathIndex, changes, head); // Base is shared
+      }
+      Map<String, String> base = new HashMap<>(previous.base);
+      PathIndex pathIndex = previous.pathIndex.copy();
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+        if (change.getValue() == REMOVED) {
+          if (base.remove(change.getKey()) != null) {
+            pathIndex.remove(change.getKey());
+          }
+        } else if (base.put(change.getKey(), change.getValue()) == null) {
+          pathIndex.add(change.getKey());
+        }
+      }
+      return new Snapshot(base, pathIndex, new HashMap<>(), head);
+    }
+
+    // Content hash of a tracked path, or null
+    String hashOf(String filePath) {
+      String hash = changes.get(filePath);
+      if (hash != null) {
+        return hash == REMOVED ? null : hash;
+      }
+      return base.get(filePath);
+    }
+
+    // Every tracked path with its content hash
+    Map<String, String> filePaths() {
+      if (changes.isEmpty()) {
+        return base;
+      }
+      Map<String, String> filePaths = new HashMap<>(base);
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+        if (change.getValue() == REMOVED) {
+          filePaths.remove(change.getKey());
+        } else {
+          filePaths.put(change.getKey(), change.getValue());
+        }
+      }
+      return filePaths;
+    }
+
+    // Tracked paths ending with a file name or trailing path segments, sorted
+    List<String> find(String suffix) {
+      List<String> matches = pathIndex.find(suffix);
+      if (changes.isEmpty()) {
+        return matches;
+      }
+      matches = new ArrayList<>(matches);
+      matches.removeIf(path -> changes.get(path) == REMOVED);
+      List<String> segments = PathIndex.segments(suffix);
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+        if (change.getValue() != REMOVED && !base.containsKey(change.getKey())
+            && PathIndex.endsWith(change.getKey(), segments)) {
+          matches.add(change.getKey()); // Tracked since the base was built
+        }
+      }
+      Collections.sort(matches);
+      return matches;
+    }
+  }
+
+  // Constructor to initialize a repository backed by the shared blob store and its own journal
+  public Repository(String name) {
+    this(name, BlobStore.shared(), openJournal(name));
+  }
+
+  // Constructor to initialize repository name, file map, commit history, blob store and journal
+  public Repository(String name, BlobStore blobStore, CommitJournal journal) {
+    this(name, blobStore, journal, journal == null ? null : statFile(name));
+  }
+
+  // Constructor to initialize a repository whose status metadata is saved to the given file, or not at all if null
+  Repository(String name, BlobStore blobStore, CommitJournal journal, Path statFile) {
+    this.name = name; // Initialize repository name
+    this.commits = new ConcurrentHashMap<>(); // Initialize the commit index, readable without the lock
+    this.snapshot = new Snapshot(new HashMap<>(), new PathIndex(), new HashMap<>(), null); // No files or commits yet
+    this.staged = new LinkedHashMap<>(); // Nothing staged yet
+    this.blobStore = blobStore; // Store shared with the other repositories
+    this.journal = journal; // Where commits are made durable
+    this.stats = new StatCache(statFile);
+    this.searchIndex = blobStore == BlobStore.shared() ? SearchIndex.shared() : new SearchIndex(blobStore);
+  }
+
+  // Get the file the status metadata of a repository is saved to, or null if the data directory is unusable
+  private static Path statFile(String name) {
+    try {
+      return StatCache.forRepository(name);
+    } catch (IOException e) {
+      return null; // Status still works, it just reads every file after a restart
+    }
+  }
+
+  // Open the journal of a repository, falling back to memory only if the data directory is unusable
+  private static CommitJournal openJournal(String name) {
+    try {
+      CommitJournal journal = CommitJournal.forRepository(name);
+      journal.create(); // The repository exists on disk even before its first commit
+      return journal;
+    } catch (IOException e) {
+      System.out.println("Commit journal unavailable, commits will not be saved: " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Load every repository recorded in the data directory; a repository that cannot be loaded is left out and
+  // the reason is added to failures, without keeping the others from loading
+  public static List<Repository> loadAll(List<String> failures) {
+    List<Repository> repositories = new ArrayList<>();
+    List<String> names;
+    try {
+      names = CommitJournal.repositoryNames();
+    } catch (IOException e) {
+      failures.add("Repositories could not be listed: " + e.getMessage());
+      return repositories;
+    }
+    for (String name : names) {
+      try {
+        Repository repo = new Repository(name);
+        repo.recover(); // Rebuild files and history from the journal
+        repositories.add(repo);
+      } catch (IOException e) {
+        failures.add("Repository '" + name + "' could not be loaded: " + e.getMessage());
+      }
+    }
+    return repositories;
+  }
+
+  // Load a single repository from the data directory, or return null if it has no journal
+  public static Repository load(String name) throws IOException {
+    long started = System.nanoTime();
+    try {
+      String storedName = CommitJournal.findRepositoryName(name);
+      if (storedName == null) {
+        return null;
+      }
+      Repository repo = new Repository(storedName);
+      repo.recover(); // Rebuild files and history from the journal
+      return repo;
+    } finally {
+      LOAD.record(started);
+    }
+  }
+
+  // Replay the journal to rebuild the file map and commit history
+  public synchronized void recover() throws IOException {
+    if (journal == null) {
+      return; // Nothing was saved
+    }
+    List<Commit> replayed = new ArrayList<>();
+    String head = snapshot.head;
+    for (byte[] record : journal.replay()) {
+      DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+      byte type = data.readByte();
+      Commit commit;
+      if (type == COMMIT_RECORD) {
+        commit = Commit.readFrom(data);
+      } else if (type == LEGACY_ADD_RECORD || type == LEGACY_REMOVE_RECORD) {
+        commit = legacyCommit(type, data, head); // Converted on every load, the journal is left as written
+      } else {
+        throw new IOException("The journal of repository '" + name + "' holds a record of unknown type " + type
+            + "; it was written by a newer version");
+      }
+      head = commit.getId();
+      for (FileChange change : commit.getChanges()) {
+        if (change.getType() == FileChange.ADD) {
+          blobStore.retain(change.getHash()); // Content itself is not part of the journal
+        }
+      }
+      replayed.add(commit);
+    }
+    snapshot = apply(snapshot, replayed); // Published once, not once per commit
+  }
+
+  // Turn a file record of the older journal format into the commit it stood for; the format kept no author or time
+  private static Commit legacyCommit(byte type, DataInputStream data, String parentId) throws IOException {
+    String filePath = data.readUTF();
+    String hash = data.readUTF();
+    String entry = data.readUTF(); // History line, "Added file: <path> | Commit: <message>"
+    int at = entry.indexOf(" | Commit: ");
+    String message = at < 0 ? entry : entry.substring(at + " | Commit: ".length());
+    FileChange change = type == LEGACY_ADD_RECORD ? new FileChange(FileChange.ADD, filePath, hash)
+        : new FileChange(FileChange.REMOVE, filePath, "");
+    return Commit.create(parentId, 0, "unknown", message, List.of(change));
+  }
+
+  // Record a commit: write it to the journal, make it visible in memory, then wait until it is durable
+  private Commit commit(String message, String author, List<FileChange> changes) throws IOException {
+    return commit(message, author, changes, true);
+  }
+
+  // Record a commit; if it fails, the blob references of added files are dropped unless they are still staged.
+  // A failed sync after the commit was published throws UnsyncedCommitException instead, as it did happen
+  private Commit commit(String message, String author, List<FileChange> changes, boolean releaseOnFailure)
+      throws IOException {
+    long started = System.nanoTime();
+    try {
+      Commit commit;
+      Map<String, String> replaced;
+      long journalEnd = -1;
+      if (journal != null) {
+        try {
+          blobStore.sync(); // The contents must be on disk before a commit refers to them
+        } catch (IOException e) {
+          if (releaseOnFailure) {
+            releaseAdded(changes);
+          }
+          throw new IOException("Error saving file contents: " + e.getMessage(), e);
+        }
+      }
+      synchronized (this) {
+        try {
+          if (deleted) {
+            throw new IOException("Repository '" + name + "' was deleted"); // Its journal is gone or going
+          }
+          validate(changes); // Nothing is written unless every change can be applied
+          commit = Commit.create(snapshot.head, System.currentTimeMillis(), author, message, changes);
+          if (journal != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(COMMIT_RECORD);
+            commit.writeTo(data);
+            try {
+              journalEnd = journal.write(bytes.toByteArray()); // Appended in commit order
+            } catch (IOException e) {
+              throw new IOException("Error writing the commit journal: " + e.getMessage(), e);
+            }
+          }
+        } catch (IOException | RuntimeException e) {
+          if (releaseOnFailure) {
+            releaseAdded(changes); // The commit did not happen
+          }
+          throw e;
+        }
+        replaced = replacedVersions(changes);
+        snapshot = apply(snapshot, List.of(commit)); // All changes become visible together
+      }
+      if (journalEnd >= 0) {
+        try {
+          journal.sync(journalEnd); // Shares one fsync with commits running concurrently
+        } catch (IOException e) {
+          throw new UnsyncedCommitException(commit, e); // Already published, so it must not be retried
+        }
+      }
+      compress(replaced);
+      return commit;
+    } finally {
+      COMMIT.record(started);
+    }
+  }
+
+  // Map each replaced version to its successor, for versions that are not keyframes
+  private Map<String, String> replacedVersions(List<FileChange> changes) {
+    Map<String, String> replaced = new HashMap<>();
+    for (FileChange change : changes) {
+      String previous = snapshot.hashOf(change.getPath());
+      int version = versionCounts.getOrDefault(change.getPath(), 0) - 1; // Index of the previous version
+      if (change.getType() == FileChange.ADD && previous != null && !previous.equals(change.getHash())
+          && version % KEYFRAME_INTERVAL != 0) {
+        replaced.put(previous, change.getHash());
+      }
+    }
+    return replaced;
+  }
+
+  // Store replaced versions as deltas against the versions that replaced them, which stay in full
+  private void compress(Map<String, String> replaced) {
+    for (Map.Entry<String, String> entry : replaced.entrySet()) {
+      blobStore.materialize(entry.getValue()); // A version reverted to must not be a delta of an older one
+      blobStore.deltify(entry.getKey(), entry.getValue());
+    }
+  }
+
+  // Check that a set of changes can be applied as a whole
+  private void validate(List<FileChange> changes) throws FileNotFoundException {
+    if (changes.isEmpty()) {
+      throw new FileNotFoundException("Nothing to commit.");
+    }
+    Set<String> paths = new HashSet<>();
+    for (FileChange change : changes) {
+      if (!paths.add(change.getPath())) {
+        throw new IllegalArgumentException("Path changed twice in one commit: " + change.getPath());
+      }
+      if (change.getType() == FileChange.REMOVE && snapshot.hashOf(change.getPath()) == null) {
+        throw new FileNotFoundException("File is no longer in the repository: " + change.getPath());
+      }
+    }
+  }
+
+  // Drop the blob references taken for added files that will not be committed
+  private void releaseAdded(List<FileChange> changes) {
+    for (FileChange change : changes) {
+      if (change.getType() == FileChange.ADD) {
+        blobStore.release(change.getHash());
+      }
+    }
+  }
+
+  // Apply commits on top of a snapshot and return the snapshot that includes them; the base stays unchanged
+  private Snapshot apply(Snapshot base, List<Commit> applied) {
+    Map<String, String> changes = new HashMap<>(base.changes);
+    String head = base.head;
+    for (Commit commit : applied) {
+      for (FileChange change : commit.getChanges()) {
+        String previous = changes.containsKey(change.getPath()) ? changes.get(change.getPath())
+            : base.base.get(change.getPath());
+        previous = previous == Snapshot.REMOVED ? null : previous;
+        changes.put(change.getPath(), change.getType() == FileChange.ADD ? change.getHash() : Snapshot.REMOVED);
+        if (previous != null) {
+          searchIndex.remove(name, change.getPath(), previous); // Older versions stay stored for history only
+        }
+        if (change.getType() == FileChange.ADD) {
+          versionCounts.merge(change.getPath(), 1, Integer::sum);
+          searchIndex.add(name, change.getPath(), change.getHash());
+        } else if (previous != null) {
+          stats.remove(change.getPath()); // No longer tracked
+        }
+      }
+      commits.put(commit.getId(), commit); // Reachable from the new head before it is published
+      head = commit.getId();
+    }
+    return Snapshot.of(base, changes, head);
+  }
+
+  // Delete the journal so the repository is not loaded again
+  public void deleteJournal() throws IOException {
+    if (journal != null) {
+      journal.delete();
+    }
+    stats.delete();
+  }
+
+  // Getter for the repository name
+  public String getName() {
+    return name; // Return the repository name
+  }
+
+  // Get the set of filenames stored in the repository
+  public Set<String> getFileNames() {
+    long started = System.nanoTime();
+    try {
+      return new TreeSet<>(snapshot.filePaths().keySet()); // A sorted copy, taken without waiting for writers
+    } finally {
+      GET_FILE_NAMES.record(started);
+    }
+  }
+
+  // Path a file is tracked under, the same however it was given, so one file is never tracked twice
+  static String trackedPath(Path path) {
+    return path.toAbsolutePath().normalize().toString();
+  }
+
+  // Add a file to the repository and return how it was read
+  public IngestResult addFile(String filePath, String commitMessage, String author) throws IOException {
+    long started = System.nanoTime();
+    try {
+      // Create a File object from the provided file path
+      File file = new File(filePath);
+      if (!file.exists() || !file.isFile()) { // Check if the file exists and is a valid file
+        throw new FileNotFoundException("File does not exist at the provided path.");
+      }
+      // Stream the file into the blob store and keep only its hash; done outside the lock
+      IngestResult result = blobStore.putFile(file.toPath());
+      ADD_FILE.read(result.getBytes());
+      String path = trackedPath(file.toPath());
+      stats.put(path, result.getStat()); // Lets status skip re-reading the file
+      // Record the commit; it takes over the blob reference from putFile
+      commit(commitMessage, author, List.of(new FileChange(FileChange.ADD, path, result.getHash())));
+      return result;
+    } finally {
+      ADD_FILE.record(started);
+    }
+  }
+
+  // Import every selected file under a directory, in parallel, as a single commit
+  public ImportResult importDirectory(String directory, List<String> includes, List<String> excludes,
+      String commitMessage, String author) throws IOException {
+    long started = System.nanoTime();
+    try {
+      Path root = Paths.get(directory);
+      if (!Files.isDirectory(root)) {
+        throw new FileNotFoundException("Directory does not exist at the provided path.");
+      }
+      DirectoryImport walk = new DirectoryImport(root, includes, excludes, blobStore);
+      List<FileChange> changes = walk.run(Integer.getInteger("cvhub.import.threads",
+          Runtime.getRuntime().availableProcessors()));
+      if (changes.isEmpty()) {
+        throw new FileNotFoundException("No files matched under " + directory + ".");
+      }
+      IMPORT_DIRECTORY.read(walk.getBytes());
+      walk.getStats().forEach(stats::put);
+      commit(commitMessage, author, changes); // One commit for the whole tree
+      try {
+        stats.save(); // A status right after a large import does not have to read it all again
+      } catch (IOException e) {
+        // Only a cache
+      }
+      return new ImportResult(changes.size(), walk.getBytes(), System.nanoTime() - started);
+    } finally {
+      IMPORT_DIRECTORY.record(started);
+    }
+  }
+
+  // Remove a file from the repository by its filename and return the full path that was removed
+  public String removeFile(String fileName, String commitMessage, String author) throws IOException {
+    long started = System.nanoTime();
+    try {
+      // Search for the file by its path, file name or trailing path segments
+      String filePathToRemove = findPath(fileName);
+      if (filePathToRemove == null) {
+        throw new FileNotFoundException("File not found in the repository."); // If the file isn't found
+      }
+      // Record the commit, which also drops the file's blob reference. It checks again under the lock that the
+      // file is still tracked and syncs outside it, so removals share fsyncs with concurrent commits
+      commit(commitMessage, author, List.of(new FileChange(FileChange.REMOVE, filePathToRemove, "")));
+      return filePathToRemove;
+    } finally {
+      REMOVE_FILE.record(started);
+    }
+  }
+
+  // Compare every tracked file on disk with the committed content, reading only files whose metadata changed
+  public StatusResult status() {
+    return status(null);
+  }
+
+  // Compare the given tracked files, or all of them if null, with their copies on disk
+  public StatusResult status(Collection<String> filePaths) {
+    long started = System.nanoTime();
+    try {
+      stats.load(); // Metadata saved by an earlier run
+      Snapshot current = snapshot; // Never changes, so no lock is needed
+      Map<String, String> tracked;
+      if (filePaths == null) {
+        tracked = current.filePaths();
+      } else {
+        tracked = new HashMap<>();
+        for (String filePath : filePaths) {
+          String hash = current.hashOf(filePath);
+          if (hash != null) {
+            tracked.put(filePath, hash); // Untracked paths are ignored
+          }
+        }
+      }
+      AtomicInteger rehashed = new AtomicInteger();
+      Map<Integer, List<String>> byState = tracked.entrySet().parallelStream()
+          .collect(Collectors.groupingBy(entry -> check(entry.getKey(), entry.getValue(), rehashed),
+              Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+      try {
+        stats.save(); // The next run can skip the files read this time
+      } catch (IOException e) {
+        // Only a cache; the next status reads those files again
+      }
+      return new StatusResult(sorted(byState.get(MODIFIED)), sorted(byState.get(DELETED)),
+          sorted(byState.get(UNCHANGED)), rehashed.get(), System.nanoTime() - started);
+    } finally {
+      STATUS.record(started);
+    }
+  }
+
+  // Check one tracked file against the hash it was committed with
+  private int check(String filePath, String hash, AtomicInteger rehashed) {
+    Path path = Paths.get(filePath);
+    FileStat current;
+    try {
+      current = FileStat.read(path);
+    } catch (IOException e) {
+      return DELETED; // Gone, replaced by a directory or unreadable
+    }
+    FileStat cached = stats.get(filePath);
+    if (cached != null && hash.equals(cached.getHash()) && cached.matches(current)) {
+      return UNCHANGED; // Same metadata as when the content was last read
+    }
+    rehashed.incrementAndGet();
+    try {
+      if (!BlobStore.hashFile(path).equals(hash)) {
+        return MODIFIED;
+      }
+    } catch (IOException e) {
+      return DELETED;
+    }
+    stats.put(filePath, current.withHash(hash)); // Touched but not changed; trust the new metadata next time
+    return UNCHANGED;
+  }
+
+  // Sort a possibly missing list of paths
+  private static List<String> sorted(List<String> paths) {
+    if (paths == null) {
+      return Collections.emptyList();
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  // Commit the current content of the given tracked files as one commit; missing files are removed
+  public Commit commitPaths(Collection<String> filePaths, String commitMessage, String author) throws IOException {
+    long started = System.nanoTime();
+    try {
+      List<FileChange> changes = new ArrayList<>();
+      try {
+        for (String filePath : filePaths) {
+          Path path = Paths.get(filePath);
+          if (Files.isRegularFile(path)) {
+            IngestResult result = blobStore.putFile(path);
+            COMMIT_PATHS.read(result.getBytes());
+            stats.put(filePath, result.getStat());
+            changes.add(new FileChange(FileChange.ADD, filePath, result.getHash()));
+          } else {
+            changes.add(new FileChange(FileChange.REMOVE, filePath, ""));
+          }
+        }
+      } catch (IOException e) {
+        releaseAdded(changes); // Files read before the failure
+        throw e;
+      }
+      return commit(commitMessage, author, changes);
+    } finally {
+      COMMIT_PATHS.record(started);
+    }
+  }
+
+  // Stage a file to be added by the next commit of staged changes; its content is captured now
+  public IngestResult stageFile(String filePath) throws IOException {
+    long started = System.nanoTime();
+    try {
+      File file = new File(filePath);
+      if (!file.exists() || !file.isFile()) {
+        throw new FileNotFoundException("File does not exist at the provided path.");
+      }
+      IngestResult result = blobStore.putFile(file.toPath()); // Read outside the lock
+      STAGE_FILE.read(result.getBytes());
+      String path = trackedPath(file.toPath());
+      stats.put(path, result.getStat());
+      stage(new FileChange(FileChange.ADD, path, result.getHash()));
+      return result;
+    } finally {
+      STAGE_FILE.record(started);
+    }
+  }
+
+  // Stage the removal of a tracked file and return its full path
+  public String stageRemoval(String fileName) throws IOException {
+    long started = System.nanoTime();
+    try {
+      String filePath = findPath(fileName);
+      if (filePath == null) {
+        throw new FileNotFoundException("File not found in the repository.");
+      }
+      stage(new FileChange(FileChange.REMOVE, filePath, ""));
+      return filePath;
+    } finally {
+      STAGE_REMOVAL.record(started);
+    }
+  }
+
+  // Record a staged change, replacing any earlier staged change to the same path
+  private void stage(FileChange change) {
+    synchronized (stageLock) {
+      FileChange replaced = staged.put(change.getPath(), change);
+      if (replaced != null) {
+        releaseAdded(List.of(replaced)); // The earlier staged content will not be committed
+      }
+    }
+  }
+
+  // Drop the staged change for a path, returning false if nothing was staged for it
+  public boolean unstage(String filePath) {
+    synchronized (stageLock) {
+      FileChange removed = staged.remove(filePath);
+      if (removed == null) {
+        removed = staged.remove(trackedPath(Paths.get(filePath))); // An added file, given as typed
+      }
+      if (removed == null) {
+        return false;
+      }
+      releaseAdded(List.of(removed));
+      return true;
+    }
+  }
+
+  // Get the changes staged for the next commit
+  public List<FileChange> getStagedChanges() {
+    synchronized (stageLock) {
+      return new ArrayList<>(staged.values());
+    }
+  }
+
+  // Commit every staged change atomically as one commit
+  public Commit commitStaged(String commitMessage, String author) throws IOException {
+    long started = System.nanoTime();
+    try {
+      // Staging waits until the commit is done, so the stage cannot change under it; readers do not wait
+      synchronized (stageLock) {
+        Commit commit;
+        try {
+          commit = commit(commitMessage, author, new ArrayList<>(staged.values()), false);
+        } catch (UnsyncedCommitException e) {
+          staged.clear(); // Committed all the same; keeping the stage would record the changes twice
+          throw e;
+        }
+        staged.clear(); // Staged blob references moved to the commit
+        return commit;
+      }
+    } finally {
+      COMMIT_STAGED.record(started);
+    }
+  }
+
+  // Get the commit history of the repository, newest first, following parent links as it is iterated
+  public Iterable<Commit> getCommitHistory() {
+    return () -> new Iterator<Commit>() {
+      private Commit next = getHead(); // Start at the latest commit
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Commit next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        long started = System.nanoTime();
+        Commit current = next;
+        next = current.getParentId() == null ? null : commits.get(current.getParentId()); // Step to the parent
+        GET_COMMIT_HISTORY.record(started);
+        return current;
+      }
+    };
+  }
+
+  // Look up a commit by its id
+  public Commit getCommit(String id) {
+    return commits.get(id);
+  }
+
+  // Get the latest commit, or null if there are none
+  public Commit getHead() {
+    String head = snapshot.head;
+    return head == null ? null : commits.get(head);
+  }
+
+  // Drop the blob references held by this repository, used when it is deleted
+  public void releaseFiles() {
+    synchronized (stageLock) { // Taken before the repository lock, as commitStaged does
+      releaseAdded(new ArrayList<>(staged.values()));
+      staged.clear();
+    }
+    synchronized (this) {
+      deleted = true; // Commits already running have finished, later ones fail
+      for (Commit commit : commits.values()) {
+        releaseAdded(commit.getChanges()); // Content shared with other repositories stays stored
+      }
+      snapshot = new Snapshot(new HashMap<>(), new PathIndex(), new HashMap<>(), snapshot.head); // History stays
+      searchIndex.removeRepository(name);
+    }
+  }
+
+  // Get the cache of decoded file contents shared by all repositories
+  public static LruCache<String, String> contentCache() {
+    return CONTENT_CACHE;
+  }
+
+  // Find every tracked path matching a full path, a file name or trailing path segments
+  public List<String> findFiles(String fileName) {
+    long started = System.nanoTime();
+    try {
+      return findFiles(snapshot, fileName);
+    } finally {
+      FIND_FILES.record(started);
+    }
+  }
+
+  // Find matching paths in one snapshot
+  private static List<String> findFiles(Snapshot files, String fileName) {
+    if (files.hashOf(fileName) != null) {
+      return List.of(fileName); // Exact path
+    }
+    return files.find(fileName);
+  }
+
+  // Find the stored path for a filename, or null if none matches
+  private String findPath(String fileName) throws AmbiguousFileException {
+    return findPath(snapshot, fileName);
+  }
+
+  // Find the stored path for a filename in one snapshot
+  private static String findPath(Snapshot files, String fileName) throws AmbiguousFileException {
+    List<String> matches = findFiles(files, fileName);
+    if (matches.size() > 1) {
+      throw new AmbiguousFileException(fileName, matches); // Several paths share this suffix
+    }
+    return matches.isEmpty() ? null : matches.get(0);
+  }
+
+  // Get the content hash of the file a name refers to
+  private String resolveHash(String fileName) throws FileNotFoundException {
+    Snapshot files = snapshot; // Path and hash come from the same commit
+    String filePath = findPath(files, fileName);
+    if (filePath == null) {
+      throw new FileNotFoundException("File not found in repository.");
+    }
+    return files.hashOf(filePath);
+  }
+
+  // Get the commits that changed a tracked or formerly tracked path, newest first
+  public List<Commit> versionsOf(String fileName) throws FileNotFoundException {
+    long started = System.nanoTime();
+    try {
+      String filePath = historyPath(fileName);
+      List<Commit> versions = new ArrayList<>();
+      for (Commit commit : getCommitHistory()) {
+        if (commit.getChangedPaths().contains(filePath)) {
+          versions.add(commit);
+        }
+      }
+      if (versions.isEmpty()) {
+        throw new FileNotFoundException("File not found in repository.");
+      }
+      return versions;
+    } finally {
+      VERSIONS_OF.record(started);
+    }
+  }
+
+  // Resolve a name to a tracked path; removed paths are only found by their full path
+  private String historyPath(String fileName) throws AmbiguousFileException {
+    String filePath = findPath(fileName);
+    return filePath == null ? fileName : filePath;
+  }
+
+  // Find a commit by a unique prefix of its id
+  public Commit findCommit(String idPrefix) throws FileNotFoundException {
+    Commit match = commits.get(idPrefix);
+    if (match != null) {
+      return match;
+    }
+    for (Commit commit : commits.values()) {
+      if (commit.getId().startsWith(idPrefix)) {
+        if (match != null) {
+          throw new IllegalArgumentException("Commit id prefix is ambiguous: " + idPrefix);
+        }
+        match = commit;
+      }
+    }
+    if (match == null) {
+      throw new FileNotFoundException("Commit not found: " + idPrefix);
+    }
+    return match;
+  }
+
+  // Get the content hash a path had as of a commit, or null if it did not exist then
+  private String hashAt(String filePath, Commit commit) {
+    for (Commit current = commit; current != null;
+        current = current.getParentId() == null ? null : commits.get(current.getParentId())) {
+      for (FileChange change : current.getChanges()) {
+        if (change.getPath().equals(filePath)) {
+          return change.getType() == FileChange.ADD ? change.getHash() : null;
+        }
+      }
+    }
+    return null;
+  }
+
+  // Unified diff of a path between two commits; by default its last two versions, or a version and the latest
+  public List<String> diff(String fileName, String fromId, String toId) throws FileNotFoundException {
+    long started = System.nanoTime();
+    try {
+      List<Commit> versions = versionsOf(fileName);
+      String filePath = historyPath(fileName);
+      Commit to = toId == null ? versions.get(0) : findCommit(toId);
+      Commit from;
+      if (fromId != null) {
+        from = findCommit(fromId);
+      } else {
+        int index = versions.indexOf(to);
+        from = index >= 0 && index + 1 < versions.size() ? versions.get(index + 1) : null; // Version before 'to'
+      }
+      String fromHash = from == null ? null : hashAt(filePath, from);
+      String toHash = hashAt(filePath, to);
+      if (Objects.equals(fromHash, toHash)) {
+        return Collections.emptyList(); // Same content, nothing to read
+      }
+      byte[] fromContent = contentOf(fromHash, fileName);
+      byte[] toContent = contentOf(toHash, fileName);
+      DIFF.read(fromContent.length + toContent.length);
+      LineDiff diff = new LineDiff(fromContent, toContent);
+      return diff.unified(label("a", filePath, from, fromHash), label("b", filePath, to, toHash));
+    } finally {
+      DIFF.record(started);
+    }
+  }
+
+  // Stored bytes of a version, empty if the path did not exist
+  private byte[] contentOf(String hash, String fileName) throws FileNotFoundException {
+    if (hash == null) {
+      return new byte[0];
+    }
+    byte[] bytes = blobStore.get(hash);
+    if (bytes == null) {
+      throw new FileNotFoundException("Content of " + fileName + " is not available.");
+    }
+    return bytes;
+  }
+
+  // File label of one side of a diff
+  private static String label(String side, String filePath, Commit commit, String hash) {
+    if (hash == null) {
+      return "/dev/null";
+    }
+    return side + (filePath.startsWith("/") ? "" : "/") + filePath + "\t" + commit.getShortId();
+  }
+
+  // Get the committed content of a file, decoding it only on a cache miss
+  public String openSnapshot(String fileName) throws FileNotFoundException {
+    long started = System.nanoTime();
+    try {
+      String hash = resolveHash(fileName);
+      String content = CONTENT_CACHE.get(hash);
+      if (content == null) {
+        byte[] bytes = blobStore.get(hash);
+        if (bytes == null) {
+          throw new FileNotFoundException("Content of " + fileName + " is not available.");
+        }
+        OPEN_SNAPSHOT.read(bytes.length); // Cached contents are not read again
+        content = new String(bytes, StandardCharsets.UTF_8); // Decode the stored bytes once
+        CONTENT_CACHE.put(hash, content);
+      }
+      return content;
+    } finally {
+      OPEN_SNAPSHOT.record(started);
+    }
+  }
+
+  // Open the committed content of a file for paged viewing
+  public PageSource openPaged(String fileName) throws FileNotFoundException {
+    long started = System.nanoTime();
+    try {
+      String hash = resolveHash(fileName);
+      PageSource chunked = blobStore.openChunked(hash);
+      if (chunked != null) {
+        return chunked; // Chunks are loaded as the pages are shown
+      }
+      byte[] bytes = blobStore.get(hash);
+      if (bytes == null) {
+        throw new FileNotFoundException("Content of " + fileName + " is not available.");
+      }
+      OPEN_PAGED.read(bytes.length);
+      return BufferPageSource.wrap(bytes); // Paged by byte offset like chunks, decoding only the rows shown
+    } finally {
+      OPEN_PAGED.record(started);
+    }
+  }
+
+  // Stream the committed bytes of a file
+  public InputStream openStream(String fileName) throws FileNotFoundException {
+    long started = System.nanoTime();
+    try {
+      return blobStore.openStream(resolveHash(fileName));
+    } finally {
+      OPEN_STREAM.record(started);
+    }
+  }
+
+  // Open and view the committed content of a file by its filename
+  public String openFile(String fileName) {
+    try {
+      return openSnapshot(fileName); // Served from the stored snapshot, not from disk
+    } catch (FileNotFoundException e) {
+      return e.getMessage();
+    }
+  }
+}
+
+class RepositoryWatcher implements Closeable {
+  // Longest a burst of events can postpone a commit, in debounce windows
+  private static final int MAX_DEBOUNCE_WINDOWS = 20;
+
+  private final Repository repo; // Repository whose tracked files are watched
+  private final long debounceMillis; // Quiet time required after the last event before committing
+  private final String author; // Author of the commits made by the watcher
+  private final PrintStream log; // Where each commit is reported
+  private final WatchService service; // Delivers file system events for the watched directories
+  private final Map<WatchKey, Path> directories; // Watched directory of each registration
+  private final Map<Path, String> tracked; // Tracked paths keyed by their absolute form
+  private final Set<String> pending; // Tracked paths with events since the last commit
+  private int commits; // Number of commits made so far
+  private boolean started; // Whether the tracked directories are registered
+
+  // Constructor to initialize a watcher over the tracked files of a repository
+  RepositoryWatcher(Repository repo, long debounceMillis, String author, PrintStream log) throws IOException {
+    this.repo = repo;
+    this.debounceMillis = Math.max(1, debounceMillis);
+    this.author = author;
+    this.log = log;
+    this.service = FileSystems.getDefault().newWatchService();
+    this.directories = new HashMap<>();
+    this.tracked = new HashMap<>();
+    this.pending = new TreeSet<>();
+  }
+
+  // Debounce window configured for the process
+  public static long defaultDebounceMillis() {
+    return Long.getLong("cvhub.watch.debounceMs", 500);
+  }
+
+  // Register the directories of the tracked files, failing if there is nothing to watch
+  public void start() throws IOException {
+    refresh();
+    if (directories.isEmpty()) {
+      throw new FileNotFoundException("No tracked files to watch.");
+    }
+    started = true;
+  }
+
+  // Watch until close() is called, committing each burst of changes as one commit
+  public void run() throws IOException {
+    try {
+      if (!started) {
+        start();
+      }
+      while (true) {
+        collect(service.take()); // Sleep until something happens
+        long burstEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounceMillis * MAX_DEBOUNCE_WINDOWS);
+        while (true) {
+          long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(debounceMillis), burstEnd - System.nanoTime());
+          WatchKey key = wait > 0 ? service.poll(wait, TimeUnit.NANOSECONDS) : null;
+          if (key == null) {
+            break; // Quiet for a whole window, or the burst went on too long
+          }
+          collect(key);
+        }
+        flush();
+      }
+    } catch (ClosedWatchServiceException e) {
+      flush(); // Stopped; commit what was already seen
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      flush();
+    }
+  }
+
+  // Stop watching; run() commits pending changes and returns
+  @Override
+  public void close() throws IOException {
+    service.close();
+  }
+
+  // Number of commits made by the watcher
+  public int getCommits() {
+    return commits;
+  }
+
+  // Register the parent directory of every tracked path that is not watched yet
+  private void refresh() throws IOException {
+    tracked.clear();
+    Set<Path> watched = new HashSet<>(directories.values());
+    for (String filePath : repo.getFileNames()) {
+      Path path = Paths.get(filePath).toAbsolutePath().normalize();
+      tracked.put(path, filePath);
+      Path directory = path.getParent();
+      if (directory != null && watched.add(directory) && Files.isDirectory(directory)) {
+        WatchKey key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        directories.put(key, directory);
+      }
+    }
+  }
+
+  // Note the tracked paths touched by the events of one directory
+  private void collect(WatchKey key) {
+    Path directory = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (directory == null) {
+        continue;
+      }
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        markDirectory(directory); // Events were lost, so check everything in the directory
+      } else {
+        String filePath = tracked.get(directory.resolve((Path) event.context()));
+        if (filePath != null) {
+          pending.add(filePath); // Events for untracked files are ignored
+        }
+      }
+    }
+    if (!key.reset() && directory != null) {
+      directories.remove(key); // The directory itself is gone
+      markDirectory(directory);
+    }
+  }
+
+  // Mark every tracked path in a directory as possibly changed
+  private void markDirectory(Path directory) {
+    for (Map.Entry<Path, String> entry : tracked.entrySet()) {
+      if (directory.equals(entry.getKey().getParent())) {
+        pending.add(entry.getValue());
+      }
+    }
+  }
+
+  // Commit the pending paths whose content really changed as one commit
+  private void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    StatusResult status = repo.status(pending); // Touched but identical files are skipped
+    pending.clear();
+    List<String> changed = new ArrayList<>(status.getModified());
+    changed.addAll(status.getDeleted());
+    if (changed.isEmpty()) {
+      return;
+    }
+    try {
+      Commit commit = repo.commitPaths(changed, "Auto-commit: " + status.getModified().size() + " modified, "
+          + status.getDeleted().size() + " deleted", author);
+      commits++;
+      log.println(commit);
+      for (FileChange change : commit.getChanges()) {
+        log.println("    " + change);
+      }
+      refresh(); // Stop tracking removed paths
+    } catch (IOException e) {
+      log.println("Auto-commit failed: " + e.getMessage()); // Retried when the files change again
+    }
+  }
+}
+
+class RepositoryRegistry {
+  // All methods synchronize on the registry so concurrent sessions see a consistent view
+  private final Map<String, Repository> byName; // Repositories keyed by case-folded name
+  private final TreeMap<String, Repository> sorted; // The same repositories in name order, for paged listings
+
+  // Constructor to initialize an empty registry
+  RepositoryRegistry() {
+    this.byName = new HashMap<>();
+    this.sorted = new TreeMap<>();
+  }
+
+  // Fold a repository name so lookups ignore case
+  static String key(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  // Reason a new repository cannot have a name, or null if it can; the selection menu reads n, p and numbers as
+  // commands and trims what is typed, so such names could never be picked by name
+  static String nameProblem(String name) {
+    if (name.trim().isEmpty()) {
+      return "Repository name cannot be empty.";
+    }
+    if (!name.equals(name.trim())) {
+      return "Repository name cannot start or end with spaces.";
+    }
+    if (name.equalsIgnoreCase("n") || name.equalsIgnoreCase("p")) {
+      return "Repository name cannot be 'n' or 'p', which turn the pages of the repository list.";
+    }
+    try {
+      Integer.parseInt(name);
+      return "Repository name cannot be a number, which picks a repository from the list.";
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // Add a repository unless one with the same name already exists
+  public synchronized boolean add(Repository repo) {
+    String key = key(repo.getName());
+    if (byName.putIfAbsent(key, repo) != null) {
+      return false; // Name already taken
+    }
+    sorted.put(key, repo);
+    return true;
+  }
+
+  // Check whether a repository with the given name exists
+  public synchronized boolean contains(String name) {
+    return byName.containsKey(key(name));
+  }
+
+  // Get a repository by name, or null if there is none
+  public synchronized Repository get(String name) {
+    return byName.get(key(name));
+  }
+
+  // Remove a repository by name and return it, or null if there was none
+  public synchronized Repository remove(String name) {
+    String key = key(name);
+    Repository repo = byName.remove(key);
+    if (repo != null) {
+      sorted.remove(key);
+    }
+    return repo;
+  }
+
+  // Number of registered repositories
+  public synchronized int size() {
+    return byName.size();
+  }
+
+  // Check whether no repositories are registered
+  public synchronized boolean isEmpty() {
+    return byName.isEmpty();
+  }
+
+  // Get up to limit repositories in name order, starting after the given name, or from the start if it is null
+  public synchronized List<Repository> pageAfter(String name, int limit) {
+    SortedMap<String, Repository> tail = name == null ? sorted : sorted.tailMap(key(name), false);
+    List<Repository> page = new ArrayList<>(limit);
+    for (Repository repo : tail.values()) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(repo);
+    }
+    return page;
+  }
+
+  // Get up to limit repositories in name order that come right before the given name
+  public synchronized List<Repository> pageBefore(String name, int limit) {
+    List<Repository> page = new ArrayList<>(limit);
+    for (Repository repo : sorted.headMap(key(name), false).descendingMap().values()) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(repo);
+    }
+    Collections.reverse(page); // Back into ascending order
+    return page;
+  }
+
+  // Create and register a new repository, or return null if the name is taken, here or by a journal on disk that
+  // was not loaded; a new repository must never append to the journal of another
+  public synchronized Repository create(String name) throws IOException {
+    if (contains(name) || CommitJournal.findRepositoryName(name) != null) {
+      return null; // Checked under the same lock as the insert
+    }
+    Repository repo = new Repository(name);
+    add(repo);
+    return repo;
+  }
+
+  // Snapshot of all repositories in name order
+  public synchronized List<Repository> values() {
+    return new ArrayList<>(sorted.values());
+  }
+}
+
+class HubServer {
+  static final int DEFAULT_PORT = 7070; // Port used when none is given
+
+  private final int port; // Local port to listen on
+  private final AtomicInteger sessions; // Number of connected sessions
+
+  // Constructor to initialize a server for the given port
+  HubServer(int port) {
+    this.port = port;
+    this.sessions = new AtomicInteger();
+  }
+
+  // Accept connections on the loopback interface and run each session on its own virtual thread
+  public void serve() throws IOException {
+    try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+      System.out.println("CvHub server listening on " + server.getLocalSocketAddress());
+      while (true) {
+        Socket socket = server.accept();
+        Thread.ofVirtual().name("cvhub-session-" + socket.getPort()).start(() -> runSession(socket));
+      }
+    }
+  }
+
+  // Run the menus for one connection until the user leaves or disconnects
+  private void runSession(Socket socket) {
+    System.out.println("Session connected from " + socket.getRemoteSocketAddress() + " (" + sessions.incrementAndGet()
+        + " active)");
+    try (socket) {
+      Scanner in = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+      PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+      new CvHub(in, out).run();
+    } catch (IOException | NoSuchElementException e) {
+      // The client disconnected in the middle of a prompt
+    } finally {
+      System.out.println("Session from " + socket.getRemoteSocketAddress() + " closed (" + sessions.decrementAndGet()
+          + " active)");
+    }
+  }
+}
+
+class LatencyHistogram {
+  // Each power of two is split into 2^SUB_BITS buckets, so a recorded value is off by at most 1/32 of itself
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  // Enough buckets for any non-negative long
+  static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS); // Number of values recorded in each bucket
+  private final AtomicLong max = new AtomicLong(); // Largest value recorded
+
+  // Record one value without locking or allocating, so measuring does not change what is measured
+  void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucket(value));
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  // Bucket of a value: below 2 * SUB_COUNT each value has its own, above that values share by their top bits
+  static int bucket(long value) {
+    int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+    return shift * SUB_COUNT + (int) (value >>> shift);
+  }
+
+  // Largest value that falls in a bucket
+  static long highestValue(int bucket) {
+    int shift = Math.max(0, bucket / SUB_COUNT - 1);
+    return ((long) (bucket - shift * SUB_COUNT) << shift) + (1L << shift) - 1;
+  }
+
+  // Copy of the bucket counts; recording goes on while it is taken
+  long[] counts() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return copy;
+  }
+
+  // Largest value recorded, 0 if none
+  long getMax() {
+    return max.get();
+  }
+
+  // Value below which the given fraction of the counted values fall, as the top of its bucket capped at the maximum
+  static long percentile(long[] counts, double fraction, long max) {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max);
+      }
+    }
+    return max; // Nothing recorded
+  }
+}
+
+class OperationStats {
+  private final String name; // Name shown by stats, e.g. repository.addFile
+  private final LongAdder count = new LongAdder(); // Number of calls
+  private final LongAdder totalNanos = new LongAdder(); // Time spent in all calls
+  private final LongAdder bytesRead = new LongAdder(); // Bytes read by all calls
+  private final LatencyHistogram latency = new LatencyHistogram(); // Time taken by each call
+
+  // Constructor to initialize the statistics of an operation nobody has called yet
+  OperationStats(String name) {
+    this.name = name;
+  }
+
+  // Record one call that started at the given System.nanoTime()
+  void record(long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    count.increment();
+    totalNanos.add(nanos);
+    latency.record(nanos);
+  }
+
+  // Count bytes read by a call
+  void read(long bytes) {
+    bytesRead.add(bytes);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  LatencyHistogram getLatency() {
+    return latency;
+  }
+}
+
+class Metrics {
+  // Statistics of every instrumented operation, in name order; guarded by Metrics.class
+  private static final Map<String, OperationStats> OPERATIONS = new TreeMap<>();
+  // When statistics started to be collected
+  private static final long STARTED = System.currentTimeMillis();
+
+  // Get the statistics of an operation, created on first use; callers keep them in static fields
+  static synchronized OperationStats operation(String name) {
+    return OPERATIONS.computeIfAbsent(name, OperationStats::new);
+  }
+
+  // Get the statistics of the options of a menu, by option number minus one; a null action stays null
+  static OperationStats[] operations(String menu, String... actions) {
+    OperationStats[] stats = new OperationStats[actions.length];
+    for (int i = 0; i < actions.length; i++) {
+      stats[i] = actions[i] == null ? null : operation(menu + "." + actions[i]);
+    }
+    return stats;
+  }
+
+  // Get every operation's statistics, in name order
+  static synchronized List<OperationStats> all() {
+    return new ArrayList<>(OPERATIONS.values());
+  }
+
+  // Print count, bytes read and p50/p99/max latency of every operation called so far
+  static void print(PrintStream out, String indent) {
+    List<OperationStats> called = new ArrayList<>();
+    for (OperationStats stats : all()) {
+      if (stats.getCount() > 0) {
+        called.add(stats);
+      }
+    }
+    if (called.isEmpty()) {
+      out.println(indent + "No operations recorded yet.");
+      return;
+    }
+    out.printf("%s%-36s %10s %12s %12s %12s %12s%n", indent, "Operation", "Count", "Read (MB)", "p50 (ms)",
+        "p99 (ms)", "Max (ms)");
+    for (OperationStats stats : called) {
+      long[] counts = stats.getLatency().counts();
+      long max = stats.getLatency().getMax();
+      out.printf("%s%-36s %10d %12.1f %12.3f %12.3f %12.3f%n", indent, stats.getName(), stats.getCount(),
+          stats.getBytesRead() / (1024.0 * 1024.0), LatencyHistogram.percentile(counts, 0.5, max) / 1e6,
+          LatencyHistogram.percentile(counts, 0.99, max) / 1e6, max / 1e6);
+    }
+  }
+
+  // Every operation's statistics as JSON, with the non-empty buckets of each histogram as [highest value, count]
+  static String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"startedAt\": ").append(STARTED).append(",\n  \"writtenAt\": ")
+        .append(System.currentTimeMillis()).append(",\n  \"operations\": [");
+    String separator = "\n";
+    for (OperationStats stats : all()) {
+      long[] counts = stats.getLatency().counts();
+      long max = stats.getLatency().getMax();
+      json.append(separator).append("    {\"name\": \"").append(stats.getName()).append("\", \"count\": ")
+          .append(stats.getCount()).append(", \"bytesRead\": ").append(stats.getBytesRead())
+          .append(", \"totalNanos\": ").append(stats.getTotalNanos())
+          .append(", \"p50Nanos\": ").append(LatencyHistogram.percentile(counts, 0.5, max))
+          .append(", \"p99Nanos\": ").append(LatencyHistogram.percentile(counts, 0.99, max))
+          .append(", \"maxNanos\": ").append(max).append(", \"buckets\": [");
+      String bucketSeparator = "";
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          json.append(bucketSeparator).append('[').append(LatencyHistogram.highestValue(i)).append(", ")
+              .append(counts[i]).append(']');
+          bucketSeparator = ", ";
+        }
+      }
+      json.append("]}");
+      separator = ",\n";
+    }
+    return json.append("\n  ]\n}\n").toString();
+  }
+
+  // Write the statistics as JSON to a file
+  static void writeJson(Path file) throws IOException {
+    Files.writeString(file, toJson(), StandardCharsets.UTF_8);
+  }
+
+  // Write the statistics as JSON to a new file under the data directory and return its path
+  static Path save() throws IOException {
+    Path file = DataDirectory.subdirectory("metrics").resolve("stats-" + System.currentTimeMillis() + ".json");
+    writeJson(file);
+    return file;
+  }
+
+  // Write the statistics to -Dcvhub.stats.file when the process exits, if it is set
+  static void dumpOnExit() {
+    String file = System.getProperty("cvhub.stats.file");
+    if (file == null || file.isEmpty()) {
+      return;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        writeJson(Paths.get(file));
+      } catch (IOException e) {
+        System.err.println("Could not write statistics to " + file + ": " + e.getMessage());
+      }
+    }, "cvhub-stats"));
+  }
+}
+
+class Benchmarks {
+  // Files in the scratch repository used by the reader benchmark
+  private static final int READ_FILES = 1000;
+  // Accounts created per sync when filling the scratch registry
+  private static final int REGISTER_BATCH = 10_000;
+  // Accounts created one at a time, each waiting for its own sync
+  private static final int SINGLE_SIGNUPS = 1000;
+  // Hashing costs compared by the sign-in benchmark, along with the configured one
+  private static final int[] SIGNIN_COSTS = { 100_000, 210_000, 310_000, 600_000, 1_000_000 };
+  // Storage the repository benchmarks run against: see Scratch.open
+  static final String[] STORAGES = { "memory", "disk" };
+
+  // Scratch repository kept in memory, or saved to its own journal and object packs like a real one
+  static final class Scratch implements Closeable {
+    final Repository repo; // The repository to benchmark
+    private final CommitJournal journal; // Journal commits are synced to, or null in memory
+    private final PackObjectStore packs; // Packs blobs are written to, or null in memory
+
+    // Constructor to initialize a scratch repository over the given storage
+    private Scratch(Repository repo, CommitJournal journal, PackObjectStore packs) {
+      this.repo = repo;
+      this.journal = journal;
+      this.packs = packs;
+    }
+
+    // Open an empty repository: "memory" saves nothing, "disk" keeps everything under the given directory
+    static Scratch open(String storage, Path directory) throws IOException {
+      if (storage.equals("memory")) {
+        return new Scratch(new Repository("bench", new BlobStore(), null, null), null, null);
+      }
+      if (!storage.equals("disk")) {
+        throw new IllegalArgumentException("Unknown storage " + storage + ".");
+      }
+      Files.createDirectories(directory);
+      CommitJournal journal = new CommitJournal(directory.resolve("bench.journal"));
+      journal.create();
+      PackObjectStore packs = PackObjectStore.open(Files.createDirectories(directory.resolve("objects")));
+      Repository repo = new Repository("bench", new BlobStore(packs), journal, directory.resolve("bench.stats"));
+      return new Scratch(repo, journal, packs);
+    }
+
+    // Seal the packs and close the journal; the caller deletes the directory
+    @Override
+    public void close() throws IOException {
+      if (packs != null) {
+        packs.close();
+        journal.delete();
+      }
+    }
+  }
+
+  // Delete a scratch directory and everything under it
+  static void deleteTree(Path directory) throws IOException {
+    if (Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          deleteTree(entry);
+        }
+      }
+    }
+    Files.deleteIfExists(directory);
+  }
+
+  // Measure reads per second with 1, 2, 4 ... reader threads, up to the core count, while a writer keeps committing,
+  // once in memory and once with commits synced to a journal and blobs written to packs
+  static void readers(PrintStream out, int seconds) throws IOException {
+    Path directory = Files.createTempDirectory("cvhub-bench");
+    try {
+      Path tree = Files.createDirectory(directory.resolve("tree"));
+      for (int i = 0; i < READ_FILES; i++) {
+        Files.writeString(tree.resolve("file" + i + ".txt"), ("line " + i + "\n").repeat(50));
+      }
+      int cores = Runtime.getRuntime().availableProcessors();
+      List<Integer> threadCounts = new ArrayList<>();
+      for (int threads = 1; threads < cores; threads *= 2) {
+        threadCounts.add(threads);
+      }
+      threadCounts.add(cores);
+      out.printf("%d cores, %d files, %d s per round, one writer committing throughout%n", cores, READ_FILES, seconds);
+      for (String storage : STORAGES) {
+        try (Scratch scratch = Scratch.open(storage, directory.resolve(storage))) {
+          scratch.repo.importDirectory(tree.toString(), List.of(), List.of(), "Initial import", "bench");
+          readRound(scratch.repo, tree, 1, 1); // Warm up, so the first round is not measured against the interpreter
+          out.printf("%nStorage: %s%n", storage);
+          out.printf("%8s %14s %10s %16s %10s%n", "Readers", "Reads/s", "Scaling", "Max read (ms)", "Commits");
+          double single = 0;
+          for (int threads : threadCounts) {
+            long[] result = readRound(scratch.repo, tree, threads, seconds);
+            double perSecond = result[0] / (double) seconds;
+            single = single == 0 ? perSecond : single;
+            out.printf("%8d %14.0f %9.2fx %16.2f %10d%n", threads, perSecond, perSecond / single, result[1] / 1e6,
+                result[2]);
+          }
+        }
+      }
+    } finally {
+      deleteTree(directory);
+    }
+  }
+
+  // Fill a scratch registry with accounts, then measure reopening it, uniqueness checks and account lookups
+  static void users(PrintStream out, int accounts) throws IOException {
+    Path directory = Files.createTempDirectory("cvhub-bench");
+    Path file = directory.resolve("accounts.journal");
+    PasswordHasher hasher = new PasswordHasher(PasswordHasher.configuredIterations(), 1);
+    String passwordHash = hasher.hash("Password#1"); // Shared by every account; bench signin measures hashing
+    hasher.close();
+    try {
+      UserRegistry registry = UserRegistry.open(new CommitJournal(file));
+      long start = System.nanoTime();
+      for (int first = 0; first < accounts; first += REGISTER_BATCH) {
+        List<User> batch = new ArrayList<>(REGISTER_BATCH);
+        for (int i = first; i < Math.min(accounts, first + REGISTER_BATCH); i++) {
+          batch.add(new User("user" + i, "user" + i + "@gmail.com", passwordHash));
+        }
+        registry.registerAll(batch);
+      }
+      report(out, "Registered in batches", accounts, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = accounts; i < accounts + SINGLE_SIGNUPS; i++) {
+        registry.register("user" + i, "user" + i + "@gmail.com", passwordHash); // One sync each
+      }
+      report(out, "Signed up one by one", SINGLE_SIGNUPS, System.nanoTime() - start);
+      int total = accounts + SINGLE_SIGNUPS;
+
+      registry = null; // Let the first copy go before measuring the memory of the reopened one
+      System.gc();
+      long before = usedMemory();
+      start = System.nanoTime();
+      registry = UserRegistry.open(new CommitJournal(file));
+      long opened = System.nanoTime() - start;
+      System.gc();
+      out.printf("%-24s %10d accounts in %8.1f ms, %.1f MiB of heap, %.1f MiB on disk%n", "Reopened", registry.size(),
+          opened / 1e6, (usedMemory() - before) / 1048576.0, Files.size(file) / 1048576.0);
+
+      SplittableRandom random = new SplittableRandom(42);
+      int lookups = Math.max(total, 100_000);
+      start = System.nanoTime();
+      int taken = 0;
+      for (int i = 0; i < lookups; i++) {
+        int n = random.nextInt(total * 2); // Half of them are free
+        taken += registry.usernameTaken("User" + n) ? 1 : 0;
+        taken += registry.emailTaken("user" + n + "@gmail.com") ? 1 : 0;
+      }
+      report(out, "Uniqueness checks", lookups * 2L, System.nanoTime() - start);
+
+      int signins = Math.min(total, 200_000);
+      start = System.nanoTime();
+      int found = 0;
+      for (int i = 0; i < signins; i++) {
+        int n = random.nextInt(total);
+        User account = registry.findByEmail("user" + n + "@gmail.com"); // Details are read from disk
+        found += account != null && account.getPasswordHash().equals(passwordHash) ? 1 : 0;
+      }
+      report(out, "Sign-in lookups", signins, System.nanoTime() - start);
+      if (found != signins || taken == 0) {
+        out.println("Unexpected results: " + found + " of " + signins + " accounts found");
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  // Write a CSV of accounts with some invalid and duplicate lines, then compare reading it, validating it on one
+  // thread and importing it into a scratch registry
+  static void accountImport(PrintStream out, int accounts) throws IOException {
+    Path directory = Files.createTempDirectory("cvhub-bench");
+    Path csv = directory.resolve("accounts.csv");
+    Path report = directory.resolve("rejected.csv");
+    Path journal = directory.resolve("accounts.journal");
+    PasswordHasher hasher = new PasswordHasher(PasswordHasher.configuredIterations(), 1);
+    try {
+      String passwordHash = hasher.hash("Password#1"); // Exported hashes are imported as they are
+      try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+        writer.write("username,email,password\n");
+        for (int i = 0; i < accounts; i++) {
+          if (i % 50 == 49) {
+            writer.write("user" + (i - 1) + ",other" + i + "@gmail.com," + passwordHash + "\n"); // Taken username
+          } else if (i % 20 == 19) {
+            writer.write("user" + i + ",user" + i + "@example.com,weak\n"); // Several broken rules
+          } else {
+            writer.write("user" + i + ",user" + i + "@gmail.com," + passwordHash + "\n");
+          }
+        }
+      }
+      long lines = 0;
+      int failing = 0;
+      for (int round = 0; round < 2; round++) { // The first round only warms up
+        long start = System.nanoTime();
+        lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+          while (reader.readLine() != null) {
+            lines++;
+          }
+        }
+        long read = System.nanoTime() - start;
+        start = System.nanoTime();
+        failing = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+          reader.readLine(); // Header
+          for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            List<String> fields = AccountImport.csvFields(line);
+            failing += AccountValidator.checkUsername(fields.get(0)) != 0
+                || AccountValidator.checkEmail(fields.get(1)) != 0
+                || !PasswordHasher.isHash(fields.get(2)) && AccountValidator.checkPassword(fields.get(2)) != 0 ? 1 : 0;
+          }
+        }
+        if (round == 1) {
+          report(out, "Read only", lines, read);
+          report(out, "Read and validated", lines, System.nanoTime() - start);
+        }
+      }
+      AccountImportResult result = new AccountImport(UserRegistry.open(new CommitJournal(journal)), hasher).run(csv,
+          report);
+      report(out, "Imported", lines, result.getNanos());
+      out.println(result + " (" + failing + " invalid lines)");
+    } finally {
+      hasher.close();
+      for (Path file : List.of(csv, report, journal)) {
+        Files.deleteIfExists(file);
+      }
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  // Measure sign-in latency and throughput at each hashing cost, with twice as many clients as hashing threads
+  static void signin(PrintStream out, int seconds, long sloMillis) throws IOException {
+    int threads = PasswordHasher.configuredThreads();
+    int clients = threads * 2; // Keeps the queue of the pool busy
+    TreeSet<Integer> costs = new TreeSet<>();
+    for (int cost : SIGNIN_COSTS) {
+      costs.add(cost);
+    }
+    costs.add(PasswordHasher.configuredIterations());
+    signinRound(10_000, threads, clients, 2); // Warm up, so the first cost is not measured against the interpreter
+    out.printf("%d hashing threads, %d clients, %d s per cost, configured cost %d%n", threads, clients, seconds,
+        PasswordHasher.configuredIterations());
+    out.printf("%10s %12s %10s %10s %10s %8s%n", "Iterations", "Sign-ins/s", "p50 (ms)", "p99 (ms)", "Max (ms)",
+        "Samples");
+    int chosen = -1;
+    for (int cost : costs) {
+      long[] latencies = signinRound(cost, threads, clients, seconds);
+      long p99 = percentile(latencies, 0.99);
+      out.printf("%10d %12.1f %10.1f %10.1f %10.1f %8d%n", cost, latencies.length / (double) seconds,
+          percentile(latencies, 0.50) / 1e6, p99 / 1e6, latencies[latencies.length - 1] / 1e6, latencies.length);
+      if (sloMillis > 0 && p99 <= TimeUnit.MILLISECONDS.toNanos(sloMillis)) {
+        chosen = cost; // Costs are tried from cheapest to dearest
+      }
+    }
+    if (sloMillis > 0) {
+      out.println(chosen < 0 ? "No cost tried keeps p99 under " + sloMillis + " ms"
+          : "Highest cost with p99 under " + sloMillis + " ms: -Dcvhub.password.iterations=" + chosen);
+    }
+  }
+
+  // Sign clients in over and over for a while at one cost and return the sorted latencies in nanoseconds
+  private static long[] signinRound(int cost, int threads, int clients, int seconds) throws IOException {
+    PasswordHasher hasher = new PasswordHasher(cost, threads);
+    try {
+      UserRegistry registry = UserRegistry.inMemory();
+      for (int c = 0; c < clients; c++) {
+        registry.register("client" + c, "client" + c + "@gmail.com", hasher.hash("Password#" + c));
+      }
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      List<long[]> results = Collections.synchronizedList(new ArrayList<>());
+      List<Thread> workers = new ArrayList<>();
+      for (int c = 0; c < clients; c++) {
+        int client = c;
+        workers.add(new Thread(() -> {
+          long[] latencies = new long[64];
+          int count = 0;
+          try {
+            while (count == 0 || System.nanoTime() < deadline) {
+              long start = System.nanoTime();
+              User account = registry.findByEmail("client" + client + "@gmail.com");
+              if (!hasher.verify("Password#" + client, account.getPasswordHash())) {
+                throw new IOException("Password of client " + client + " was rejected");
+              }
+              if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+              }
+              latencies[count++] = System.nanoTime() - start;
+            }
+          } catch (IOException e) {
+            System.err.println(e.getMessage());
+          }
+          results.add(Arrays.copyOf(latencies, count));
+        }));
+      }
+      workers.forEach(Thread::start);
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      long[] all = results.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+      if (all.length == 0) {
+        throw new IOException("No sign-in succeeded");
+      }
+      return all;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while measuring sign-ins");
+    } finally {
+      hasher.close();
+    }
+  }
+
+  // Value below which the given fraction of sorted samples falls
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1))];
+  }
+
+  // Print the rate of an operation
+  private static void report(PrintStream out, String label, long operations, long nanos) {
+    out.printf("%-24s %10d in %8.1f ms, %12.0f/s%n", label, operations, nanos / 1e6, operations / (nanos / 1e9));
+  }
+
+  // Heap in use right now
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // Run readers and one writer for a while and return total reads, the slowest read in nanoseconds and commits
+  private static long[] readRound(Repository repo, Path directory, int threads, int seconds) {
+    AtomicBoolean running = new AtomicBoolean(true);
+    LongAdder reads = new LongAdder();
+    AtomicLong slowest = new AtomicLong();
+    AtomicLong commits = new AtomicLong();
+    Thread writer = new Thread(() -> {
+      for (int version = 0; running.get(); version++) {
+        Path file = directory.resolve("file" + (version % READ_FILES) + ".txt");
+        try {
+          Files.writeString(file, ("version " + version + "\n").repeat(50));
+          repo.addFile(file.toString(), "Benchmark commit", "bench"); // File read and commit while readers run
+          commits.incrementAndGet();
+        } catch (IOException e) {
+          return;
+        }
+      }
+    });
+    List<Thread> readers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      readers.add(new Thread(() -> {
+        SplittableRandom random = new SplittableRandom();
+        long count = 0;
+        long max = 0;
+        while (running.get()) {
+          long start = System.nanoTime();
+          int operation = random.nextInt(100);
+          String name = "file" + random.nextInt(READ_FILES) + ".txt";
+          if (operation < 90) {
+            repo.openFile(name); // Cached content of the current version
+          } else if (operation < 95) {
+            repo.findFiles(name);
+          } else if (operation < 99) {
+            Iterator<Commit> history = repo.getCommitHistory().iterator();
+            for (int i = 0; i < 10 && history.hasNext(); i++) {
+              history.next();
+            }
+          } else {
+            repo.getFileNames();
+          }
+          max = Math.max(max, System.nanoTime() - start);
+          count++;
+        }
+        reads.add(count);
+        long observed = max;
+        slowest.accumulateAndGet(observed, Math::max);
+      }));
+    }
+    writer.start();
+    readers.forEach(Thread::start);
+    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(seconds));
+    running.set(false);
+    try {
+      writer.join();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return new long[] { reads.sum(), slowest.get(), commits.get() };
+  }
+}
+
+class CommandRunner {
+  // Exit statuses returned to the shell
+  static final int OK = 0; // The command succeeded
+  static final int FAILED = 1; // The command ran but the operation failed
+  static final int USAGE = 2; // The command line was not understood
+
+  // Options that take a value
+  private static final Set<String> OPTIONS = Set.of("-m", "--author", "--include", "--exclude", "--debounce", "--limit",
+      "--seconds", "--accounts", "--slo", "--report", "--json");
+
+  private final RepositoryRegistry repositories; // Repositories loaded so far, filled lazily by name
+  private final PrintStream out; // Where results are printed
+  private final PrintStream err; // Where errors are printed
+  private boolean storageChecked; // Whether an unusable object store was reported yet
+
+  // Constructor to initialize a runner over a registry and output streams
+  CommandRunner(RepositoryRegistry repositories, PrintStream out, PrintStream err) {
+    this.repositories = repositories;
+    this.out = out;
+    this.err = err;
+  }
+
+  // Run one command and return its exit status
+  public int run(String[] args) {
+    if (args.length == 0) {
+      return usage();
+    }
+    try {
+      switch (args[0]) {
+        case "repo":
+          return repo(args);
+        case "users":
+          return users(args);
+        case "add":
+          return add(args);
+        case "rm":
+          return remove(args);
+        case "import":
+          return importDirectory(args);
+        case "stage":
+          return stage(args);
+        case "unstage":
+          return unstage(args);
+        case "commit":
+          return commitStaged(args);
+        case "status":
+          return status(args);
+        case "watch":
+          return watch(args);
+        case "ls":
+          return list(args);
+        case "cat":
+          return cat(args);
+        case "log":
+          return log(args);
+        case "diff":
+          return diff(args);
+        case "search":
+          return search(args);
+        case "repack":
+          return repack(args);
+        case "stats":
+          return stats(args);
+        case "bench":
+          return bench(args);
+        case "run":
+          return script(args);
+        case "serve":
+        case "--serve":
+          return serve(args);
+        case "help":
+        case "--help":
+          usage(out);
+          return OK;
+        default:
+          err.println("Unknown command: " + args[0]);
+          return usage();
+      }
+    } catch (FileNotFoundException e) {
+      err.println(e.getMessage());
+      return FAILED;
+    } catch (IllegalArgumentException e) {
+      err.println("Invalid argument: " + e.getMessage()); // For example a malformed glob
+      return USAGE;
+    } catch (IOException e) {
+      err.println("Error: " + e.getMessage());
+      return FAILED;
+    }
+  }
+
+  // repo create|delete <name>, repo list
+  private int repo(String[] args) throws IOException {
+    if (args.length == 2 && args[1].equals("list")) {
+      for (String name : CommitJournal.repositoryNames()) {
+        out.println(name);
+      }
+      return OK;
+    }
+    if (args.length != 3) {
+      return usage();
+    }
+    String name = args[2];
+    switch (args[1]) {
+      case "create":
+        if (RepositoryRegistry.nameProblem(name) != null) {
+          err.println(RepositoryRegistry.nameProblem(name));
+          return FAILED;
+        }
+        if (find(name) != null || repositories.create(name) == null) {
+          err.println("Repository already exists: " + name);
+          return FAILED;
+        }
+        out.println("Repository '" + name + "' created.");
+        return OK;
+      case "delete":
+        Repository repo = require(name);
+        repositories.remove(name);
+        repo.releaseFiles(); // Free content no other repository refers to
+        repo.deleteJournal(); // Do not load it again
+        out.println("Repository '" + repo.getName() + "' deleted.");
+        return OK;
+      default:
+        return usage();
+    }
+  }
+
+  // add <repo> <path> [-m message] [--author name]
+  private int add(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 2) {
+      return usage();
+    }
+    Repository repo = require(operands.get(0));
+    IngestResult result = repo.addFile(operands.get(1), option(options, "-m", ""), author(options));
+    out.printf("Added %s (%d bytes, %d new, %.1f MB/s)%n", operands.get(1), result.getBytes(), result.getStoredBytes(),
+        result.getMegabytesPerSecond());
+    return OK;
+  }
+
+  // rm <repo> <file> [-m message] [--author name]
+  private int remove(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 2) {
+      return usage();
+    }
+    Repository repo = require(operands.get(0));
+    String removed = repo.removeFile(operands.get(1), option(options, "-m", ""), author(options));
+    out.println("Removed " + removed);
+    return OK;
+  }
+
+  // stage <repo> <path>, stage <repo> --remove <file>
+  private int stage(String[] args) throws IOException {
+    if (args.length == 4 && args[2].equals("--remove")) {
+      out.println("Staged removal of " + require(args[1]).stageRemoval(args[3]));
+      return OK;
+    }
+    if (args.length != 3) {
+      return usage();
+    }
+    require(args[1]).stageFile(args[2]);
+    out.println("Staged " + args[2]);
+    return OK;
+  }
+
+  // unstage <repo> <path>
+  private int unstage(String[] args) throws IOException {
+    if (args.length != 3) {
+      return usage();
+    }
+    if (!require(args[1]).unstage(args[2])) {
+      err.println("Nothing staged for " + args[2]);
+      return FAILED;
+    }
+    out.println("Unstaged " + args[2]);
+    return OK;
+  }
+
+  // status <repo>
+  private int status(String[] args) throws IOException {
+    if (args.length != 2) {
+      return usage();
+    }
+    StatusResult status = require(args[1]).status();
+    for (String path : status.getModified()) {
+      out.println("M " + path);
+    }
+    for (String path : status.getDeleted()) {
+      out.println("D " + path);
+    }
+    out.println(status);
+    return OK;
+  }
+
+  // watch <repo> [--debounce ms] [--author name]; runs until the process is interrupted
+  private int watch(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 1) {
+      return usage();
+    }
+    long debounce = Long.parseLong(option(options, "--debounce", String.valueOf(RepositoryWatcher.defaultDebounceMillis())));
+    RepositoryWatcher watcher = new RepositoryWatcher(require(operands.get(0)), debounce, author(options), out);
+    CountDownLatch stopped = new CountDownLatch(1); // Counted down once run() has committed the last batch
+    Thread stop = new Thread(() -> {
+      try {
+        watcher.close();
+        stopped.await(10, TimeUnit.SECONDS); // The main thread may be in System.exit, so it cannot be joined
+      } catch (IOException | InterruptedException e) {
+        // Exiting anyway
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(stop);
+    out.println("Watching " + operands.get(0) + " (debounce " + debounce + " ms), interrupt to stop");
+    try {
+      watcher.run();
+    } finally {
+      stopped.countDown();
+    }
+    return OK;
+  }
+
+  // commit <repo> [-m message] [--author name]
+  private int commitStaged(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 1) {
+      return usage();
+    }
+    Commit commit = require(operands.get(0)).commitStaged(option(options, "-m", ""), author(options));
+    out.println("Committed " + commit.getChanges().size() + " change(s) as " + commit.getShortId());
+    return OK;
+  }
+
+  // import <repo> <directory> [--include glob]... [--exclude glob]... [-m message] [--author name]
+  private int importDirectory(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 2) {
+      return usage();
+    }
+    Repository repo = require(operands.get(0));
+    ImportResult result = repo.importDirectory(operands.get(1), options.getOrDefault("--include", List.of()),
+        options.getOrDefault("--exclude", List.of()), option(options, "-m", ""), author(options));
+    out.println(result);
+    return OK;
+  }
+
+  // users import <csv> [--report file]: register the accounts of a CSV file, reporting the rejected lines
+  private int users(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.size() != 2 || !operands.get(0).equals("import")) {
+      return usage();
+    }
+    Path csv = Paths.get(operands.get(1));
+    if (!Files.isRegularFile(csv)) {
+      err.println("File not found: " + csv);
+      return FAILED;
+    }
+    if (UserRegistry.openFailure() != null) {
+      err.println("Account file unavailable, nothing was imported: " + UserRegistry.openFailure());
+      return FAILED; // Accounts registered in memory would be lost at exit
+    }
+    Path report = Paths.get(option(options, "--report", csv + ".rejected.csv"));
+    AccountImportResult result = new AccountImport(UserRegistry.shared(), PasswordHasher.shared()).run(csv, report);
+    out.println(result);
+    if (result.getRejected() > 0) {
+      out.println("Rejected lines and their reasons: " + report);
+    }
+    return OK;
+  }
+
+  // ls <repo>
+  private int list(String[] args) throws IOException {
+    if (args.length != 2) {
+      return usage();
+    }
+    for (String filePath : require(args[1]).getFileNames()) {
+      out.println(filePath);
+    }
+    return OK;
+  }
+
+  // cat <repo> <file>
+  private int cat(String[] args) throws IOException {
+    if (args.length != 3) {
+      return usage();
+    }
+    try (InputStream content = require(args[1]).openStream(args[2])) {
+      content.transferTo(out); // Large files are copied chunk by chunk
+    }
+    out.flush();
+    return OK;
+  }
+
+  // log <repo>
+  private int log(String[] args) throws IOException {
+    if (args.length != 2) {
+      return usage();
+    }
+    for (Commit commit : require(args[1]).getCommitHistory()) {
+      out.println(commit);
+      for (FileChange change : commit.getChanges()) {
+        out.println("    " + change);
+      }
+    }
+    return OK;
+  }
+
+  // diff <repo> <file> [from-commit [to-commit]]
+  private int diff(String[] args) throws IOException {
+    if (args.length < 3 || args.length > 5) {
+      return usage();
+    }
+    List<String> lines = require(args[1]).diff(args[2], args.length > 3 ? args[3] : null,
+        args.length > 4 ? args[4] : null);
+    for (String line : lines) {
+      out.println(line);
+    }
+    return OK;
+  }
+
+  // run <script>: run one command per line, stopping at the first failure
+  private int script(String[] args) throws IOException {
+    if (args.length != 2) {
+      return usage();
+    }
+    List<String> lines = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue; // Blank line or comment
+      }
+      String[] command;
+      try {
+        command = tokenize(line);
+      } catch (IllegalArgumentException e) {
+        err.println(args[1] + ":" + (i + 1) + ": " + e.getMessage());
+        return USAGE;
+      }
+      if (command[0].equals("run") || command[0].equals("serve")) {
+        err.println(args[1] + ":" + (i + 1) + ": '" + command[0] + "' cannot be used inside a script");
+        return USAGE;
+      }
+      int status = run(command);
+      if (status != OK) {
+        err.println(args[1] + ":" + (i + 1) + ": command failed with status " + status);
+        return status;
+      }
+    }
+    return OK;
+  }
+
+  // search <query> [--limit n]: find lines in the current files of every repository
+  private int search(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (operands.isEmpty()) {
+      return usage();
+    }
+    int limit;
+    try {
+      limit = Integer.parseInt(option(options, "--limit", String.valueOf(SearchIndex.DEFAULT_LIMIT)));
+    } catch (NumberFormatException e) {
+      return usage();
+    }
+    for (String name : CommitJournal.repositoryNames()) {
+      find(name); // Loading a repository registers its files with the index
+    }
+    long start = System.nanoTime();
+    List<SearchHit> hits = SearchIndex.shared().search(String.join(" ", operands), limit);
+    long nanos = System.nanoTime() - start;
+    for (SearchHit hit : hits) {
+      out.println(hit);
+    }
+    out.printf("%d matching line(s) in %.1f ms%n", hits.size(), nanos / 1_000_000.0);
+    return OK;
+  }
+
+  // repack: merge all object packs into one, dropping contents no commit refers to anymore
+  private int repack(String[] args) throws IOException {
+    if (args.length != 1) {
+      return usage();
+    }
+    for (String name : CommitJournal.repositoryNames()) {
+      find(name); // Every reference must be counted before anything is dropped
+    }
+    int dropped = BlobStore.shared().prune();
+    out.println("Dropped " + dropped + " unreferenced object(s); " + BlobStore.shared().describe());
+    return OK;
+  }
+
+  // stats [--json file]: show calls, bytes read and latency of the operations this process has run
+  private int stats(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    if (!operands.isEmpty()) {
+      return usage();
+    }
+    Metrics.print(out, "");
+    String file = option(options, "--json", null);
+    if (file != null) {
+      Metrics.writeJson(Paths.get(file));
+      out.println("Statistics written to " + file);
+    }
+    return OK;
+  }
+
+  // bench readers|users|signin|import [options]: run a benchmark against scratch data
+  private int bench(String[] args) throws IOException {
+    Map<String, List<String>> options = new HashMap<>();
+    List<String> operands = parse(args, options);
+    int seconds;
+    int accounts;
+    long slo;
+    try {
+      seconds = Integer.parseInt(option(options, "--seconds", operands.contains("signin") ? "5" : "2"));
+      accounts = Integer.parseInt(option(options, "--accounts", operands.contains("import") ? "300000" : "1000000"));
+      slo = Long.parseLong(option(options, "--slo", "0"));
+    } catch (NumberFormatException e) {
+      return usage();
+    }
+    if (operands.size() != 1 || seconds < 1 || accounts < 1 || slo < 0) {
+      return usage();
+    }
+    switch (operands.get(0)) {
+      case "readers":
+        Benchmarks.readers(out, seconds);
+        return OK;
+      case "users":
+        Benchmarks.users(out, accounts);
+        return OK;
+      case "signin":
+        Benchmarks.signin(out, seconds, slo);
+        return OK;
+      case "import":
+        Benchmarks.accountImport(out, accounts);
+        return OK;
+      default:
+        return usage();
+    }
+  }
+
+  // serve [port]: load every repository and accept sessions over TCP
+  private int serve(String[] args) throws IOException {
+    int port = HubServer.DEFAULT_PORT;
+    if (args.length > 1) {
+      try {
+        port = Integer.parseInt(args[1]);
+      } catch (NumberFormatException e) {
+        return usage();
+      }
+    }
+    List<String> failures = new ArrayList<>();
+    for (Repository repo : Repository.loadAll(failures)) {
+      repositories.add(repo);
+    }
+    failures.forEach(err::println);
+    if (UserRegistry.openFailure() != null) {
+      err.println("Account file unavailable, accounts will not be saved: " + UserRegistry.openFailure());
+    }
+    new HubServer(port).serve();
+    return OK;
+  }
+
+  // Get a loaded repository, loading it from its journal on first use
+  private Repository find(String name) throws IOException {
+    synchronized (repositories) {
+      Repository repo = repositories.get(name);
+      if (repo == null) {
+        repo = Repository.load(name); // Only the repositories a command touches are replayed
+        if (repo != null) {
+          repositories.add(repo);
+        }
+        if (!storageChecked && BlobStore.openFailure() != null) {
+          err.println("Object packs unavailable, file contents will not be saved: " + BlobStore.openFailure());
+        }
+        storageChecked = true;
+      }
+      return repo;
+    }
+  }
+
+  // Get a repository or fail with a clear message
+  private Repository require(String name) throws IOException {
+    Repository repo = find(name);
+    if (repo == null) {
+      throw new FileNotFoundException("Repository not found: " + name);
     }
+    return repo;
   }
 
-  // Remove a file from the repository by its filename
-  public void removeFile(String fileName, String commitMessage) {
-    // Search for the file by filename (not by full path)
-    String filePathToRemove = null;
-    for (String filePath : filePaths.keySet()) {
-      if (filePath.endsWith(fileName)) { // Match by filename
-        filePathToRemove = filePath; // Found the file path to remove
-        break;
+  // Split arguments into operands and options; every option takes one value and may be repeated
+  private static List<String> parse(String[] args, Map<String, List<String>> options) {
+    List<String> operands = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      if (OPTIONS.contains(args[i]) && i + 1 < args.length) {
+        options.computeIfAbsent(args[i], key -> new ArrayList<>()).add(args[++i]);
+      } else {
+        operands.add(args[i]);
       }
     }
+    return operands;
+  }
 
-    if (filePathToRemove != null) {
-      // Remove the file from the map using its full path
-      filePaths.remove(filePathToRemove);
-      // Log the commit history
-      commitHistory.add("Removed file: " + filePathToRemove + " | Commit: " + commitMessage);
-      System.out.println("File removed successfully.");
-    } else {
-      System.out.println("File not found in the repository."); // If the file isn't found
-    }
+  // Last value given for an option, or the default
+  private static String option(Map<String, List<String>> options, String name, String defaultValue) {
+    List<String> values = options.get(name);
+    return values == null ? defaultValue : values.get(values.size() - 1);
   }
 
-  // Get the commit history of the repository
-  public List<String> getCommitHistory() {
-    return commitHistory; // Return the list of commit history entries
+  // Author recorded for commits made from the command line
+  private static String author(Map<String, List<String>> options) {
+    return option(options, "--author", System.getProperty("user.name", "cvhub"));
   }
 
-  // Open and view the content of a file by its filename
-  public String openFile(String fileName) {
-    for (String filePath : filePaths.keySet()) {
-      if (filePath.endsWith(fileName)) { // Search for the file by filename
-        try {
-          // Read the content of the file at the stored path
-          File file = new File(filePath);
-          if (file.exists() && file.isFile()) { // Ensure the file exists
-            StringBuilder content = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-              String line;
-              while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n"); // Append the content of the file
-              }
-            }
-            return content.toString(); // Return the file content as a string
-          } else {
-            return "File does not exist at the path: " + filePath; // If file doesn't exist
-          }
-        } catch (IOException e) {
-          return "Error reading file: " + e.getMessage(); // Handle any I/O exceptions
+  // Split a script line into words, honouring single and double quotes
+  static String[] tokenize(String line) {
+    List<String> words = new ArrayList<>();
+    StringBuilder word = new StringBuilder();
+    char quote = 0; // Quote character of the open quoted section, or 0
+    boolean inWord = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0; // End of the quoted section
+        } else {
+          word.append(c);
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+        inWord = true;
+      } else if (Character.isWhitespace(c)) {
+        if (inWord) {
+          words.add(word.toString());
+          word.setLength(0);
+          inWord = false;
         }
+      } else {
+        word.append(c);
+        inWord = true;
       }
     }
-    return "File not found in repository."; // If the file isn't found in the repository
+    if (quote != 0) {
+      throw new IllegalArgumentException("unterminated quote");
+    }
+    if (inWord) {
+      words.add(word.toString());
+    }
+    return words.toArray(new String[0]);
+  }
+
+  // Print usage to the error stream and return the usage status
+  private int usage() {
+    usage(err);
+    return USAGE;
+  }
+
+  // Print the list of commands
+  private static void usage(PrintStream stream) {
+    stream.println("Usage: cvhub <command> [arguments]");
+    stream.println("  repo create <name>                      Create a repository");
+    stream.println("  repo delete <name>                      Delete a repository");
+    stream.println("  repo list                               List repositories");
+    stream.println("  add <repo> <path> [-m msg] [--author a] Add or update a file");
+    stream.println("  rm <repo> <file> [-m msg] [--author a]  Remove a file");
+    stream.println("  import <repo> <dir> [--include glob]... [--exclude glob]... [-m msg] [--author a]");
+    stream.println("                                          Import a directory tree in parallel as one commit");
+    stream.println("  users import <csv> [--report file]      Register the accounts of a username,email,password file");
+    stream.println("  stage <repo> <path>                     Stage a file for the next commit");
+    stream.println("  stage <repo> --remove <file>            Stage the removal of a tracked file");
+    stream.println("  unstage <repo> <path>                   Drop a staged change");
+    stream.println("  commit <repo> [-m msg] [--author a]     Commit all staged changes at once");
+    stream.println("  status <repo>                           Show tracked files changed on disk");
+    stream.println("  watch <repo> [--debounce ms]            Commit changes to tracked files as they happen");
+    stream.println("  ls <repo>                               List tracked files");
+    stream.println("  cat <repo> <file>                       Print the committed content of a file");
+    stream.println("  log <repo>                              Show the commit history");
+    stream.println("  diff <repo> <file> [from [to]]          Compare two committed versions of a file");
+    stream.println("  search <query> [--limit n]              Find lines in the current files of every repository:");
+    stream.println("                                          words, a \"quoted phrase\" or a /regular expression/");
+    stream.println("  repack                                  Merge object packs and drop unreferenced contents");
+    stream.println("  bench readers [--seconds s]             Measure concurrent reads against scratch repositories");
+    stream.println("  bench users [--accounts n]              Measure signups, lookups and sign-ins on a scratch registry");
+    stream.println("  bench signin [--seconds s] [--slo ms]   Measure sign-in latency at each password hashing cost");
+    stream.println("  bench import [--accounts n]             Compare reading, validating and importing a CSV of accounts");
+    stream.println("  stats [--json file]                     Show count, bytes read and p50/p99/max latency of each operation");
+    stream.println("                                          run so far, e.g. at the end of a 'run' script");
+    stream.println("  run <script>                            Run one command per line, stopping at the first failure");
+    stream.println("  serve [port]                            Serve interactive sessions over TCP");
+    stream.println("Staged changes live in memory, so stage and commit from the same 'run' script.");
+    stream.println("With no command the interactive menus start.");
   }
 }
 
 public class CvHub {
-  // Scanner object for user input
-  static Scanner in = new Scanner(System.in);
-  // The user object, which will hold user information
-  static User user = null;
-  // List of repositories
-  static List<Repository> repositories = new ArrayList<>();
+  // Scanner object for this session's input
+  final Scanner in;
+  // Stream this session's output is written to
+  final PrintStream out;
+  // The account signed in to this session, or null
+  User user = null;
+  // Registry of repositories, indexed by case-folded name
+  static RepositoryRegistry repositories = new RepositoryRegistry();
+  // Number of repositories listed per page
+  static final int REPO_PAGE_SIZE = 20;
+  // Latency of the menu options, by option number minus one; null for options that only open another menu
+  private static final OperationStats[] MAIN_ACTIONS = Metrics.operations("menu", "signUp", null, null);
+  private static final OperationStats SIGN_IN = Metrics.operation("menu.signIn"); // Up to the Hub Menu
+  private static final OperationStats[] HUB_ACTIONS = Metrics.operations("menu.hub", "createRepository", null,
+      "deleteRepository", "searchFiles", null, null, null);
+  private static final OperationStats[] REPO_ACTIONS = Metrics.operations("menu.repository", "addFile",
+      "removeFile", "openFile", "viewCommitHistory", "importDirectory", "stageFile", "stageRemoval",
+      "commitStaged", "showStatus", "watchFiles", "compareVersions", null);
+  private static final OperationStats[] ACCOUNT_ACTIONS = Metrics.operations("menu.account", "updateUsername",
+      "updateEmail", "updatePassword", null);
 
   // Color codes for text formatting in terminal
   public static final String RESET = "\u001B[0m"; // Reset color
@@ -179,6 +7641,26 @@ public class CvHub {
   public static final String UNDERLINE = "\u001B[4m";
 
   public static void main(String[] args) {
+    Metrics.dumpOnExit(); // With -Dcvhub.stats.file
+
+    // Run a single command without the splash screen or menus when one is given
+    if (args.length > 0) {
+      System.exit(new CommandRunner(repositories, System.out, System.err).run(args));
+    }
+
+    // Load the repositories saved by earlier runs
+    List<String> failures = new ArrayList<>();
+    for (Repository repo : Repository.loadAll(failures)) {
+      repositories.add(repo);
+    }
+    failures.forEach(System.out::println);
+    if (BlobStore.openFailure() != null) {
+      System.out.println("Object packs unavailable, file contents will not be saved: " + BlobStore.openFailure());
+    }
+    if (UserRegistry.openFailure() != null) {
+      System.out.println("Account file unavailable, accounts will not be saved: " + UserRegistry.openFailure());
+    }
+
     int total = 20;
 
     String green = "\u001B[32m";
@@ -237,34 +7719,45 @@ public class CvHub {
     System.out.println("\t\t\t\t\t\t            " + RED + " ****      *      " + RESET + "*     *     * *    ******");
     System.out.println();
 
+    // Run the menus for the person at this console
+    new CvHub(new Scanner(System.in), System.out).run();
+  }
+
+  // Constructor to initialize a session reading from the given input and writing to the given output
+  CvHub(Scanner in, PrintStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  // Run the top-level menu of this session until the user leaves the hub
+  public void run() {
     boolean running = true;
 
     while (running) {
       int choice = -1;
 
       while (choice < 1 || choice > 3) {
-        System.out
-            .println(
+        out.println(
                 "\n\t\t\t\t\t\t" + YELLOW + "            ------------ Select the option ------------" + RESET);
-        System.out.println();
-        System.out.println(CYAN + "\t\t\t\t\t\t\t\t\t   1. Join the Hub\n");
-        System.out.println("\t\t\t\t\t\t\t\t\t   2. Enter the Hub\n");
-        System.out.println("\t\t\t\t\t\t\t\t\t   3. Leave the Hub\n" + RESET);
-        System.out.print("\t\t\t\t\t\t\t\t\t  Enter your choice: ");
+        out.println();
+        out.println(CYAN + "\t\t\t\t\t\t\t\t\t   1. Join the Hub\n");
+        out.println("\t\t\t\t\t\t\t\t\t   2. Enter the Hub\n");
+        out.println("\t\t\t\t\t\t\t\t\t   3. Leave the Hub\n" + RESET);
+        out.print("\t\t\t\t\t\t\t\t\t  Enter your choice: ");
 
         try {
           choice = Integer.parseInt(in.nextLine());
         } catch (NumberFormatException e) {
-          System.out
-              .println("\n\t\t\t\t\t\t\t" + RED + "Invalid input. Please enter a number between 1 and 3\n" + RESET);
+          out.println("\n\t\t\t\t\t\t\t" + RED + "Invalid input. Please enter a number between 1 and 3\n" + RESET);
           continue;
         }
 
         if (choice < 1 || choice > 3) {
-          System.out.println("Invalid option. Please enter a number between 1 and 3.");
+          out.println("Invalid option. Please enter a number between 1 and 3.");
         }
       }
 
+      long started = System.nanoTime();
       switch (choice) {
         case 1:
           signup();
@@ -273,125 +7766,163 @@ public class CvHub {
           signin();
           break;
         case 3:
-          System.out.println();
-          System.out.println(GREEN + "\t\t\t\t\t\t            ------------   Thank You!  ------------");
+          out.println();
+          out.println(GREEN + "\t\t\t\t\t\t            ------------   Thank You!  ------------");
 
-          System.out.println("\n\t\t\t\t\t\t            ----------- Committer: You  ------------");
-          System.out.println("\n\t\t\t\t\t\t            ----------- Repository: CvHub ------------");
-          System.out.println("\n\t\t\t\t\t\t             -> We truly appreciate your support!");
-          System.out.println("\n\t\t\t\t\t\t  -> Keep committing, keep pushing, and keep building amazing" + RESET);
+          out.println("\n\t\t\t\t\t\t            ----------- Committer: You  ------------");
+          out.println("\n\t\t\t\t\t\t            ----------- Repository: CvHub ------------");
+          out.println("\n\t\t\t\t\t\t             -> We truly appreciate your support!");
+          out.println("\n\t\t\t\t\t\t  -> Keep committing, keep pushing, and keep building amazing" + RESET);
           running = false; // Exit the loop
           break;
       }
+      recordAction(MAIN_ACTIONS, choice, started);
     }
 
   }
 
-  public static void signup() {
+  public void signup() {
     // Start signup process
-    System.out.println(YELLOW + "\n\t\t\t\t\t\t            ------------   Signup process  ------------" + RESET);
+    out.println(YELLOW + "\n\t\t\t\t\t\t            ------------   Signup process  ------------" + RESET);
 
     // Username input loop
     boolean runningU = true;
     String username = "";
     while (runningU) {
-      System.out.print(RED + "\n\t\t\t\t\t\t            Enter username: " + RESET);
+      out.print(RED + "\n\t\t\t\t\t\t            Enter username: " + RESET);
       username = in.nextLine();
-      if (validUsername(username))
-        runningU = false; // Valid username
+      if (!validUsername(username, out))
+        out.println(BOLD + "\n\t\t\t\t\t\t\t                 " + BG_RED + "Enter a valid username:" + RESET);
+      else if (UserRegistry.shared().usernameTaken(username))
+        out.println(BOLD + "\n\t\t\t\t\t\t\t              " + BG_RED + "This username is already taken" + RESET);
       else
-        System.out.println(BOLD + "\n\t\t\t\t\t\t\t                 " + BG_RED + "Enter a valid username:" + RESET);
+        runningU = false; // Valid and free username
     }
 
     // Email input loop
     boolean runningE = true;
     String email = "";
     while (runningE) {
-      System.out.print(RED + "\n\t\t\t\t\t\t            Enter email: " + RESET);
+      out.print(RED + "\n\t\t\t\t\t\t            Enter email: " + RESET);
       email = in.nextLine();
-      if (validEmail(email))
-        runningE = false; // Valid email
+      if (!validEmail(email, out))
+        out.println(BOLD + "\t\t\t\t\t\t\t             " + BG_RED + "Please enter a valid email" + RESET);
+      else if (UserRegistry.shared().emailTaken(email))
+        out.println(BOLD + "\n\t\t\t\t\t\t\t        " + BG_RED + "An account with this email already exists" + RESET);
       else
-        System.out.println(BOLD + "\t\t\t\t\t\t\t             " + BG_RED + "Please enter a valid email" + RESET);
+        runningE = false; // Valid and unused email
     }
 
     // Password input loop
     boolean runningP = true;
     String password = "";
     while (runningP) {
-      System.out.print(RED + "\n\t\t\t\t\t\t            Enter password: " + RESET);
+      out.print(RED + "\n\t\t\t\t\t\t            Enter password: " + RESET);
       password = in.nextLine();
-      if (validPassword(password))
+      if (validPassword(password, out))
         runningP = false; // Valid password
       else
-        System.out.println("\n\t\t\t\t\t\t            " + BG_RED + "Please enter a valid password" + RESET);
+        out.println("\n\t\t\t\t\t\t            " + BG_RED + "Please enter a valid password" + RESET);
     }
 
-    // Store user and confirm signup
-    user = new User(username, email, password);
-    System.out.println(GREEN + "\n\t\t\t\t\t\t\t\t         Signup successful!" + RESET);
+    // Store the account and confirm signup
+    try {
+      if (UserRegistry.shared().register(username, email, PasswordHasher.shared().hash(password)) == null) {
+        out.println(RED + "\n\t\t\t\t\t\t            Username or email was just taken. Please sign up again." + RESET);
+        return; // Another session registered it first
+      }
+    } catch (IOException e) {
+      out.println(RED + "\n\t\t\t\t\t\t            Could not save the account: " + e.getMessage() + RESET);
+      return;
+    }
+    out.println(GREEN + "\n\t\t\t\t\t\t\t\t         Signup successful!" + RESET);
   }
 
-  public static void signin() {
+  public void signin() {
     // Start signin process
-    System.out.println(GREEN+"\n\t\t\t\t\t\t            Signin process..."+RESET);
+    out.println(GREEN+"\n\t\t\t\t\t\t            Signin process..."+RESET);
 
-    // Check if user is registered
-    if (user == null) {
-      System.out.println(RED+"\n\t\t\t\t\t\t            No user found. Please sign up first."+RESET);
-      return;
-    }
+    long signInStarted = System.nanoTime();
+    try {
+      // Check if any user is registered
+      UserRegistry registry = UserRegistry.shared();
+      if (registry.isEmpty()) {
+        out.println(RED+"\n\t\t\t\t\t\t            No user found. Please sign up first."+RESET);
+        return;
+      }
 
-    // Verify email
-    System.out.print(YELLOW+"\n\t\t\t\t\t\t            Enter registered email: ");
-    String email = in.next();
-    if (email.equals(user.getEmail())) {
-      // Verify password
-      System.out.print("\n\t\t\t\t\t\t            Enter registered password: ");
-      in.nextLine(); // Consume newline
-      String password = in.nextLine();
-      if (password.equals(user.getPassword())) {
-        System.out.println("\n\t\t\t\t\t\t            Signin successful!"+RESET);
+      // Verify email
+      out.print(YELLOW+"\n\t\t\t\t\t\t            Enter registered email: ");
+      String email = in.next();
+      User account;
+      try {
+        account = registry.findByEmail(email);
+      } catch (IOException e) {
+        out.println(RED+"\n\t\t\t\t\t\t            Could not read the account: " + e.getMessage() + RESET);
+        return;
+      }
+      if (account != null) {
+        // Verify password
+        out.print("\n\t\t\t\t\t\t            Enter registered password: ");
+        in.nextLine(); // Consume newline
+        String password = in.nextLine();
+        boolean matches;
+        try {
+          matches = PasswordHasher.shared().verify(password, account.getPasswordHash());
+        } catch (IOException e) {
+          out.println(RED+"\n\t\t\t\t\t\t            Could not check the password: " + e.getMessage() + RESET);
+          return;
+        }
+        if (matches) {
+          user = account; // Signed in for the rest of this session
+          upgradePasswordHash(password);
+          out.println("\n\t\t\t\t\t\t            Signin successful!"+RESET);
+        } else {
+          out.println(BG_RED+"\n\t\t\t\t\t\t            Incorrect password!");
+          return;
+        }
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t            Incorrect password!");
+        out.println("\n\t\t\t\t\t\t            No account found with this email."+RESET);
         return;
       }
-    } else {
-      System.out.println("\n\t\t\t\t\t\t            No account found with this email."+RESET);
-      return;
+    } finally {
+      SIGN_IN.record(signInStarted);
     }
 
     // Welcome the user and display options
-    System.out.println(GREEN+"\n\t\t\t\t\t\t            Welcome, " + user.getUsername() + "!"+RESET);
+    out.println(GREEN+"\n\t\t\t\t\t\t            Welcome, " + user.getUsername() + "!"+RESET);
     boolean running = true;
     while (running) {
 
       int choice = -1;
-      while (choice < 1 || choice > 5) {
-
-        System.out.println(YELLOW + "\n\t\t\t\t\t\t            --------------- Hub Menu --------------" + RESET);
-        System.out.println();
-        System.out.println(PURPLE + "\t\t\t\t\t\t\t\t\t   1. Create Repository\n");
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   2. View Repositories\n");
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   3. Delete Repository\n");
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   4. Account Settings\n");
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   5. Exit\n" + RESET);
-
-        System.out.print(YELLOW + "\n\t\t\t\t\t\t            Please select an option (1-5): " + RESET);
+      while (choice < 1 || choice > 7) {
+
+        out.println(YELLOW + "\n\t\t\t\t\t\t            --------------- Hub Menu --------------" + RESET);
+        out.println();
+        out.println(PURPLE + "\t\t\t\t\t\t\t\t\t   1. Create Repository\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   2. View Repositories\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   3. Delete Repository\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   4. Search Files\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   5. Account Settings\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   6. Statistics\n");
+        out.println("\n\t\t\t\t\t\t\t\t\t   7. Exit\n" + RESET);
+
+        out.print(YELLOW + "\n\t\t\t\t\t\t            Please select an option (1-7): " + RESET);
         try {
           choice = in.nextInt();
           in.nextLine();
-          if (choice < 1 || choice > 5) {
-            System.out.println(
-                BG_RED + "\n\t\t\t\t\t\t            Invalid choice! Please enter a number between 1 and 5" + RESET);
+          if (choice < 1 || choice > 7) {
+            out.println(
+                BG_RED + "\n\t\t\t\t\t\t            Invalid choice! Please enter a number between 1 and 7" + RESET);
           }
         } catch (InputMismatchException e) {
-          System.out.println(
-              BG_RED + "\n\t\t\t\t\t\t            Invalid input! Please enter a valid number between 1 and 5" + RESET);
+          out.println(
+              BG_RED + "\n\t\t\t\t\t\t            Invalid input! Please enter a valid number between 1 and 7" + RESET);
           in.nextLine();
         }
       }
 
+      long started = System.nanoTime();
       switch (choice) {
         case 1:
           createRepo();
@@ -403,163 +7934,222 @@ public class CvHub {
           deleteRepository(repositories);
           break;
         case 4:
-          accountSettings();
+          searchFiles();
           break;
         case 5:
+          accountSettings();
+          break;
+        case 6:
+          showStatistics();
+          break;
+        case 7:
           running = false;
+          user = null; // Signed out
           break;
         default:
-          System.out.println(BG_RED + "\n\t\t\t\t\t\t            Invalid choice! Try again." + RESET);
+          out.println(BG_RED + "\n\t\t\t\t\t\t            Invalid choice! Try again." + RESET);
       }
+      recordAction(HUB_ACTIONS, choice, started);
+    }
+  }
+
+  // Show count, bytes read and latency of every operation since the hub started, and save them as JSON on request
+  public void showStatistics() {
+    out.println(GREEN + "\n\t\t\t\t\t\t            -------------- Statistics -------------" + RESET);
+    out.println();
+    Metrics.print(out, "\t\t\t\t");
+    out.print(YELLOW + "\n\t\t\t\t\t\t            Enter 's' to save them as JSON, or press Enter to go back: " + RESET);
+    if (!in.nextLine().trim().equalsIgnoreCase("s")) {
+      return;
+    }
+    try {
+      out.println(GREEN + "\n\t\t\t\t\t\t            Statistics saved to " + Metrics.save() + RESET);
+    } catch (IOException e) {
+      out.println(RED + "\n\t\t\t\t\t\t            Could not save the statistics: " + e.getMessage() + RESET);
     }
   }
 
-  public static void createRepo() {
+  public void createRepo() {
     // Start repository creation process
-    System.out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t    Repository:" + RESET);
+    out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t    Repository:" + RESET);
 
     // Loop until valid repository name is provided
     while (true) {
-      System.out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Enter repository name: " + RESET);
+      out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Enter repository name: " + RESET);
       String repoName = in.nextLine();
 
-      // Ensure the repository name is not empty
-      if (repoName.isEmpty()) {
-        System.out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Repository name cannot be empty. Try again." + RESET);
+      // Ensure the repository name can be selected again later
+      String problem = RepositoryRegistry.nameProblem(repoName);
+      if (problem != null) {
+        out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + problem + " Try again." + RESET);
         continue;
       }
 
       // Check if repository already exists in memory
       if (repoExistsInMemory(repoName)) {
-        System.out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Repository already exists. Try a different name.");
+        out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Repository already exists. Try a different name.");
         continue;
       }
 
-      // Add new repository to the list
-      repositories.add(new Repository(repoName));
+      // Add new repository to the registry, unless another session just took the name or its journal is on disk
+      try {
+        if (repositories.create(repoName) == null) {
+          out.println(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Repository already exists. Try a different name.");
+          continue;
+        }
+      } catch (IOException e) {
+        out.println(RED + "\n\t\t\t\t\t\t\t\t\t   Could not check the saved repositories: " + e.getMessage() + RESET);
+        return;
+      }
 
-      System.out
-          .println(PURPLE + "\t\t\t\t\t\t\t\t\t   Repository '" + YELLOW + repoName + RESET + "'" + PURPLE
+      out.println(PURPLE + "\t\t\t\t\t\t\t\t\t   Repository '" + YELLOW + repoName + RESET + "'" + PURPLE
               + "created successfully!" + RESET);
       break; // Exit the loop after successful creation
     }
   }
 
-  private static boolean repoExistsInMemory(String repoName) {
-    // Check if repository with the given name exists in the list
-    for (Repository repo : repositories) {
-      if (repo.getName().equalsIgnoreCase(repoName)) {
-        return true; // Repository found
-      }
-    }
-    return false; // Repository not found
+  static boolean repoExistsInMemory(String repoName) { // Package-private for the JMH benchmarks
+    // Check if repository with the given name exists in the registry
+    return repositories.contains(repoName);
   }
 
-  public static void viewRepos() {
+  public void viewRepos() {
     // Display message to view repositories
-    System.out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   View Repositories:" + RESET);
+    out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   View Repositories:" + RESET);
 
     // Check if repositories list is empty
     if (repositories.isEmpty()) {
-      System.out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   No repositories found." + RESET);
+      out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   No repositories found." + RESET);
     } else {
-      // List all repositories
-      for (int i = 0; i < repositories.size(); i++) {
-        System.out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   "+(i + 1) + ". " + repositories.get(i).getName()+RESET);
+      // Page through the repositories until one is selected
+      Repository selectedRepo = selectRepository(repositories, GREEN + "\n\t\t\t\t\t\t\t\t\t   Select a repository by number: " + RESET);
+      if (selectedRepo != null) {
+        viewRepoActions(selectedRepo);
       }
-      int repoIndex = -1; // Store user selection
-      boolean validInput = false; // Flag to track valid input
+    }
+  }
 
-      while (!validInput) { // Keep running until a valid input is entered
-        try {
-          System.out.print(GREEN + "\n\t\t\t\t\t\t\t\t\t   Select a repository by number: " + RESET);
-          repoIndex = Integer.parseInt(in.nextLine().trim()) - 1; // Adjust for zero-based index
+  // Show repositories one page at a time and return the one the user picks, or null if none are left
+  Repository selectRepository(RepositoryRegistry repositories, String prompt) {
+    List<Repository> page = repositories.pageAfter(null, REPO_PAGE_SIZE); // First page
+    int first = 1; // Overall number of the first repository on the page
+    if (page.isEmpty()) {
+      out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   No repositories found." + RESET); // Deleted by another session
+      return null;
+    }
 
-          if (repoIndex >= 0 && repoIndex < repositories.size()) {
-            validInput = true; // Valid input, exit loop
-            Repository selectedRepo = repositories.get(repoIndex);
-            viewRepoActions(selectedRepo);
-          } else {
-            System.out.println(BG_RED
-                + "\n\t\t\t\t\t\t\t\t\t   Invalid selection. Please enter a valid repository number." + RESET);
-          }
-        } catch (NumberFormatException e) {
-          System.out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a number." + RESET);
+    while (true) {
+      // List the repositories on the current page
+      for (int i = 0; i < page.size(); i++) {
+        out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   "+(i + 1) + ". " + page.get(i).getName()+RESET);
+      }
+      out.println("\n\t\t\t\t\t\t\t\t\t   Showing " + first + "-" + (first + page.size() - 1) + " of "
+          + repositories.size() + ". Enter 'n' for next page, 'p' for previous page or a repository name.");
+      out.print(prompt);
+      String input = in.nextLine().trim();
+
+      if (input.equalsIgnoreCase("n")) {
+        List<Repository> next = repositories.pageAfter(page.get(page.size() - 1).getName(), REPO_PAGE_SIZE);
+        if (next.isEmpty()) {
+          out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   This is the last page." + RESET);
+        } else {
+          first += page.size();
+          page = next;
+        }
+        continue;
+      }
+      if (input.equalsIgnoreCase("p")) {
+        List<Repository> previous = repositories.pageBefore(page.get(0).getName(), REPO_PAGE_SIZE);
+        if (previous.isEmpty()) {
+          out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   This is the first page." + RESET);
+        } else {
+          first = Math.max(1, first - previous.size());
+          page = previous;
         }
+        continue;
       }
 
+      try {
+        int repoIndex = Integer.parseInt(input) - 1; // Adjust for zero-based index
+        if (repoIndex >= 0 && repoIndex < page.size()) {
+          return page.get(repoIndex); // Valid selection
+        }
+        out.println(BG_RED
+            + "\n\t\t\t\t\t\t\t\t\t   Invalid selection. Please enter a valid repository number." + RESET);
+      } catch (NumberFormatException e) {
+        Repository byName = repositories.get(input); // Allow picking a repository by name
+        if (byName != null) {
+          return byName;
+        }
+        out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a number or a repository name." + RESET);
+      }
     }
   }
 
-  public static void deleteRepository(List<Repository> repositories) {
+  public void deleteRepository(RepositoryRegistry repositories) {
     // Show available repositories to delete
-    System.out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Select a repository to delete:"+RESET);
+    out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Select a repository to delete:"+RESET);
 
     // Check if there are repositories to delete
     if (repositories.isEmpty()) {
-      System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   No repositories available to delete."+RESET);
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   No repositories available to delete."+RESET);
       return;
     }
 
-    // List repositories with index
-    for (int i = 0; i < repositories.size(); i++) {
-      System.out.println((i + 1) + ". " + repositories.get(i).getName());
-    }
-
-    int repoChoice = -1; // Store user selection
-    boolean validInput = true; // Track if input is valid
-
-    // Loop until valid repository selection
-    while (validInput) {
-      try {
-        System.out.print("\n\t\t\t\t\t\t\t\t\t   Enter the repository number to delete: ");
-        repoChoice = Integer.parseInt(in.nextLine()); // Parse input
-
-        if (repoChoice >= 1 && repoChoice <= repositories.size()) {
-          validInput = false; // Valid input, exit loop
-        } else {
-          System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid selection. Please enter a valid repository number.");
-        }
-      } catch (NumberFormatException e) {
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a number."+RESET);
-      }
-    }
-
     // Get selected repository and confirm deletion
-    Repository selectedRepo = repositories.get(repoChoice - 1);
+    Repository selectedRepo = selectRepository(repositories, "\n\t\t\t\t\t\t\t\t\t   Enter the repository number to delete: ");
+    if (selectedRepo == null) {
+      return;
+    }
     String repoName = selectedRepo.getName();
     String confirmation = "";
 
     // Loop until valid confirmation (y/n)
     while (true) {
-      System.out.print(RED+"\n\t\t\t\t\t\t\t\t\t   Are you sure you want to delete the repository '" + repoName + "'? (y/n): "+RESET);
+      out.print(RED+"\n\t\t\t\t\t\t\t\t\t   Are you sure you want to delete the repository '" + repoName + "'? (y/n): "+RESET);
       confirmation = in.nextLine().trim();
 
       if (confirmation.equalsIgnoreCase("y")) {
-        repositories.remove(selectedRepo);
-        System.out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Repository '" + repoName + "' deleted successfully."+RESET);
+        if (repositories.remove(repoName) == null) {
+          out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Repository '" + repoName + "' was already deleted."+RESET);
+          break; // Another session deleted it first
+        }
+        selectedRepo.releaseFiles(); // Free content no other repository refers to
+        try {
+          selectedRepo.deleteJournal(); // Do not load it again on the next start
+        } catch (IOException e) {
+          out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Error deleting commit journal: " + e.getMessage()+RESET);
+        }
+        out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Repository '" + repoName + "' deleted successfully."+RESET);
         break;
       } else if (confirmation.equalsIgnoreCase("n")) {
-        System.out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Deletion canceled."+RESET);
+        out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Deletion canceled."+RESET);
         break;
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter 'y' for Yes or 'n' for No."+RESET);
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter 'y' for Yes or 'n' for No."+RESET);
       }
     }
   }
 
   // Display actions for a selected repository
-  public static void viewRepoActions(Repository repo) {
+  public void viewRepoActions(Repository repo) {
     boolean repoActionRunning = true;
 
     while (repoActionRunning) {
       // Display available actions for the selected repository
-      System.out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Select an action for repository '" + repo.getName() + "':");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   1. Add File");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   2. Remove File");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   3. Open File");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   4. View Commit History");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   5. Back to Repository List"+RESET);
+      out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Select an action for repository '" + repo.getName() + "':");
+      out.println("\n\t\t\t\t\t\t\t\t\t   1. Add File");
+      out.println("\n\t\t\t\t\t\t\t\t\t   2. Remove File");
+      out.println("\n\t\t\t\t\t\t\t\t\t   3. Open File");
+      out.println("\n\t\t\t\t\t\t\t\t\t   4. View Commit History");
+      out.println("\n\t\t\t\t\t\t\t\t\t   5. Import Directory");
+      out.println("\n\t\t\t\t\t\t\t\t\t   6. Stage File");
+      out.println("\n\t\t\t\t\t\t\t\t\t   7. Stage File Removal");
+      out.println("\n\t\t\t\t\t\t\t\t\t   8. Commit Staged Changes");
+      out.println("\n\t\t\t\t\t\t\t\t\t   9. Show Status");
+      out.println("\n\t\t\t\t\t\t\t\t\t   10. Watch Files");
+      out.println("\n\t\t\t\t\t\t\t\t\t   11. Compare File Versions");
+      out.println("\n\t\t\t\t\t\t\t\t\t   12. Back to Repository List"+RESET);
 
       int actionChoice = -1; // Initialize choice variable
       boolean validInput = false; // Track input validity
@@ -567,20 +8157,21 @@ public class CvHub {
       // Loop until valid input is received
       while (!validInput) {
         try {
-          System.out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter your choice: "+RESET);
+          out.println(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter your choice: "+RESET);
           actionChoice = Integer.parseInt(in.nextLine()); // Read and parse input
 
-          if (actionChoice >= 1 && actionChoice <= 5) {
+          if (actionChoice >= 1 && actionChoice <= 12) {
             validInput = true; // Valid input, exit loop
           } else {
-            System.out.println(BG_RED+"\t\t\t\t\t\t\t\t\t   Invalid option. Please enter a number between 1 and 5.");
+            out.println(BG_RED+"\t\t\t\t\t\t\t\t\t   Invalid option. Please enter a number between 1 and 12.");
           }
         } catch (NumberFormatException e) {
-          System.out.println("\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a number."+RESET);
+          out.println("\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a number."+RESET);
         }
       }
 
       // Handle action based on user's input
+      long started = System.nanoTime();
       switch (actionChoice) {
         case 1:
           addFileToRepo(repo); // Add file to repository
@@ -595,25 +8186,237 @@ public class CvHub {
           viewCommitHistory(repo); // View commit history
           break;
         case 5:
+          importDirectoryToRepo(repo); // Import a whole directory tree
+          break;
+        case 6:
+          stageFileInRepo(repo); // Stage a file for the next commit
+          break;
+        case 7:
+          stageRemovalInRepo(repo); // Stage a file removal for the next commit
+          break;
+        case 8:
+          commitStagedInRepo(repo); // Commit everything staged at once
+          break;
+        case 9:
+          showStatus(repo); // Compare tracked files with their copies on disk
+          break;
+        case 10:
+          watchRepo(repo); // Commit changes automatically until the user stops it
+          break;
+        case 11:
+          compareVersions(repo); // Show a unified diff between two versions of a file
+          break;
+        case 12:
           repoActionRunning = false; // Exit loop to go back to repository list
           break;
       }
+      recordAction(REPO_ACTIONS, actionChoice, started);
+    }
+  }
+
+  // Show which tracked files changed on disk since they were committed
+  public void showStatus(Repository repo) {
+    StatusResult status = repo.status();
+    for (String path : status.getModified()) {
+      out.println(YELLOW + "    M " + path + RESET);
+    }
+    for (String path : status.getDeleted()) {
+      out.println(RED + "    D " + path + RESET);
+    }
+    out.println((status.isClean() ? GREEN : CYAN) + "\n\t\t\t\t\t\t\t\t\t   " + status + RESET);
+  }
+
+  // Search the current files of every repository and list the matching lines
+  public void searchFiles() {
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter words, a \"quoted phrase\" or a /regular expression/: "+RESET);
+    String query = in.nextLine();
+    try {
+      long start = System.nanoTime();
+      List<SearchHit> hits = SearchIndex.shared().search(query, SearchIndex.DEFAULT_LIMIT);
+      long nanos = System.nanoTime() - start;
+      for (SearchHit hit : hits) {
+        out.println(CYAN + hit.getRepository() + ":" + hit.getPath() + ":" + hit.getLine() + ": " + RESET + hit.getText());
+      }
+      out.printf(GREEN + "\n\t\t\t\t\t\t\t\t\t   %d matching line(s) in %.1f ms%n" + RESET, hits.size(),
+          nanos / 1_000_000.0);
+    } catch (IllegalArgumentException e) {
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid search: " + e.getMessage() + RESET);
+    }
+  }
+
+  // List the versions of a file and show the differences between two of them
+  public void compareVersions(Repository repo) {
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the file name or path: "+RESET);
+    String fileName = in.nextLine();
+    try {
+      List<Commit> versions = repo.versionsOf(fileName);
+      for (int i = 0; i < versions.size(); i++) {
+        out.println("\t\t\t\t\t\t\t\t\t   " + (i + 1) + ". " + versions.get(i));
+      }
+      out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter the old and new version numbers, or press Enter for the last two: "+RESET);
+      String[] choice = in.nextLine().trim().split("\\s+");
+      String fromId = null;
+      String toId = null;
+      if (choice.length == 2) {
+        fromId = versions.get(Integer.parseInt(choice[0]) - 1).getId();
+        toId = versions.get(Integer.parseInt(choice[1]) - 1).getId();
+      }
+      List<String> lines = repo.diff(fileName, fromId, toId);
+      if (lines.isEmpty()) {
+        out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   No differences."+RESET);
+      }
+      for (String line : lines) {
+        String color = line.startsWith("@@") ? CYAN : line.startsWith("+") ? GREEN : line.startsWith("-") ? RED : "";
+        out.println(color + line + RESET);
+      }
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid version number."+RESET);
+    } catch (FileNotFoundException | IllegalArgumentException e) {
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET);
+    }
+  }
+
+  // Watch the tracked files and commit changes in batches until Enter is pressed
+  public void watchRepo(Repository repo) {
+    RepositoryWatcher watcher;
+    try {
+      watcher = new RepositoryWatcher(repo, RepositoryWatcher.defaultDebounceMillis(), user.getUsername(), out);
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Cannot watch files: " + e.getMessage() + RESET);
+      return;
+    }
+    try {
+      watcher.start(); // Fails here, before waiting for Enter, if there is nothing to watch
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Cannot watch files: " + e.getMessage() + RESET);
+      try {
+        watcher.close();
+      } catch (IOException closing) {
+        // Nothing was watched
+      }
+      return;
+    }
+    Thread thread = Thread.ofVirtual().start(() -> {
+      try {
+        watcher.run();
+      } catch (IOException e) {
+        out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET);
+      }
+    });
+    out.println(CYAN + "\n\t\t\t\t\t\t\t\t\t   Watching tracked files. Press Enter to stop." + RESET);
+    in.nextLine();
+    try {
+      watcher.close();
+      thread.join(); // Wait for the last batch
+    } catch (IOException e) {
+      // The watcher is stopping anyway
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   Stopped watching after " + watcher.getCommits() + " commit(s)." + RESET);
+  }
+
+  // Stage a file to be added by the next commit
+  public void stageFileInRepo(Repository repo) {
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the full file path to stage: ");
+    String filePath = in.nextLine();
+    try {
+      repo.stageFile(filePath);
+      out.println("\n\t\t\t\t\t\t\t\t\t   Staged '" + filePath + "' (" + repo.getStagedChanges().size()
+          + " change(s) staged)." + RESET);
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET);
+    }
+  }
+
+  // Stage the removal of a tracked file
+  public void stageRemovalInRepo(Repository repo) {
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the file name or path to remove: ");
+    String fileName = in.nextLine();
+    try {
+      String filePath = repo.stageRemoval(fileName);
+      out.println("\n\t\t\t\t\t\t\t\t\t   Staged removal of '" + filePath + "'." + RESET);
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET); // Missing or ambiguous name
+    }
+  }
+
+  // Show the staged changes and commit them together
+  public void commitStagedInRepo(Repository repo) {
+    List<FileChange> changes = repo.getStagedChanges();
+    if (changes.isEmpty()) {
+      out.println(RED + "\n\t\t\t\t\t\t\t\t\t   Nothing is staged." + RESET);
+      return;
+    }
+    out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   Staged changes:" + RESET);
+    for (FileChange change : changes) {
+      out.println("    " + change);
+    }
+    out.print(PURPLE + "\n\t\t\t\t\t\t\t\t\t   Enter commit message: " + RESET);
+    String commitMessage = in.nextLine();
+    try {
+      Commit commit = repo.commitStaged(commitMessage, user.getUsername());
+      out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   Committed " + commit.getChanges().size() + " change(s) as "
+          + commit.getShortId() + "." + RESET);
+    } catch (UnsyncedCommitException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET);
+    } catch (IOException | IllegalArgumentException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   Commit failed, the changes are still staged: " + e.getMessage() + RESET);
+    }
+  }
+
+  // Import a directory tree into a repository as one commit
+  public void importDirectoryToRepo(Repository repo) {
+    // Prompt user to enter the directory and the globs selecting files
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the directory to import: ");
+    String directory = in.nextLine().trim();
+    out.print("\n\t\t\t\t\t\t\t\t\t   Include globs, comma separated (empty for all files): ");
+    List<String> includes = globs(in.nextLine());
+    out.print("\n\t\t\t\t\t\t\t\t\t   Exclude globs, comma separated (empty for none): ");
+    List<String> excludes = globs(in.nextLine());
+
+    // Prompt user to enter commit message
+    out.print("\n\t\t\t\t\t\t\t\t\t   Enter commit message: ");
+    String commitMessage = in.nextLine();
+
+    try {
+      ImportResult result = repo.importDirectory(directory, includes, excludes, commitMessage, user.getUsername());
+      out.println(GREEN + "\n\t\t\t\t\t\t\t\t\t   " + result + RESET);
+    } catch (IOException | IllegalArgumentException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET); // Missing directory, bad glob or failed read
+    }
+  }
+
+  // Split a comma separated list of globs
+  static List<String> globs(String input) {
+    List<String> globs = new ArrayList<>();
+    for (String glob : input.split(",")) {
+      if (!glob.trim().isEmpty()) {
+        globs.add(glob.trim());
+      }
     }
+    return globs;
   }
 
   // Add a file to a repository
-  public static void addFileToRepo(Repository repo) {
+  public void addFileToRepo(Repository repo) {
     // Prompt user to enter file path
-    System.out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the full file path to add: ");
+    out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter the full file path to add: ");
     String filePath = in.nextLine();
 
     // Prompt user to enter commit message
-    System.out.print("\n\t\t\t\t\t\t\t\t\t   Enter commit message: ");
+    out.print("\n\t\t\t\t\t\t\t\t\t   Enter commit message: ");
     String commitMessage = in.nextLine();
 
     // Add file to repository with commit message
-    repo.addFile(filePath, commitMessage);
-    System.out.println("\n\t\t\t\t\t\t\t\t\t   File added successfully.");
+    try {
+      IngestResult result = repo.addFile(filePath, commitMessage, user.getUsername());
+      out.printf("\n\t\t\t\t\t\t\t\t\t   Read %d bytes in %.1f ms (%.1f MB/s), %d bytes newly stored%n", result.getBytes(),
+          result.getNanos() / 1_000_000.0, result.getMegabytesPerSecond(), result.getStoredBytes());
+      out.println("\n\t\t\t\t\t\t\t\t\t   File added successfully.");
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET); // Missing file or failed commit
+    }
   }
 
   public static boolean repoExists(String repoName) {
@@ -640,19 +8443,19 @@ public class CvHub {
   }
 
   // Remove a file from a repository
-  public static void removeFileFromRepo(Repository repo) {
+  public void removeFileFromRepo(Repository repo) {
     // Display all available files in the repository
-    System.out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Available files in the repository:"+RESET);
+    out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Available files in the repository:"+RESET);
     Set<String> fileNames = repo.getFileNames(); // Get all filenames from the repository
 
     if (fileNames.isEmpty()) {
-      System.out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No files available to remove."+RESET);
+      out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No files available to remove."+RESET);
       return;
     }
 
     int index = 1;
     for (String fileName : fileNames) {
-      System.out.println(index + ". " + fileName);
+      out.println(index + ". " + fileName);
       index++;
     }
 
@@ -662,16 +8465,16 @@ public class CvHub {
     // Loop until valid input is received
     while (!validInput) {
       try {
-        System.out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter the file number to remove: "+RESET);
+        out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter the file number to remove: "+RESET);
         fileChoice = Integer.parseInt(in.nextLine().trim());
 
         if (fileChoice >= 1 && fileChoice <= fileNames.size()) {
           validInput = true; // Valid input, exit loop
         } else {
-          System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid file selection. Please enter a number between 1 and " + fileNames.size() + ".");
+          out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid file selection. Please enter a number between 1 and " + fileNames.size() + ".");
         }
       } catch (NumberFormatException e) {
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a valid number."+RESET);
+        out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a valid number."+RESET);
       }
     }
 
@@ -679,31 +8482,38 @@ public class CvHub {
     String selectedFileName = (String) fileNames.toArray()[fileChoice - 1];
 
     // Prompt for a commit message
-    System.out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter commit message: "+RESET);
+    out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter commit message: "+RESET);
     String commitMessage = in.nextLine();
 
     // Remove the selected file from the repository
-    repo.removeFile(selectedFileName, commitMessage);
-    System.out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   File '" + selectedFileName + "' removed successfully.");
+    try {
+      repo.removeFile(selectedFileName, commitMessage, user.getUsername());
+      out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   File '" + selectedFileName + "' removed successfully.");
+    } catch (IOException e) {
+      out.println(BG_RED + "\n\t\t\t\t\t\t\t\t\t   " + e.getMessage() + RESET); // Already removed or failed commit
+    }
   }
 
-  public static void viewCommitHistory(Repository repo) {
+  public void viewCommitHistory(Repository repo) {
     // Display commit history
-    System.out.println("\n\t\t\t\t\t\t\t\t\t   Commit History:");
-    for (String commit : repo.getCommitHistory()) { // Loop through commit history
-      System.out.println(commit); // Print each commit
+    out.println("\n\t\t\t\t\t\t\t\t\t   Commit History:");
+    for (Commit commit : repo.getCommitHistory()) { // Walk from the latest commit back through its parents
+      out.println(commit); // Print each commit
+      for (FileChange change : commit.getChanges()) {
+        out.println("    " + change); // Print the paths it changed
+      }
     }
   }
 
   // Open and view the content of a file in a repository
-  public static void openFileInRepo(Repository repo) {
+  public void openFileInRepo(Repository repo) {
     // Display available files in the repository
-    System.out.println("\n\t\t\t\t\t\t\t\t\t   Available files in repository '" + repo.getName() + "':"+RESET);
+    out.println("\n\t\t\t\t\t\t\t\t\t   Available files in repository '" + repo.getName() + "':"+RESET);
     Set<String> filePaths = repo.getFileNames(); // Get file paths
 
     // Check if repository has no files
     if (filePaths.isEmpty()) {
-      System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   No files available in this repository."+RESET);
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   No files available in this repository."+RESET);
       return;
     }
 
@@ -711,7 +8521,7 @@ public class CvHub {
     int fileIndex = 1;
     for (String filePath : filePaths) {
       String fileName = Paths.get(filePath).getFileName().toString(); // Extract file name from path
-      System.out.println(fileIndex + ". " + fileName);
+      out.println(fileIndex + ". " + fileName);
       fileIndex++;
     }
 
@@ -721,16 +8531,16 @@ public class CvHub {
     // Loop until valid input is received
     while (!validInput) {
       try {
-        System.out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter the file number to open: "+RESET);
+        out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter the file number to open: "+RESET);
         fileChoice = Integer.parseInt(in.nextLine().trim());
 
         if (fileChoice >= 1 && fileChoice <= filePaths.size()) {
           validInput = true; // Valid input, exit loop
         } else {
-          System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid file selection. Please enter a number between 1 and " + filePaths.size() + ".");
+          out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid file selection. Please enter a number between 1 and " + filePaths.size() + ".");
         }
       } catch (NumberFormatException e) {
-        System.out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a valid number."+RESET);
+        out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input. Please enter a valid number."+RESET);
       }
     }
 
@@ -738,24 +8548,26 @@ public class CvHub {
     String selectedFilePath = (String) filePaths.toArray()[fileChoice - 1];
     String selectedFileName = Paths.get(selectedFilePath).getFileName().toString();
 
-    // Open and display file content
+    // Open the file and display it one page at a time
     try {
-      String content = repo.openFile(selectedFilePath);
-      System.out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Content of the file '" + selectedFileName + "':\n"+RESET);
-      System.out.println(content);
+      PageSource content = repo.openPaged(selectedFilePath);
+      out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Content of the file '" + selectedFileName + "':\n"+RESET);
+      new PagedViewer(content).run(in, out);
+      out.println("\n\t\t\t\t\t\t\t\t\t   Content cache: " + Repository.contentCache().describe());
+      out.println("\t\t\t\t\t\t\t\t\t   Blob store: " + BlobStore.shared().describe());
     } catch (Exception e) {
-      System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Error opening file: " + e.getMessage()+RESET);
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Error opening file: " + e.getMessage()+RESET);
     }
   }
 
-  public static void accountSettings() {
+  public void accountSettings() {
     while (true) { // Loop to keep showing the menu until the user exits
       // Display account settings options
-      System.out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Account Settings:");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   1. Update Username...");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   2. Update Email...");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   3. Update Password...");
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   4. Go back..."+RESET);
+      out.println(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Account Settings:");
+      out.println("\n\t\t\t\t\t\t\t\t\t   1. Update Username...");
+      out.println("\n\t\t\t\t\t\t\t\t\t   2. Update Email...");
+      out.println("\n\t\t\t\t\t\t\t\t\t   3. Update Password...");
+      out.println("\n\t\t\t\t\t\t\t\t\t   4. Go back..."+RESET);
 
       int choice = -1; // Initialize choice variable
       boolean validInput = false; // Track input validity
@@ -763,20 +8575,21 @@ public class CvHub {
       // Loop until valid input is received
       while (!validInput) {
         try {
-          System.out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter your choice: "+RESET);
+          out.print(YELLOW+"\n\t\t\t\t\t\t\t\t\t   Enter your choice: "+RESET);
           choice = Integer.parseInt(in.nextLine().trim());
 
           if (choice >= 1 && choice <= 4) {
             validInput = true; // Valid input, exit loop
           } else {
-            System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid choice! Please enter a number between 1 and 4.");
+            out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid choice! Please enter a number between 1 and 4.");
           }
         } catch (NumberFormatException e) {
-          System.out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input! Please enter a valid number."+RESET);
+          out.println("\n\t\t\t\t\t\t\t\t\t   Invalid input! Please enter a valid number."+RESET);
         }
       }
 
       // Switch statement for handling different actions
+      long started = System.nanoTime();
       switch (choice) {
         case 1:
           updateUsername(); // Update username
@@ -790,256 +8603,247 @@ public class CvHub {
         case 4:
           return; // Exit settings
         default:
-          System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid choice! Try again."+RESET); // This should never happen due to validation
+          out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid choice! Try again."+RESET); // This should never happen due to validation
       }
+      recordAction(ACCOUNT_ACTIONS, choice, started);
     }
   }
 
-  public static void updateUsername() {
-    System.out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Username ------------"+RESET);
+  public void updateUsername() {
+    out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Username ------------"+RESET);
 
     // Ensure user is logged in before allowing username update
     if (user == null) {
-      System.out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
+      out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
       return; // Exit if no user is logged in
     }
 
     // Verify the current username by asking the user
     while (true) {
-      System.out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter current username: "+RESET);
+      out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter current username: "+RESET);
       String currentUsername = in.nextLine();
 
       // Check if entered current username matches the stored one
       if (currentUsername.equals(user.getUsername())) {
         break; // Proceed if username matches
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current username. Try again."+RESET);
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current username. Try again."+RESET);
       }
     }
 
     // Loop for entering a valid new username
     String newUsername;
     while (true) {
-      System.out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter new username: "+RESET);
+      out.print(PURPLE+"\n\t\t\t\t\t\t\t\t\t   Enter new username: "+RESET);
       newUsername = in.nextLine();
 
-      // Ensure the new username is valid
-      if (validUsername(newUsername)) {
-        break; // Proceed if valid username is entered
+      // Ensure the new username is valid and not used by another account
+      if (!validUsername(newUsername, out)) {
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid username format. Try again."+RESET);
+      } else if (UserRegistry.shared().usernameTaken(newUsername, user)) {
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   This username is already taken. Try again."+RESET);
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid username format. Try again."+RESET);
+        break; // Proceed if valid username is entered
       }
     }
 
     // Set the new username
-    user.setUsername(newUsername);
-    System.out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Username updated successfully!"+RESET); // Confirmation message
+    try {
+      if (!UserRegistry.shared().updateUsername(user, newUsername)) {
+        accountNotSaved(null);
+        return;
+      }
+    } catch (IOException e) {
+      accountNotSaved(e);
+      return;
+    }
+    out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Username updated successfully!"+RESET); // Confirmation message
   }
 
-  public static void updatePassword() {
-    System.out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Password ------------"+RESET);
+  public void updatePassword() {
+    out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Password ------------"+RESET);
 
     // Ensure the user is logged in before updating the password
     if (user == null) {
-      System.out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
+      out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
       return; // Exit if no user is logged in
     }
 
     // Loop to verify the current password
     while (true) {
-      System.out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter current password: "+RESET);
+      out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter current password: "+RESET);
       String currentPassword = in.nextLine();
 
       // Check if entered password matches the stored one
-      if (currentPassword.equals(user.getPassword())) {
+      boolean matches;
+      try {
+        matches = PasswordHasher.shared().verify(currentPassword, user.getPasswordHash());
+      } catch (IOException e) {
+        out.println(RED+"\n\t\t\t\t\t\t\t\t\t   Could not check the password: " + e.getMessage() + RESET);
+        return;
+      }
+      if (matches) {
         break; // Proceed if the password matches
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current password. Try again."+RESET);
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current password. Try again."+RESET);
       }
     }
 
     // Loop to validate and accept a new password
     String newPassword;
     while (true) {
-      System.out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter new password: "+RESET);
+      out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter new password: "+RESET);
       newPassword = in.nextLine();
 
       // Ensure the new password is valid (via a predefined validation method)
-      if (validPassword(newPassword)) {
+      if (validPassword(newPassword, out)) {
         break; // Proceed if valid password is entered
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid password format. Try again."+RESET);
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid password format. Try again."+RESET);
       }
     }
 
     // Update the user's password
-    user.setPassword(newPassword);
-    System.out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Password updated successfully!"+RESET); // Success message
+    try {
+      if (!UserRegistry.shared().updatePassword(user, PasswordHasher.shared().hash(newPassword))) {
+        accountNotSaved(null);
+        return;
+      }
+    } catch (IOException e) {
+      accountNotSaved(e);
+      return;
+    }
+    out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Password updated successfully!"+RESET); // Success message
   }
 
-  public static void updateEmail() {
-    System.out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Email ------------"+RESET);
+  public void updateEmail() {
+    out.println(YELLOW+"\n\t\t\t\t\t\t            ------------ Update Email ------------"+RESET);
 
     // Ensure user is logged in before updating email
     if (user == null) {
-      System.out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
+      out.println(RED+"\n\t\t\t\t\t\t\t\t\t   No user found. Please sign in first."+RESET);
       return; // Exit if no user is logged in
     }
 
     // Loop to verify the current email
     while (true) {
-      System.out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter current email: "+RESET);
+      out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter current email: "+RESET);
       String currentEmail = in.nextLine();
 
       // Check if entered email matches the stored one
       if (currentEmail.equals(user.getEmail())) {
         break; // Proceed if email matches
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current email. Try again."+RESET);
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Incorrect current email. Try again."+RESET);
       }
     }
 
     // Loop to validate and accept a new email
     String newEmail;
     while (true) {
-      System.out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter new email: "+RESET);
+      out.print(CYAN+"\n\t\t\t\t\t\t\t\t\t   Enter new email: "+RESET);
       newEmail = in.nextLine();
 
-      // Ensure the new email is valid (via a predefined validation method)
-      if (validEmail(newEmail)) {
-        break; // Proceed if valid email is entered
+      // Ensure the new email is valid (via a predefined validation method) and not used by another account
+      if (!validEmail(newEmail, out)) {
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid email format. Try again."+RESET);
+      } else if (UserRegistry.shared().emailTaken(newEmail, user)) {
+        out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   An account with this email already exists. Try again."+RESET);
       } else {
-        System.out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Invalid email format. Try again."+RESET);
+        break; // Proceed if valid email is entered
       }
     }
 
     // Update the user's email
-    user.setEmail(newEmail);
-    System.out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Email updated successfully!"+RESET); // Success message
-  }
-
-  public static boolean validEmail(String email) {
-
-    // Check if the email is null or empty
-    if (email == null || email.isEmpty()) {
-      System.out.println("\n\n\t\t\t\t\t\t\t\t\t\t " + BG_RED + BOLD + "Email cannot be empty!" + RESET + "\n");
-      return false; // Return false if empty
+    try {
+      if (!UserRegistry.shared().updateEmail(user, newEmail)) {
+        accountNotSaved(null);
+        return;
+      }
+    } catch (IOException e) {
+      accountNotSaved(e);
+      return;
     }
+    out.println(GREEN+"\n\t\t\t\t\t\t\t\t\t   Email updated successfully!"+RESET); // Success message
+  }
 
-    // Ensure the email ends with @gmail.com
-    if (!email.endsWith("@gmail.com")) {
-      System.out
-          .println("\n\t\t\t\t\t\t\t         " + BG_RED + BOLD + "Email should end with @gmail.com" + RESET + "\n");
-      return false; // Return false if not Gmail
+  // Hash the password of the signed-in account again if it was saved unhashed or with a different cost
+  private void upgradePasswordHash(String password) {
+    PasswordHasher hasher = PasswordHasher.shared();
+    if (hasher.needsRehash(user.getPasswordHash())) {
+      try {
+        UserRegistry.shared().updatePassword(user, hasher.hash(password));
+      } catch (IOException e) {
+        // The old hash still works, the next sign-in tries again
+      }
     }
+  }
 
-    // Ensure '@' is not the first character
-    int atIndex = email.indexOf('@');
-    if (atIndex < 1) {
-      System.out.println("\n\t\t\t\t\t\t\t\t   " + BG_RED + BOLD + "'@' should not be at the start" + RESET + "\n");
-      return false; // Return false if '@' is at the start
+  // Record how long a menu option took, unless it only opens another menu
+  private static void recordAction(OperationStats[] actions, int choice, long started) {
+    if (choice >= 1 && choice <= actions.length && actions[choice - 1] != null) {
+      actions[choice - 1].record(started);
     }
+  }
 
-    // Ensure there are no spaces in the email
-    if (email.contains(" ")) {
-      System.out.println("\n\t\t\t\t\t\t\t\t     " + BG_RED + BOLD + "No spaces allowed in email" + RESET + "\n");
-      return false; // Return false if there are spaces
+  // Report that a change to the signed-in account could not be made
+  private void accountNotSaved(IOException e) {
+    if (e == null) {
+      out.println(BG_RED+"\n\t\t\t\t\t\t\t\t\t   Another account took it meanwhile. Nothing was changed."+RESET);
+    } else {
+      out.println(RED+"\n\t\t\t\t\t\t\t\t\t   Could not save the account: " + e.getMessage() + RESET);
     }
-
-    return true; // Return true if all conditions are met
   }
 
-  public static boolean validPassword(String password) {
-
-    // Check if password length is less than 8 characters
-    if (password.length() < 8) {
-      System.out.println(RED+"\n\t\t\t\t\t\t\t\t\t   Password should be at least 8 characters long.");
-      return false; // Return false if password is too short
-    }
+  public static boolean validEmail(String email) {
+    return validEmail(email, System.out);
+  }
 
-    // Check if password contains at least one special symbol
-    if (!containSpecialSymbols(password)) {
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   Password should contain at least one special character.");
-      return false; // Return false if no special symbol
+  public static boolean validEmail(String email, PrintStream out) {
+    // Check every rule in one pass and report all broken ones
+    int failures = AccountValidator.checkEmail(email);
+    for (String message : AccountValidator.messages(failures)) {
+      out.println("\n\t\t\t\t\t\t\t         " + BG_RED + BOLD + message + RESET + "\n");
     }
+    return failures == 0; // Return true if all conditions are met
+  }
 
-    // Check if password contains at least one number
-    if (!containNumbers(password)) {
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   Password should contain at least one number.");
-      return false; // Return false if no number is found
-    }
+  public static boolean validPassword(String password) {
+    return validPassword(password, System.out);
+  }
 
-    // Check if password contains at least one uppercase letter
-    if (!containUpperCase(password)) {
-      System.out.println("\n\t\t\t\t\t\t\t\t\t   Password should contain at least one uppercase letter."+RESET);
-      return false; // Return false if no uppercase letter
+  public static boolean validPassword(String password, PrintStream out) {
+    // Check length, special symbol, number and uppercase letter in one pass and report all broken rules
+    int failures = AccountValidator.checkPassword(password);
+    for (String message : AccountValidator.messages(failures)) {
+      out.println(RED + "\n\t\t\t\t\t\t\t\t\t   " + message + RESET);
     }
-
-    return true; // Return true if all conditions are satisfied
+    return failures == 0; // Return true if all conditions are satisfied
   }
 
   public static boolean containUpperCase(String str) {
-    // Loop through each character in the string
-    for (char c : str.toCharArray()) {
-      // Check if the character is uppercase
-      if (Character.isUpperCase(c)) {
-        return true; // Return true if an uppercase letter is found
-      }
-    }
-    return false; // Return false if no uppercase letter is found
+    return AccountValidator.hasUpper(str); // Table lookup per character
   }
 
   public static boolean validUsername(String username) {
-    // Check if the username is at least 5 characters long
-    if (username.length() < 5) {
-      System.out
-          .println(
-              BOLD + "\n\t\t\t\t\t\t\t    " + BG_RED + "Username should be at least 5 characters long." + RESET + "");
-      return false;
-    }
+    return validUsername(username, System.out);
+  }
 
-    // Check if the username contains special characters
-    if (containSpecialSymbols(username)) {
-      System.out.println("\n\t\t\t\t\t\t\t    " + BG_RED + "Username cannot contain special characters." + RESET + "");
-      return false;
+  public static boolean validUsername(String username, PrintStream out) {
+    // Check length and special characters in one pass and report all broken rules
+    int failures = AccountValidator.checkUsername(username);
+    for (String message : AccountValidator.messages(failures)) {
+      out.println(BOLD + "\n\t\t\t\t\t\t\t    " + BG_RED + message + RESET);
     }
-
-    return true; // Valid username if it's long enough and doesn't have special characters
+    return failures == 0; // Valid username if it's long enough and doesn't have special characters
   }
 
   public static boolean containSpecialSymbols(String username) {
-    // List of special characters to check against
-    String specialCharacters = "!@#$%^&*()_+{}[]|\\:;\"'<>,.?/~`-=";
-    boolean found = false;
-
-    // Loop through each character in the username
-    for (int i = 0; i < username.length(); i++) {
-      // Check if the character exists in the specialCharacters string
-      for (int j = 0; j < specialCharacters.length(); j++) {
-        if (username.charAt(i) == specialCharacters.charAt(j)) {
-          found = true;
-          break;
-        }
-      }
-    }
-    return found; // Returns true if any special symbol is found
+    return AccountValidator.hasSpecial(username); // Table lookup per character
   }
 
   public static boolean containNumbers(String username) {
-    boolean found = false;
-
-    // Loop through each character in the username
-    for (int i = 0; i < username.length(); i++) {
-      char c = username.charAt(i);
-
-      // Check if the character is a digit
-      if (c >= '0' && c <= '9') {
-        found = true; // A number is found
-        break;
-      }
-    }
-
-    return found; // Returns true if a number is found
+    return AccountValidator.hasDigit(username); // Table lookup per character
   }
 
 }
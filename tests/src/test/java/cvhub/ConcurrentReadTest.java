@@ -0,0 +1,94 @@
+package cvhub;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Reading a file while commits of new versions write, seal and merge the packs it is stored in
+class ConcurrentReadTest {
+  private static final int VERSIONS = 300;
+  private static final int READERS = 3;
+
+  @TempDir
+  Path directory;
+
+  // Content of a version: large enough for older versions to be kept as deltas and for packs to fill up
+  private static String version(int number) {
+    return "a line of text long enough to make deltas worthwhile\n".repeat(400) + "version " + number + "\n";
+  }
+
+  @Test
+  void readersSeeOnlyCommittedVersions() throws Exception {
+    PackObjectStore packs = PackObjectStore.open(Files.createDirectories(directory.resolve("objects")));
+    BlobStore store = new BlobStore(packs);
+    CommitJournal journal = new CommitJournal(directory.resolve("repo.journal"), 0);
+    journal.create();
+    Repository repo = new Repository("repo", store, journal, null);
+    Path file = directory.resolve("work.txt");
+    Set<String> written = ConcurrentHashMap.newKeySet(); // Versions whose commit may have started
+    written.add(version(0));
+    Files.writeString(file, version(0));
+    repo.addFile(file.toString(), "Version 0", "tester");
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicLong reads = new AtomicLong();
+    List<String> failures = new CopyOnWriteArrayList<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < READERS; i++) {
+      Thread reader = new Thread(() -> {
+        try {
+          while (running.get()) {
+            String content = repo.openFile("work.txt");
+            if (!written.contains(content)) {
+              failures.add(content.length() > 60 ? content.substring(content.length() - 60) : content);
+            }
+            reads.incrementAndGet();
+          }
+        } catch (RuntimeException e) {
+          failures.add(e.toString());
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    try {
+      for (int v = 1; v <= VERSIONS; v++) {
+        written.add(version(v));
+        Files.writeString(file, version(v));
+        repo.addFile(file.toString(), "Version " + v, "tester");
+      }
+    } finally {
+      running.set(false);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    assertEquals(List.of(), failures);
+    assertTrue(reads.get() > 0);
+    assertEquals(version(VERSIONS), repo.openFile("work.txt"));
+
+    int v = VERSIONS;
+    for (Commit commit : repo.getCommitHistory()) { // Every version is still readable, most of them as deltas
+      String hash = commit.getChanges().get(0).getHash();
+      assertArrayEquals(version(v).getBytes(StandardCharsets.UTF_8), store.get(hash), "version " + v);
+      v--;
+    }
+    assertEquals(-1, v);
+    journal.close();
+    packs.close();
+  }
+}
@@ -0,0 +1,121 @@
+package cvhub;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Encoding versions as deltas of each other and getting the exact bytes back, directly and through the blob store
+class DeltaRoundTripTest {
+  @TempDir
+  Path directory;
+
+  // Text of numbered lines, the kind of content deltas are made for
+  private static byte[] text(int lines) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      text.append("line ").append(i).append(" of a file that is edited between versions\n");
+    }
+    return text.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Copy of the content with a few bytes replaced, some inserted and some deleted
+  private static byte[] edit(byte[] content, SplittableRandom random) {
+    byte[] edited = Arrays.copyOf(content, content.length);
+    for (int i = 0; i < 5; i++) {
+      edited[random.nextInt(edited.length)] = (byte) ('A' + random.nextInt(26));
+    }
+    int cut = random.nextInt(edited.length - 100);
+    byte[] inserted = "an inserted line\n".getBytes(StandardCharsets.UTF_8);
+    byte[] result = new byte[edited.length + inserted.length - 40];
+    System.arraycopy(edited, 0, result, 0, cut);
+    System.arraycopy(inserted, 0, result, cut, inserted.length);
+    System.arraycopy(edited, cut + 40, result, cut + inserted.length, edited.length - cut - 40); // 40 bytes dropped
+    return result;
+  }
+
+  @Test
+  void appliesToTheExactTarget() {
+    SplittableRandom random = new SplittableRandom(7);
+    byte[] base = text(2000);
+    for (int round = 0; round < 20; round++) {
+      byte[] target = edit(base, random);
+      byte[] delta = BinaryDelta.create(base, target);
+      assertNotNull(delta);
+      assertTrue(delta.length < target.length / 4, "delta of a small edit is small");
+      assertArrayEquals(target, BinaryDelta.apply(base, delta));
+      base = target;
+    }
+  }
+
+  @Test
+  void handlesEdgesOfTheContent() {
+    byte[] base = text(500);
+    byte[] prefixed = new byte[base.length + 3];
+    System.arraycopy(base, 0, prefixed, 3, base.length);
+    prefixed[0] = 'x';
+    prefixed[1] = 'y';
+    prefixed[2] = '\n';
+    assertArrayEquals(prefixed, BinaryDelta.apply(base, BinaryDelta.create(base, prefixed)));
+    byte[] truncated = Arrays.copyOf(base, base.length - 1);
+    assertArrayEquals(truncated, BinaryDelta.apply(base, BinaryDelta.create(base, truncated)));
+    assertArrayEquals(base, BinaryDelta.apply(base, BinaryDelta.create(base, base)));
+  }
+
+  @Test
+  void refusesDeltasThatSaveLittle() {
+    byte[] base = text(200);
+    byte[] unrelated = new byte[base.length];
+    new SplittableRandom(3).nextBytes(unrelated);
+    assertNull(BinaryDelta.create(base, unrelated));
+    assertNull(BinaryDelta.create(new byte[0], base));
+  }
+
+  @Test
+  void deltaBlobsReadBackFromPacks() throws IOException {
+    SplittableRandom random = new SplittableRandom(11);
+    byte[][] versions = new byte[6][];
+    versions[0] = text(3000);
+    for (int i = 1; i < versions.length; i++) {
+      versions[i] = edit(versions[i - 1], random);
+    }
+    PackObjectStore packs = PackObjectStore.open(directory);
+    BlobStore store = new BlobStore(packs);
+    String[] hashes = new String[versions.length];
+    for (int i = 0; i < versions.length; i++) {
+      hashes[i] = store.put(versions[i]);
+    }
+    for (int i = 0; i < versions.length - 1; i++) {
+      assertTrue(store.deltify(hashes[i], hashes[i + 1]), "older version stored against the next one");
+    }
+    assertFalse(store.deltify(hashes[versions.length - 1], hashes[0]), "a cycle of deltas is refused");
+    packs.close();
+
+    PackObjectStore reopened = PackObjectStore.open(directory); // No reconstructed contents cached
+    BlobStore fresh = new BlobStore(reopened);
+    for (int i = 0; i < versions.length; i++) {
+      byte type = reopened.typeOf(hashes[i]);
+      assertEquals(i < versions.length - 1 ? ObjectStore.DELTA : ObjectStore.FULL, type);
+      assertArrayEquals(versions[i], fresh.get(hashes[i]), "version " + i);
+    }
+    for (String hash : hashes) {
+      fresh.retain(hash); // References are rebuilt from the journals on a real start
+    }
+    fresh.materialize(hashes[2]);
+    assertEquals(ObjectStore.FULL, reopened.typeOf(hashes[2]));
+    assertArrayEquals(versions[2], fresh.get(hashes[2]));
+    assertArrayEquals(versions[1], fresh.get(hashes[1])); // Its base is unchanged
+    reopened.close();
+  }
+}
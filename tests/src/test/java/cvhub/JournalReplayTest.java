@@ -0,0 +1,198 @@
+package cvhub;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Rebuilding a repository from its journal and object packs after it was closed
+class JournalReplayTest {
+  @TempDir
+  Path directory;
+
+  private Path journalFile; // Journal of the repository under test
+  private CommitJournal journal; // Journal of the repository that is open, closed before reopening
+  private PackObjectStore packs; // Packs of the repository that is open, closed before reopening
+
+  @BeforeEach
+  void setUp() {
+    journalFile = directory.resolve("repo.journal");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    close();
+  }
+
+  // Close the storage of the open repository, as a process does when it exits
+  private void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    if (packs != null) {
+      packs.close(); // Seals and indexes what was written
+    }
+  }
+
+  // Open the repository the way a new process would: fresh packs, a fresh journal, then replay
+  private Repository reopen() throws IOException {
+    close();
+    packs = PackObjectStore.open(Files.createDirectories(directory.resolve("objects")));
+    journal = new CommitJournal(journalFile, 0);
+    journal.create();
+    Repository repo = new Repository("repo", new BlobStore(packs), journal, null);
+    repo.recover();
+    return repo;
+  }
+
+  // Write a file and add it to the repository
+  private static void add(Repository repo, Path file, String content, String message) throws IOException {
+    Files.writeString(file, content);
+    repo.addFile(file.toString(), message, "tester");
+  }
+
+  // Commit messages from the newest commit back
+  private static List<String> messages(Repository repo) {
+    List<String> messages = new ArrayList<>();
+    for (Commit commit : repo.getCommitHistory()) {
+      messages.add(commit.getMessage());
+    }
+    return messages;
+  }
+
+  @Test
+  void replaysFilesAndHistory() throws IOException {
+    Path a = directory.resolve("a.txt");
+    Path b = directory.resolve("b.txt");
+    Repository repo = reopen();
+    add(repo, a, "first version of a\n", "Add a");
+    add(repo, b, "only version of b\n", "Add b");
+    add(repo, a, "second version of a\n", "Edit a");
+    repo.removeFile("b.txt", "Remove b", "tester");
+    String head = repo.getHead().getId();
+
+    Repository reopened = reopen();
+    assertEquals(Set.of(Repository.trackedPath(a)), reopened.getFileNames());
+    assertEquals("second version of a\n", reopened.openFile("a.txt"));
+    assertEquals(List.of("Remove b", "Edit a", "Add b", "Add a"), messages(reopened));
+    assertEquals(head, reopened.getHead().getId());
+    assertEquals("tester", reopened.getHead().getAuthor());
+  }
+
+  @Test
+  void keepsCommitsBeforeTornTail() throws IOException {
+    Path a = directory.resolve("a.txt");
+    Repository repo = reopen();
+    add(repo, a, "one\n", "One");
+    add(repo, a, "two\n", "Two");
+    Files.write(journalFile, new byte[] { 0, 0, 1, 0, 7, 7 }, StandardOpenOption.APPEND); // Header cut short
+
+    Repository reopened = reopen();
+    assertEquals(List.of("Two", "One"), messages(reopened));
+    add(reopened, a, "three\n", "Three"); // Written where the torn record was cut off
+
+    Repository again = reopen();
+    assertEquals(List.of("Three", "Two", "One"), messages(again));
+    assertEquals("three\n", again.openFile("a.txt"));
+  }
+
+  @Test
+  void cutsOffDamagedLastRecord() throws IOException {
+    Path a = directory.resolve("a.txt");
+    Repository repo = reopen();
+    add(repo, a, "one\n", "One");
+    add(repo, a, "two\n", "Two");
+    close();
+    byte[] bytes = Files.readAllBytes(journalFile);
+    bytes[bytes.length - 1] ^= 1; // Whole length on disk, last bytes never written
+    Files.write(journalFile, bytes);
+
+    assertEquals(List.of("One"), messages(reopen()));
+  }
+
+  @Test
+  void refusesDamagedRecordBeforeOthers() throws IOException {
+    Path a = directory.resolve("a.txt");
+    Repository repo = reopen();
+    add(repo, a, "one\n", "One");
+    long second = Files.size(journalFile);
+    add(repo, a, "two\n", "Two");
+    add(repo, a, "three\n", "Three");
+    close();
+    byte[] bytes = Files.readAllBytes(journalFile);
+    bytes[(int) second + CommitJournal.HEADER_SIZE + 5] ^= 1; // Inside the payload of the second commit
+    Files.write(journalFile, bytes);
+
+    IOException error = assertThrows(IOException.class, this::reopen);
+    assertTrue(error.getMessage().contains("at " + second), error.getMessage());
+    assertArrayEquals(bytes, Files.readAllBytes(journalFile)); // The commits after it are kept
+  }
+
+  @Test
+  void refusesCommitsAfterDelete() throws IOException {
+    Path a = directory.resolve("a.txt");
+    Repository repo = reopen();
+    add(repo, a, "one\n", "One");
+    repo.releaseFiles();
+    repo.deleteJournal();
+
+    assertThrows(IOException.class, () -> add(repo, a, "two\n", "Two")); // A session still holding it
+    assertFalse(Files.exists(journalFile));
+  }
+
+  @Test
+  void replaysPerFileRecords() throws IOException {
+    reopen(); // Empty, only used to write the records
+    String hash = new BlobStore(packs).put("kept from the old format\n".getBytes(StandardCharsets.UTF_8));
+    journal.append(legacyRecord(1, "/old/kept.txt", hash, "Added file: /old/kept.txt | Commit: Keep it"));
+    journal.append(legacyRecord(1, "/old/gone.txt", hash, "Added file: /old/gone.txt | Commit: Add it"));
+    journal.append(legacyRecord(2, "/old/gone.txt", "", "Removed file: /old/gone.txt | Commit: Drop it"));
+
+    Repository repo = reopen();
+    assertEquals(Set.of("/old/kept.txt"), repo.getFileNames());
+    assertEquals("kept from the old format\n", repo.openFile("kept.txt"));
+    assertEquals(List.of("Drop it", "Add it", "Keep it"), messages(repo));
+    assertEquals("unknown", repo.getHead().getAuthor());
+
+    Path file = directory.resolve("new.txt");
+    add(repo, file, "after the old records\n", "New");
+    Repository reopened = reopen();
+    assertEquals(List.of("New", "Drop it", "Add it", "Keep it"), messages(reopened));
+    assertEquals(Set.of("/old/kept.txt", Repository.trackedPath(file)), reopened.getFileNames());
+  }
+
+  @Test
+  void refusesUnknownRecordTypes() throws IOException {
+    reopen();
+    journal.append(new byte[] { 42, 0, 0 });
+    assertThrows(IOException.class, this::reopen);
+  }
+
+  // Record of the journal format that stored one added (1) or removed (2) file per record
+  private static byte[] legacyRecord(int type, String path, String hash, String entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(type);
+    data.writeUTF(path);
+    data.writeUTF(hash);
+    data.writeUTF(entry);
+    return bytes.toByteArray();
+  }
+}
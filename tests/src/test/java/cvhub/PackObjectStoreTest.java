@@ -0,0 +1,135 @@
+package cvhub;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Writing records to object packs and reading them back, before and after the packs are sealed and reopened
+class PackObjectStoreTest {
+  @TempDir
+  Path directory;
+
+  // Random contents keyed by their hash, together larger than a pack so several are sealed
+  private static Map<String, byte[]> contents(int count, int size) {
+    SplittableRandom random = new SplittableRandom(count);
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      byte[] content = new byte[size];
+      random.nextBytes(content);
+      contents.put(BlobStore.hash(content), content);
+    }
+    return contents;
+  }
+
+  // Check that every record reads back as written
+  private static void assertStored(ObjectStore store, Map<String, byte[]> contents) {
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      StoredObject object = store.read(entry.getKey());
+      assertEquals(ObjectStore.FULL, object.getType());
+      assertArrayEquals(entry.getValue(), object.getPayload());
+    }
+  }
+
+  // Number of files in the pack directory with the given suffix
+  private long files(String suffix) throws IOException {
+    long count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + suffix)) {
+      for (Path ignored : files) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  void readsRecordsBeforeAndAfterReopening() throws IOException {
+    Map<String, byte[]> contents = contents(40, 10_000);
+    PackObjectStore packs = PackObjectStore.open(directory);
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      packs.write(entry.getKey(), ObjectStore.FULL, entry.getValue());
+    }
+    assertStored(packs, contents); // Partly from sealed packs, partly from the one being written
+    packs.close();
+    assertEquals(files(".pack"), files(".idx"));
+
+    PackObjectStore reopened = PackObjectStore.open(directory);
+    assertStored(reopened, contents);
+    assertNull(reopened.read(BlobStore.hash(new byte[] { 1, 2, 3 })));
+    assertEquals(0, reopened.typeOf(BlobStore.hash(new byte[0])));
+    reopened.close();
+  }
+
+  @Test
+  void newestRecordOfHashWins() throws IOException {
+    byte[] content = "the same blob in two forms".getBytes(StandardCharsets.UTF_8);
+    String hash = BlobStore.hash(content);
+    PackObjectStore packs = PackObjectStore.open(directory);
+    packs.write(hash, ObjectStore.FULL, content);
+    packs.close();
+
+    PackObjectStore rewritten = PackObjectStore.open(directory);
+    rewritten.write(hash, ObjectStore.DELTA, new byte[] { 9, 9, 9 });
+    assertEquals(ObjectStore.DELTA, rewritten.typeOf(hash));
+    rewritten.close();
+
+    PackObjectStore reopened = PackObjectStore.open(directory);
+    assertEquals(ObjectStore.DELTA, reopened.typeOf(hash));
+    assertArrayEquals(new byte[] { 9, 9, 9 }, reopened.read(hash).getPayload());
+    reopened.close();
+  }
+
+  @Test
+  void recoversPackLeftWithoutIndex() throws IOException {
+    Map<String, byte[]> contents = contents(3, 1000);
+    PackWriter crashed = PackWriter.create(directory, 1, 1);
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      crashed.append(entry.getKey(), ObjectStore.FULL, entry.getValue());
+    }
+    crashed.force();
+    crashed.close(); // Released without an index, as when the process is killed
+    Path pack = directory.resolve("pack-000001.pack");
+    Files.write(pack, new byte[] { 1, 2, 3, 4, 5 }, StandardOpenOption.APPEND); // A record torn by the crash
+    assertEquals(0, files(".idx"));
+
+    PackObjectStore recovered = PackObjectStore.open(directory);
+    assertStored(recovered, contents);
+    assertEquals(files(".pack"), files(".idx"));
+    recovered.close();
+  }
+
+  @Test
+  void compactDropsRejectedBlobs() throws IOException {
+    Map<String, byte[]> contents = contents(20, 5000);
+    PackObjectStore packs = PackObjectStore.open(directory);
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      packs.write(entry.getKey(), ObjectStore.FULL, entry.getValue());
+    }
+    String dropped = contents.keySet().iterator().next();
+    assertEquals(1, packs.compact(hash -> !hash.equals(dropped)));
+    assertFalse(packs.contains(dropped));
+    contents.remove(dropped);
+    assertStored(packs, contents);
+    packs.close();
+
+    PackObjectStore reopened = PackObjectStore.open(directory);
+    assertFalse(reopened.contains(dropped));
+    assertTrue(reopened.contains(contents.keySet().iterator().next()));
+    assertStored(reopened, contents);
+    reopened.close();
+  }
+}
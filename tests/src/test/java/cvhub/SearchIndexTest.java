@@ -0,0 +1,55 @@
+package cvhub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+// Keeping the search index to the committed contents as files are replaced and repositories deleted
+class SearchIndexTest {
+  private final BlobStore store = new BlobStore();
+  private final SearchIndex index = new SearchIndex(store);
+
+  // Store a version of a file with a word only that version holds
+  private String version(int number) throws IOException {
+    return store.put(("shared words on every line\nversion" + number + " only here\n").repeat(500)
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void replacedVersionsLeaveTheIndex() throws IOException {
+    String previous = null;
+    String current = null;
+    for (int v = 0; v < 200; v++) {
+      current = version(v);
+      if (previous != null) {
+        index.remove("repo", "/file.txt", previous);
+      }
+      index.add("repo", "/file.txt", current);
+      previous = current;
+      index.search("shared", 1); // Indexes the new version
+    }
+    assertTrue(index.describe().startsWith("1 contents in "), index.describe());
+    assertEquals(0, index.search("version5", 10).size());
+    assertEquals(10, index.search("version199", 10).size());
+
+    index.remove("repo", "/file.txt", current);
+    index.add("repo", "/file.txt", version(5)); // Reverted to an old version
+    assertEquals(10, index.search("version5", 10).size());
+    assertEquals(0, index.search("version199", 10).size());
+  }
+
+  @Test
+  void deletedRepositoryLeavesTheIndex() throws IOException {
+    index.add("gone", "/a.txt", version(1));
+    index.add("kept", "/b.txt", version(2));
+    assertEquals(2, index.search("shared", 1000).size() / 500);
+    index.removeRepository("gone");
+    assertEquals(0, index.search("version1", 10).size());
+    assertEquals(500, index.search("shared", 1000).size());
+    assertTrue(index.describe().startsWith("1 contents"), index.describe());
+  }
+}